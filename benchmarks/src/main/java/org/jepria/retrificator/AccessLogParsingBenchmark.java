@@ -0,0 +1,104 @@
+package org.jepria.retrificator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a single access log record and of its timestamp, valid and malformed,
+ * by the hand-written parser and by the regex one of the previous versions
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AccessLogParsingBenchmark {
+
+  private static final String VALID = "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] \"POST /manager/html/undeploy?path=/Ubs HTTP/1.1\" 200 309828";
+  /**
+   * Broken in the middle of the request, as by a crash during the write
+   */
+  private static final String MALFORMED = "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] \"POST /manager/html/undep";
+  private static final String DATE_AND_TIME = "07/Feb/2020:18:01:00 +0300";
+
+  private final AccessLogParser parser = AccessLogParser.getDefault();
+  private final AccessLogParser.FieldSink noopSink = new AccessLogParser.FieldSink() {
+  };
+  private final DateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+  @Benchmark
+  public AccessLogReader.Record parseRecordValid() {
+    return AccessLogReader.parseRecord(VALID);
+  }
+
+  @Benchmark
+  public AccessLogReader.Record parseRecordMalformed() {
+    try {
+      return AccessLogReader.parseRecord(MALFORMED);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @Benchmark
+  public AccessLogReader.Record parseRecordRegexValid() {
+    return AccessLogReader.parseRecord(VALID, AccessLogReader.RECORD_PATTERN_DEFAULT, dateFormat, AccessLogReader.REQUEST_PATTERN_DEFAULT);
+  }
+
+  @Benchmark
+  public AccessLogReader.Record parseRecordRegexMalformed() {
+    try {
+      return AccessLogReader.parseRecord(MALFORMED, AccessLogReader.RECORD_PATTERN_DEFAULT, dateFormat, AccessLogReader.REQUEST_PATTERN_DEFAULT);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * With no per-record allocation, as on the ingestion
+   */
+  @Benchmark
+  public boolean parseFieldsValid() {
+    return parser.parse(VALID, noopSink);
+  }
+
+  @Benchmark
+  public boolean parseFieldsMalformed() {
+    return parser.parse(MALFORMED, noopSink);
+  }
+
+  @Benchmark
+  public long parseDateAndTime() {
+    return parser.parseDateAndTime(DATE_AND_TIME, 0, DATE_AND_TIME.length());
+  }
+
+  @Benchmark
+  public Long parseDateAndTimeDateFormat() {
+    return AccessLogReader.parseDateAndTime(DATE_AND_TIME, dateFormat);
+  }
+
+  /**
+   * The timestamps of the consecutive seconds, defeating the cache of the latest second
+   */
+  @Benchmark
+  @OperationsPerInvocation(60)
+  public void parseDateAndTimeDistinct(Blackhole blackhole) {
+    for (String s : DISTINCT_DATES_AND_TIMES) {
+      blackhole.consume(parser.parseDateAndTime(s, 0, s.length()));
+    }
+  }
+
+  private static final String[] DISTINCT_DATES_AND_TIMES = new String[60];
+
+  static {
+    for (int second = 0; second < 60; second++) {
+      DISTINCT_DATES_AND_TIMES[second] = "07/Feb/2020:18:01:" + (second < 10 ? "0" : "") + second + " +0300";
+    }
+  }
+}
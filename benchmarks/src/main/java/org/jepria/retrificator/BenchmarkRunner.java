@@ -0,0 +1,28 @@
+package org.jepria.retrificator;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks as the JMH {@link Main} does, with the results written in json
+ * into the {@code jmh-result.json} file by default, to be tracked over time.
+ * <br/>
+ * Usage: {@code java -jar benchmarks.jar [<JMH options>] [<benchmark regexp>]}, e.g. {@code java -jar benchmarks.jar -f 1 Parsing}
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    final List<String> options = new ArrayList<>(Arrays.asList(args));
+    if (!options.contains("-rf")) {
+      options.add(0, "-rf");
+      options.add(1, "json");
+    }
+    if (!options.contains("-rff")) {
+      options.add(0, "-rff");
+      options.add(1, "jmh-result.json");
+    }
+    Main.main(options.toArray(new String[0]));
+  }
+}
@@ -0,0 +1,270 @@
+package org.jepria.retrificator;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the retrificator against the {@link FixtureGenerator generated} tomcat roots of the growing scale
+ * and reports the cost of each phase of the run, for the scaling curve (webapps by access log volume) to be compared between releases.
+ * <br/>
+ * Each phase runs in a separate JVM, for the peak RSS to be that of the phase:
+ * <ul>
+ * <li>{@code ingest}: the first ingestion of the entire access logs into an empty state</li>
+ * <li>{@code retrify}: the one-shot CLI run over the ingested state, retrifying the webapps</li>
+ * <li>{@code rerun}: the same CLI run repeated, with nothing new to ingest or retrify</li>
+ * </ul>
+ * For each phase the wall time, the peak RSS, the GC time and the bytes read (by the {@code read} calls, including the page cache hits)
+ * are reported. The RSS and the bytes read are taken from the {@code /proc}, so only on Linux, {@code -1} elsewhere.
+ * <br/>
+ * CLI options:
+ * <pre>
+ * --work-dir [<directory path>]: directory to generate the fixtures in, must not exist
+ * --apps [<int>,...]: numbers of webapps of the fixtures. Default 1000,10000
+ * --records-per-day [<long>,...]: numbers of access log records per day of the fixtures. Default 100000,1000000
+ * --days [<int>]: number of daily access log files. Default 7
+ * --seed [<long>]: random seed of the fixtures. Default 1
+ * --access-age [<int>]: the retrificator access age, in minutes. Default 1440 (1 day)
+ * --deploy-age [<int>]: the retrificator deploy age, in minutes. Default 43200 (30 days)
+ * --jvm-args [<args>]: space separated arguments of the phase JVMs, e.g. '-Xmx512m'
+ * --output [<file path>]: the json file to write the results into. Default e2e-result.json
+ * --keep: keep the fixtures after the run
+ * </pre>
+ */
+public class EndToEndBenchmark {
+
+  /**
+   * The marker of the phase result line in the phase JVM output
+   */
+  private static final String RESULT_MARKER = "E2E-RESULT: ";
+
+  /**
+   * The result of a phase at a scale
+   */
+  public static class Result {
+    public int apps;
+    public long recordsPerDay;
+    public int days;
+    public long logBytes;
+    public String phase;
+    public long wallMillis;
+    public long peakRssKb;
+    public long gcMillis;
+    public long gcCount;
+    public long bytesRead;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && "--phase".equals(args[0])) {
+      runPhase(args);
+      return;
+    }
+
+    File workDir = null;
+    List<Integer> appCounts = Arrays.asList(1000, 10000);
+    List<Long> recordCounts = Arrays.asList(100000L, 1000000L);
+    int days = 7;
+    long seed = 1;
+    int accessAgeMins = 1440;
+    int deployAgeMins = 43200;
+    List<String> jvmArgs = new ArrayList<>();
+    File output = new File("e2e-result.json");
+    boolean keep = false;
+
+    for (int i = 0; i < args.length; i++) {
+      final String arg = args[i];
+      if ("--work-dir".equals(arg)) {
+        workDir = new File(nextValue(args, ++i, arg));
+      } else if ("--apps".equals(arg)) {
+        appCounts = new ArrayList<>();
+        for (String value : nextValue(args, ++i, arg).split(",")) {
+          appCounts.add(Integer.parseInt(value.trim()));
+        }
+      } else if ("--records-per-day".equals(arg)) {
+        recordCounts = new ArrayList<>();
+        for (String value : nextValue(args, ++i, arg).split(",")) {
+          recordCounts.add(Long.parseLong(value.trim()));
+        }
+      } else if ("--days".equals(arg)) {
+        days = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--seed".equals(arg)) {
+        seed = Long.parseLong(nextValue(args, ++i, arg));
+      } else if ("--access-age".equals(arg)) {
+        accessAgeMins = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--deploy-age".equals(arg)) {
+        deployAgeMins = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--jvm-args".equals(arg)) {
+        jvmArgs = Arrays.asList(nextValue(args, ++i, arg).trim().split("\\s+"));
+      } else if ("--output".equals(arg)) {
+        output = new File(nextValue(args, ++i, arg));
+      } else if ("--keep".equals(arg)) {
+        keep = true;
+      } else {
+        throw new IllegalArgumentException("Unknown argument '" + arg + "'");
+      }
+    }
+    if (workDir == null) {
+      throw new IllegalArgumentException("The work directory is not specified");
+    }
+    if (workDir.exists()) {
+      throw new IllegalArgumentException("The work directory " + workDir + " already exists");
+    }
+
+    final List<Result> results = new ArrayList<>();
+    System.out.println(String.format("%8s %14s %14s %-8s %10s %12s %8s %14s", "apps", "records/day", "log bytes", "phase", "wall ms", "peak RSS kB", "GC ms", "bytes read"));
+    for (int apps : appCounts) {
+      for (long recordsPerDay : recordCounts) {
+        final File tomcatRoot = new File(workDir, apps + "x" + recordsPerDay + "/tomcat");
+        final File retrificatorRoot = new File(workDir, apps + "x" + recordsPerDay + "/retrificator");
+        final FixtureGenerator generator = new FixtureGenerator();
+        generator.apps = apps;
+        generator.recordsPerDay = recordsPerDay;
+        generator.days = days;
+        generator.seed = seed;
+        final long logBytes = generator.generate(tomcatRoot);
+        Files.createDirectories(retrificatorRoot.toPath());
+
+        for (String phase : Arrays.asList("ingest", "retrify", "rerun")) {
+          final Result result = forkPhase(phase, tomcatRoot, retrificatorRoot, accessAgeMins, deployAgeMins, jvmArgs);
+          result.apps = apps;
+          result.recordsPerDay = recordsPerDay;
+          result.days = days;
+          result.logBytes = logBytes;
+          results.add(result);
+          System.out.println(String.format("%8d %14d %14d %-8s %10d %12d %8d %14d", apps, recordsPerDay, logBytes, phase,
+                  result.wallMillis, result.peakRssKb, result.gcMillis, result.bytesRead));
+        }
+
+        if (!keep) {
+          delete(tomcatRoot.getParentFile().toPath());
+        }
+      }
+    }
+    if (!keep) {
+      Files.deleteIfExists(workDir.toPath());
+    }
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+      new GsonBuilder().setPrettyPrinting().create().toJson(results, writer);
+    }
+    System.out.println("Results are saved to " + output);
+  }
+
+  private static String nextValue(String[] args, int i, String option) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("The option '" + option + "' requires a value");
+    }
+    return args[i];
+  }
+
+  private static Result forkPhase(String phase, File tomcatRoot, File retrificatorRoot, int accessAgeMins, int deployAgeMins,
+                                  List<String> jvmArgs) throws IOException, InterruptedException {
+    final List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    for (String jvmArg : jvmArgs) {
+      if (!jvmArg.isEmpty()) {
+        command.add(jvmArg);
+      }
+    }
+    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), EndToEndBenchmark.class.getName(), "--phase", phase,
+            "-t", tomcatRoot.getAbsolutePath(), "-r", retrificatorRoot.getAbsolutePath(),
+            "-a", String.valueOf(accessAgeMins), "-d", String.valueOf(deployAgeMins)));
+
+    final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    Result result = null;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(RESULT_MARKER)) {
+          result = new Gson().fromJson(line.substring(RESULT_MARKER.length()), Result.class);
+        } else {
+          System.out.println(line);
+        }
+      }
+    }
+    final int exitCode = process.waitFor();
+    if (exitCode != 0 || result == null) {
+      throw new IllegalStateException("The phase '" + phase + "' failed with the exit code " + exitCode);
+    }
+    return result;
+  }
+
+  /**
+   * Runs a single phase in this JVM and prints its result
+   *
+   * @param args {@code --phase <phase>} followed by the CLI options
+   */
+  private static void runPhase(String[] args) throws IOException {
+    final String phase = args[1];
+    final String[] cliArgs = Arrays.copyOfRange(args, 2, args.length);
+
+    final long bytesReadBefore = readProcValue("/proc/self/io", "rchar:");
+    final long start = System.currentTimeMillis();
+
+    if ("ingest".equals(phase)) {
+      final File tomcatRoot = new File(cliArgs[1]);
+      final File retrificatorRoot = new File(cliArgs[3]);
+      final Retrificator retrificator = new Retrificator(new TomcatImpl(tomcatRoot), new File(retrificatorRoot, "retrificator-state.json"),
+              false, new File(retrificatorRoot, "retrificator-log.txt"));
+      retrificator.ingest();
+    } else if ("retrify".equals(phase) || "rerun".equals(phase)) {
+      CLI.main(cliArgs);
+    } else {
+      throw new IllegalArgumentException("Unknown phase '" + phase + "'");
+    }
+
+    final Result result = new Result();
+    result.phase = phase;
+    result.wallMillis = System.currentTimeMillis() - start;
+    result.peakRssKb = readProcValue("/proc/self/status", "VmHWM:");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      result.gcMillis += Math.max(0, gc.getCollectionTime());
+      result.gcCount += Math.max(0, gc.getCollectionCount());
+    }
+    final long bytesReadAfter = readProcValue("/proc/self/io", "rchar:");
+    result.bytesRead = bytesReadBefore == -1 || bytesReadAfter == -1 ? -1 : bytesReadAfter - bytesReadBefore;
+
+    System.out.println(RESULT_MARKER + new Gson().toJson(result));
+  }
+
+  /**
+   * @return the numeric value of the line of the {@code /proc} file starting with the key, or {@code -1} if there is no such
+   */
+  private static long readProcValue(String procFile, String key) {
+    try {
+      for (String line : Files.readAllLines(Paths.get(procFile), StandardCharsets.ISO_8859_1)) {
+        if (line.startsWith(key)) {
+          return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // not Linux
+    }
+    return -1;
+  }
+
+  private static void delete(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
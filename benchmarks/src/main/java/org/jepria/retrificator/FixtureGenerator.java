@@ -0,0 +1,360 @@
+package org.jepria.retrificator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a synthetic tomcat root for the end-to-end runs: the webapps directory and the daily rotated access logs.
+ * <br/>
+ * The webapps are a mix of the deployed wars, the wars not yet deployed, the retrified wars and the directories deployed with no war,
+ * some named with nested ({@code #}) and versioned ({@code ##}) context paths, deployed over the last 60 days.
+ * The requests are distributed over the webapps by Zipf's law (the popularity independent of the name),
+ * with a few hour-long bursts to otherwise unpopular webapps each day, some requests to no webapp
+ * and some malformed lines. The dormant webapps are no longer requested since a random day of the period
+ * (or not at all), for the latest accesses to spread over the period. The days are UTC ones, for the fixture not to depend on the default time zone.
+ * The same options, seed and reference time always produce the same fixture.
+ * <br/>
+ * CLI options:
+ * <pre>
+ * --apps [<int>]: number of webapps. Default 1000
+ * --days [<int>]: number of daily access log files, the last one for the current day. Default 7
+ * --records-per-day [<long>]: number of access log records per day (a record is about 100 bytes). Default 100000
+ * --malformed-ratio [<double>]: share of the malformed access log lines. Default 0.001
+ * --zipf-exponent [<double>]: exponent of the Zipf's distribution of the requests over the webapps. Default 1.0
+ * --dormant-ratio [<double>]: share of the dormant webapps. Default 0.3
+ * --war-size [<int>]: size of each war file, in kilobytes. Default 1
+ * --seed [<long>]: random seed. Default 1
+ * --now [<long>]: reference time (the end of the last access log), in milliseconds since the epoch. Default: the current time
+ * </pre>
+ * followed by the tomcat root directory to create
+ */
+public class FixtureGenerator {
+
+  public static void main(String[] args) throws IOException {
+    final FixtureGenerator generator = new FixtureGenerator();
+    File tomcatRoot = null;
+
+    for (int i = 0; i < args.length; i++) {
+      final String arg = args[i];
+      if ("--apps".equals(arg)) {
+        generator.apps = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--days".equals(arg)) {
+        generator.days = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--records-per-day".equals(arg)) {
+        generator.recordsPerDay = Long.parseLong(nextValue(args, ++i, arg));
+      } else if ("--malformed-ratio".equals(arg)) {
+        generator.malformedRatio = Double.parseDouble(nextValue(args, ++i, arg));
+      } else if ("--zipf-exponent".equals(arg)) {
+        generator.zipfExponent = Double.parseDouble(nextValue(args, ++i, arg));
+      } else if ("--dormant-ratio".equals(arg)) {
+        generator.dormantRatio = Double.parseDouble(nextValue(args, ++i, arg));
+      } else if ("--war-size".equals(arg)) {
+        generator.warSizeKb = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--seed".equals(arg)) {
+        generator.seed = Long.parseLong(nextValue(args, ++i, arg));
+      } else if ("--now".equals(arg)) {
+        generator.now = Long.parseLong(nextValue(args, ++i, arg));
+      } else if (tomcatRoot == null && !arg.startsWith("-")) {
+        tomcatRoot = new File(arg);
+      } else {
+        throw new IllegalArgumentException("Unknown argument '" + arg + "'");
+      }
+    }
+    if (tomcatRoot == null) {
+      throw new IllegalArgumentException("The tomcat root directory is not specified");
+    }
+
+    final long start = System.currentTimeMillis();
+    final long logBytes = generator.generate(tomcatRoot);
+    System.out.println("Generated " + generator.apps + " webapps and " + generator.days + " access log files of "
+            + logBytes + " bytes in total at " + tomcatRoot + " in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private static String nextValue(String[] args, int i, String option) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("The option '" + option + "' requires a value");
+    }
+    return args[i];
+  }
+
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  /**
+   * Max number of days ago the webapps have been deployed
+   */
+  private static final int DEPLOY_DAYS = 60;
+
+  /**
+   * Number of the bursts per day and the share of the records of the burst hour going to the burst webapp
+   */
+  private static final int BURSTS_PER_DAY = 3;
+  private static final double BURST_SHARE = 0.2;
+
+  /**
+   * Share of the requests to no webapp
+   */
+  private static final double UNKNOWN_SHARE = 0.02;
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  public int apps = 1000;
+  public int days = 7;
+  public long recordsPerDay = 100000;
+  public double malformedRatio = 0.001;
+  public double zipfExponent = 1.0;
+  public double dormantRatio = 0.3;
+  public int warSizeKb = 1;
+  public long seed = 1;
+  /**
+   * The reference time: the end of the last access log, the webapps are deployed before it
+   */
+  public long now = System.currentTimeMillis();
+
+  /**
+   * Creates the {@code webapps} and {@code logs} directories of the tomcat root
+   *
+   * @param tomcatRoot NotNull the directory to create, must not exist
+   * @return the total size of the access logs generated
+   * @throws IOException
+   */
+  public long generate(File tomcatRoot) throws IOException {
+    if (tomcatRoot.exists()) {
+      throw new IllegalArgumentException("The tomcat root " + tomcatRoot + " already exists");
+    }
+    final File webappsDir = new File(tomcatRoot, "webapps");
+    final File logsDir = new File(tomcatRoot, "logs");
+    Files.createDirectories(webappsDir.toPath());
+    Files.createDirectories(logsDir.toPath());
+
+    final Random random = new Random(seed);
+
+    final String[] names = new String[apps];
+    final boolean[] retrified = new boolean[apps];
+    for (int i = 0; i < apps; i++) {
+      names[i] = nameOf(i);
+      retrified[i] = createWebapp(webappsDir, names[i], i % 10, now - (long) (random.nextDouble() * DEPLOY_DAYS * DAY), random);
+    }
+
+    // the popularity rank of each webapp, shuffled for the popularity to be independent of the name
+    final int[] byRank = new int[apps];
+    for (int i = 0; i < apps; i++) {
+      byRank[i] = i;
+    }
+    for (int i = apps - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final int swap = byRank[i];
+      byRank[i] = byRank[j];
+      byRank[j] = swap;
+    }
+    final double[] cumulative = new double[apps];
+    double sum = 0;
+    for (int rank = 0; rank < apps; rank++) {
+      sum += 1 / Math.pow(rank + 1, zipfExponent);
+      cumulative[rank] = sum;
+    }
+
+    // the UTC midnight, as the access log filenames are formatted in UTC
+    final long today = now - now % DAY;
+    final SimpleDateFormat filenameDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    filenameDateFormat.setTimeZone(UTC);
+
+    // the start of the day since which the webapp is no longer requested, or MAX_VALUE for the active webapps
+    final long[] dormantSince = new long[apps];
+    for (int i = 0; i < apps; i++) {
+      dormantSince[i] = random.nextDouble() < dormantRatio ? today - random.nextInt(days) * DAY : Long.MAX_VALUE;
+    }
+
+    long logBytes = 0;
+    for (int day = days - 1; day >= 0; day--) {
+      final long dayStart = today - day * DAY;
+      final long dayEnd = day == 0 ? now : dayStart + DAY;
+      final File accessLog = new File(logsDir, "localhost_access_log." + filenameDateFormat.format(new Date(dayStart)) + ".txt");
+      logBytes += writeAccessLog(accessLog, dayStart, dayEnd, names, retrified, dormantSince, byRank, cumulative, random);
+      accessLog.setLastModified(dayEnd);
+    }
+    return logBytes;
+  }
+
+  /**
+   * @return the webapp name, every tenth one nested and every tenth one versioned
+   */
+  private static String nameOf(int i) {
+    switch (i % 10) {
+      case 7: return "group" + i % 20 + "#app" + i;
+      case 8: return "app" + i + "##" + i % 5;
+      default: return "app" + i;
+    }
+  }
+
+  /**
+   * @param kind {@code 0..9}: the deployed war mostly, the not deployed war for {@code 6}, the retrified war for {@code 4} and {@code 5},
+   * the deployed directory with no war for {@code 9}
+   * @return whether the webapp is retrified
+   */
+  private boolean createWebapp(File webappsDir, String name, int kind, long deployTime, Random random) throws IOException {
+    if (kind == 9) {
+      final File deployed = new File(webappsDir, name);
+      Files.createDirectories(new File(deployed, "WEB-INF").toPath());
+      setTimes(deployed.toPath(), deployTime);
+      return false;
+    }
+
+    final boolean retrified = kind == 4 || kind == 5;
+    final File war = new File(webappsDir, name + (retrified ? ".war.retro" : ".war"));
+    writeWar(war, deployTime, random);
+    setTimes(war.toPath(), deployTime);
+    if (!retrified && kind != 6) {
+      final File deployed = new File(webappsDir, name);
+      Files.createDirectories(new File(deployed, "WEB-INF").toPath());
+      setTimes(deployed.toPath(), deployTime);
+    }
+    return retrified;
+  }
+
+  private void writeWar(File war, long time, Random random) throws IOException {
+    // the entry time is stored as the local one, shifted for the war to be the same in any time zone
+    final long entryTime = time - TimeZone.getDefault().getOffset(time);
+    try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(war)))) {
+      out.putNextEntry(newEntry("WEB-INF/web.xml", entryTime));
+      out.write("<web-app/>".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+      out.putNextEntry(newEntry("WEB-INF/lib/library.jar", entryTime));
+      final byte[] content = new byte[warSizeKb * 1024];
+      random.nextBytes(content);
+      out.write(content);
+      out.closeEntry();
+    }
+  }
+
+  private static ZipEntry newEntry(String name, long time) {
+    final ZipEntry entry = new ZipEntry(name);
+    entry.setTime(time);
+    return entry;
+  }
+
+  /**
+   * Sets both the last modified and last access times, for the deploy time of the war not to depend on the generation time
+   */
+  private static void setTimes(Path path, long time) throws IOException {
+    Files.getFileAttributeView(path, BasicFileAttributeView.class).setTimes(FileTime.fromMillis(time), FileTime.fromMillis(time), null);
+  }
+
+  /**
+   * Writes the records with the timestamps ascending evenly from the day start to the day end
+   *
+   * @return the size of the file written
+   */
+  private long writeAccessLog(File accessLog, long dayStart, long dayEnd, String[] names, boolean[] retrified, long[] dormantSince,
+                              int[] byRank, double[] cumulative, Random random) throws IOException {
+    // the burst hours of the day and the (unpopular) webapps requested in the bursts
+    final long[] burstStarts = new long[BURSTS_PER_DAY];
+    final int[] burstApps = new int[BURSTS_PER_DAY];
+    for (int i = 0; i < BURSTS_PER_DAY; i++) {
+      burstStarts[i] = dayStart + (long) (random.nextDouble() * (DAY - HOUR));
+      burstApps[i] = byRank[apps / 2 + random.nextInt(apps - apps / 2)];
+      if (dormantSince[burstApps[i]] <= dayStart) {
+        burstApps[i] = -1;
+      }
+    }
+
+    final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+    dateFormat.setTimeZone(UTC);
+    final StringBuilder record = new StringBuilder();
+    final byte[] bytes = new byte[1024];
+    long size = 0;
+    long formattedSecond = -1;
+    String formattedDate = null;
+
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(accessLog), 1024 * 1024)) {
+      for (long n = 0; n < recordsPerDay; n++) {
+        final long time = dayStart + (dayEnd - dayStart) * n / recordsPerDay;
+        if (time / 1000 != formattedSecond) {
+          formattedSecond = time / 1000;
+          formattedDate = dateFormat.format(new Date(time));
+        }
+
+        record.setLength(0);
+        if (random.nextDouble() < malformedRatio) {
+          appendMalformed(record, formattedDate, random);
+        } else {
+          int app = -1;
+          for (int i = 0; i < BURSTS_PER_DAY; i++) {
+            if (burstApps[i] != -1 && time >= burstStarts[i] && time < burstStarts[i] + HOUR && random.nextDouble() < BURST_SHARE) {
+              app = burstApps[i];
+            }
+          }
+          if (app == -1 && random.nextDouble() >= UNKNOWN_SHARE) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[apps - 1]);
+            app = byRank[rank < 0 ? -rank - 1 : rank];
+            if (dormantSince[app] <= dayStart) {
+              // the request to a dormant webapp goes nowhere
+              app = -1;
+            }
+          }
+          appendRecord(record, formattedDate, app == -1 ? null : names[app], app != -1 && retrified[app], random);
+        }
+
+        final int length = record.length();
+        for (int i = 0; i < length; i++) {
+          bytes[i] = (byte) record.charAt(i);
+        }
+        out.write(bytes, 0, length);
+        size += length;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Appends a record in the 'common' format
+   *
+   * @param webappName Nullable: a request to no webapp
+   */
+  private static void appendRecord(StringBuilder record, String date, String webappName, boolean retrified, Random random) {
+    record.append("10.").append(random.nextInt(256)).append('.').append(random.nextInt(256)).append('.').append(random.nextInt(256))
+            .append(" - - [").append(date).append("] \"GET /");
+    if (webappName == null) {
+      record.append("unknown").append(random.nextInt(100));
+    } else {
+      // the context path of the webapp
+      final int version = webappName.indexOf("##");
+      record.append((version == -1 ? webappName : webappName.substring(0, version)).replace('#', '/'));
+    }
+    record.append("/resource/").append(random.nextInt(1000)).append("?id=").append(random.nextInt(100000)).append(" HTTP/1.1\" ");
+    if (webappName == null || retrified) {
+      record.append("404 -");
+    } else {
+      record.append("200 ").append(random.nextInt(100000));
+    }
+    record.append('\n');
+  }
+
+  private static void appendMalformed(StringBuilder record, String date, Random random) {
+    switch (random.nextInt(3)) {
+      case 0:
+        // truncated
+        record.append("10.0.0.1 - - [").append(date, 0, random.nextInt(date.length()));
+        break;
+      case 1:
+        // unquoted request line
+        record.append("10.0.0.1 - - [").append(date).append("] GET /app0/ HTTP/1.1 200 0");
+        break;
+      default:
+        // binary garbage
+        for (int i = 0; i < 40; i++) {
+          record.append((char) (0x80 + random.nextInt(0x80)));
+        }
+        break;
+    }
+    record.append('\n');
+  }
+}
@@ -0,0 +1,95 @@
+package org.jepria.retrificator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Matching of the webapp names against the ignore regexps: the compiled policy
+ * versus the regexps matched one by one, either precompiled or compiled on each match (as by the {@code String#matches}),
+ * over the names mostly matching none of them
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IgnoredAppBenchmark {
+
+  private static final int NAME_COUNT = 1000;
+
+  @Param({"50", "200"})
+  public int regexCount;
+
+  private RetrificationPolicy policy;
+  private List<String> regexps;
+  private Pattern[] patterns;
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    regexps = new ArrayList<>();
+    for (int i = 0; i < regexCount; i++) {
+      switch (i % 4) {
+        case 0: regexps.add("service" + i); break;
+        case 1: regexps.add("service" + i + "##.*"); break;
+        case 2: regexps.add(".*-admin" + i); break;
+        default: regexps.add("(test|demo)" + i + "-[a-z]+"); break;
+      }
+    }
+    policy = RetrificationPolicy.ofIgnoreAppNameRegexps(regexps);
+    patterns = regexps.stream().map(Pattern::compile).toArray(Pattern[]::new);
+
+    names = new String[NAME_COUNT];
+    for (int i = 0; i < NAME_COUNT; i++) {
+      // every tenth name is ignored
+      names[i] = i % 10 == 0 ? "service" + (i / 10 % regexCount / 4 * 4) : "app" + i + "##" + i % 5;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NAME_COUNT)
+  public void policy(Blackhole blackhole) {
+    for (String name : names) {
+      blackhole.consume(policy.resolve(name));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NAME_COUNT)
+  public void patternLoop(Blackhole blackhole) {
+    for (String name : names) {
+      boolean ignored = false;
+      for (Pattern pattern : patterns) {
+        if (pattern.matcher(name).matches()) {
+          ignored = true;
+          break;
+        }
+      }
+      blackhole.consume(ignored);
+    }
+  }
+
+  /**
+   * As the ignored app check did before the policy: each regexp compiled on each match
+   */
+  @Benchmark
+  @OperationsPerInvocation(NAME_COUNT)
+  public void stringMatchesLoop(Blackhole blackhole) {
+    for (String name : names) {
+      boolean ignored = false;
+      for (String regexp : regexps) {
+        if (name.matches(regexp)) {
+          ignored = true;
+          break;
+        }
+      }
+      blackhole.consume(ignored);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package org.jepria.retrificator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folding of an access log into the latest access map: the records of a synthetic log
+ * attributed to the webapps by the context resolver, either field by field as on the ingestion, or record by record
+ * from the record stream
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LatestAccessMapBenchmark {
+
+  @Param({"100", "2000"})
+  public int webappCount;
+
+  @Param({"100000"})
+  public int recordCount;
+
+  private byte[] log;
+  private ContextResolver resolver;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(1);
+    final List<String> names = new ArrayList<>();
+    for (int i = 0; i < webappCount; i++) {
+      names.add("app" + i);
+    }
+    resolver = new ContextResolver(names);
+
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < recordCount; i++) {
+      final int second = i % 60;
+      sb.append("10.50.132.").append(random.nextInt(256)).append(" - - [07/Feb/2020:18:").append(i / 60 % 60 < 10 ? "0" : "").append(i / 60 % 60)
+              .append(':').append(second < 10 ? "0" : "").append(second).append(" +0300] \"GET /app").append(random.nextInt(webappCount))
+              .append("/resource/").append(random.nextInt(1000)).append("?q=1 HTTP/1.1\" 200 ").append(random.nextInt(100000)).append('\n');
+    }
+    log = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * As on the ingestion: no per-record allocation
+   */
+  @Benchmark
+  public LatestAccessMap parseIntoLatestAccessMap() throws IOException {
+    final LatestAccessMap latestAccessMap = new LatestAccessMap();
+    AccessLogReader.parse(new ByteArrayInputStream(log), new AccessLogParser.FieldSink() {
+      private long dateAndTime;
+
+      @Override
+      public void dateAndTime(long dateAndTime) {
+        this.dateAndTime = dateAndTime;
+      }
+
+      @Override
+      public void url(CharSequence s, int start, int end) {
+        final String name = resolver.resolve(s, start, end);
+        if (name != null) {
+          latestAccessMap.putMax(name, dateAndTime);
+        }
+      }
+    }, (line, offset) -> {
+    });
+    return latestAccessMap;
+  }
+
+  /**
+   * A record allocated per line, attributed the same way
+   */
+  @Benchmark
+  public Map<String, Long> collectLatestAccessMap() {
+    return AccessLogReader.stream(new ByteArrayInputStream(log)).collect(HashMap::new, (map, record) -> {
+      final String name = resolver.resolve(record.request.url, 0, record.request.url.length());
+      if (name != null) {
+        map.merge(name, record.dateAndTime, Math::max);
+      }
+    }, (map, other) -> other.forEach((name, latestAccess) -> map.merge(name, latestAccess, Math::max)));
+  }
+}
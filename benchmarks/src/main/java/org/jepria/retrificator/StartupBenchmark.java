@@ -0,0 +1,194 @@
+package org.jepria.retrificator;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time to exit of a no-op CLI run (a quiet tomcat: nothing new in the access logs, nothing to retrify),
+ * the cost of the runs scheduled often (e.g. by the cron) that is dominated by the JVM start and the class loading,
+ * for the startup to be compared between the builds.
+ * <br/>
+ * Each retrificator jar given is run as is, and also with the class-data sharing archive {@code retrificator.jsa}
+ * next to it, if there is one (as built by the {@code cds} profile). The runs of the variants are interleaved,
+ * each variant has its own state, ingested by a warm-up run not measured.
+ * <br/>
+ * CLI options:
+ * <pre>
+ * --jar [<file path>]: the retrificator jar to run, repeatable (e.g. the previous release and the current build)
+ * --work-dir [<directory path>]: directory to generate the fixture in, must not exist
+ * --apps [<int>]: number of webapps of the fixture. Default 100
+ * --runs [<int>]: number of the measured runs of each variant. Default 20
+ * --output [<file path>]: the json file to write the results into. Default startup-result.json
+ * --keep: keep the fixture after the run
+ * </pre>
+ */
+public class StartupBenchmark {
+
+  /**
+   * The result of a variant
+   */
+  public static class Result {
+    public String jar;
+    public boolean cds;
+    public int runs;
+    public long minMillis;
+    public long medianMillis;
+    public long p90Millis;
+    public long maxMillis;
+  }
+
+  private static final String SERVER_XML = "<Server><Service name=\"Catalina\"><Engine name=\"Catalina\" defaultHost=\"localhost\"><Host name=\"localhost\" appBase=\"webapps\">\n"
+          + "  <Valve className=\"org.apache.catalina.valves.AccessLogValve\" directory=\"logs\" prefix=\"localhost_access_log\" suffix=\".txt\" pattern=\"common\"/>\n"
+          + "</Host></Engine></Service></Server>\n";
+
+  public static void main(String[] args) throws Exception {
+    final List<File> jars = new ArrayList<>();
+    File workDir = null;
+    int apps = 100;
+    int runs = 20;
+    File output = new File("startup-result.json");
+    boolean keep = false;
+
+    for (int i = 0; i < args.length; i++) {
+      final String arg = args[i];
+      if ("--jar".equals(arg)) {
+        jars.add(new File(nextValue(args, ++i, arg)).getCanonicalFile());
+      } else if ("--work-dir".equals(arg)) {
+        workDir = new File(nextValue(args, ++i, arg));
+      } else if ("--apps".equals(arg)) {
+        apps = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--runs".equals(arg)) {
+        runs = Integer.parseInt(nextValue(args, ++i, arg));
+      } else if ("--output".equals(arg)) {
+        output = new File(nextValue(args, ++i, arg));
+      } else if ("--keep".equals(arg)) {
+        keep = true;
+      } else {
+        throw new IllegalArgumentException("Unknown argument '" + arg + "'");
+      }
+    }
+    if (jars.isEmpty()) {
+      throw new IllegalArgumentException("No jar is specified");
+    }
+    if (workDir == null) {
+      throw new IllegalArgumentException("The work directory is not specified");
+    }
+    if (workDir.exists()) {
+      throw new IllegalArgumentException("The work directory " + workDir + " already exists");
+    }
+
+    final File tomcatRoot = new File(workDir, "tomcat");
+    final FixtureGenerator generator = new FixtureGenerator();
+    generator.apps = apps;
+    generator.days = 3;
+    generator.recordsPerDay = 100L * apps;
+    generator.generate(tomcatRoot);
+    Files.createDirectories(new File(tomcatRoot, "conf").toPath());
+    Files.write(new File(tomcatRoot, "conf/server.xml").toPath(), SERVER_XML.getBytes(StandardCharsets.UTF_8));
+
+    final List<Result> results = new ArrayList<>();
+    final List<List<String>> commands = new ArrayList<>();
+    for (File jar : jars) {
+      if (!jar.isFile()) {
+        throw new IllegalArgumentException("The jar " + jar + " does not exist");
+      }
+      final File jsa = new File(jar.getParentFile(), "retrificator.jsa");
+      for (boolean cds : jsa.isFile() ? Arrays.asList(false, true) : Collections.singletonList(false)) {
+        final Result result = new Result();
+        result.jar = jar.getPath();
+        result.cds = cds;
+        result.runs = runs;
+        results.add(result);
+
+        final File retrificatorRoot = new File(workDir, "retrificator-" + results.size());
+        Files.createDirectories(retrificatorRoot.toPath());
+        final List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (cds) {
+          command.addAll(Arrays.asList("-Xshare:auto", "-Xlog:cds*=off", "-XX:SharedArchiveFile=" + jsa.getPath()));
+        }
+        command.addAll(Arrays.asList("-jar", jar.getPath(), "-t", tomcatRoot.getAbsolutePath(), "-r", retrificatorRoot.getAbsolutePath(),
+                "-a", "9999999", "-d", "9999999"));
+        commands.add(command);
+
+        // the first ingestion, not measured
+        run(command, workDir);
+      }
+    }
+
+    final long[][] millis = new long[commands.size()][runs];
+    for (int run = 0; run < runs; run++) {
+      for (int i = 0; i < commands.size(); i++) {
+        millis[i][run] = run(commands.get(i), workDir);
+      }
+    }
+
+    System.out.println(String.format("%-60s %-4s %8s %8s %8s %8s", "jar", "cds", "min ms", "median", "p90", "max"));
+    for (int i = 0; i < results.size(); i++) {
+      final Result result = results.get(i);
+      final long[] sorted = millis[i].clone();
+      Arrays.sort(sorted);
+      result.minMillis = sorted[0];
+      result.medianMillis = sorted[sorted.length / 2];
+      result.p90Millis = sorted[(int) Math.ceil(sorted.length * 0.9) - 1];
+      result.maxMillis = sorted[sorted.length - 1];
+      System.out.println(String.format("%-60s %-4s %8d %8d %8d %8d", result.jar, result.cds ? "yes" : "no",
+              result.minMillis, result.medianMillis, result.p90Millis, result.maxMillis));
+    }
+
+    if (!keep) {
+      delete(workDir.toPath());
+    }
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+      new GsonBuilder().setPrettyPrinting().create().toJson(results, writer);
+    }
+    System.out.println("Results are saved to " + output);
+  }
+
+  private static String nextValue(String[] args, int i, String option) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("The option '" + option + "' requires a value");
+    }
+    return args[i];
+  }
+
+  /**
+   * @return the time from the process start to its exit, in milliseconds
+   */
+  private static long run(List<String> command, File workDir) throws IOException, InterruptedException {
+    final long start = System.nanoTime();
+    final Process process = new ProcessBuilder(command).redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(workDir, "output.txt"))).start();
+    final int exitCode = process.waitFor();
+    final long millis = (System.nanoTime() - start) / 1000000;
+    if (exitCode != 0) {
+      throw new IllegalStateException("The run " + command + " failed with the exit code " + exitCode + ", see " + new File(workDir, "output.txt"));
+    }
+    return millis;
+  }
+
+  private static void delete(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,86 @@
+package org.jepria.retrificator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistence of the state: the incremental save of a run changing a percent of the accesses,
+ * the full snapshot write and the load of the snapshot
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StateStoreBenchmark {
+
+  @Param({"1000", "10000"})
+  public int webappCount;
+
+  private Path dir;
+  private StateStore store;
+  private Retrificator.State state;
+  private long time = 1581087660000L;
+  private int nextChanged;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("retrificator-benchmark");
+    store = new StateStore(dir.resolve("retrificator-state.json").toFile());
+
+    state = store.load();
+    for (int i = 0; i < webappCount; i++) {
+      state.latestAccessMap.put("app" + i, time - i * 1000L);
+      if (i % 10 == 0) {
+        state.retrificationOutcomes.put("retro" + i, new RetrificationOutcome(RetrificationOutcome.Status.UNDEPLOYED, time));
+      }
+    }
+    for (int i = 0; i < 30; i++) {
+      AccessLogCheckpoint checkpoint = new AccessLogCheckpoint();
+      checkpoint.fileKey = "(dev=803,ino=" + (1000 + i) + ")";
+      checkpoint.fingerprint = i * 31L;
+      checkpoint.fingerprintLength = AccessLogCheckpoint.FINGERPRINT_LENGTH;
+      checkpoint.offset = checkpoint.size = 1024L * 1024 * i;
+      state.accessLogCheckpoints.put("localhost_access_log." + i + ".txt", checkpoint);
+    }
+    store.compact(state);
+    state = store.load();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    for (File file : dir.toFile().listFiles()) {
+      Files.delete(file.toPath());
+    }
+    Files.delete(dir);
+  }
+
+  /**
+   * A run of the retrificator accessing 1% of the webapps
+   */
+  @Benchmark
+  public void save() throws IOException {
+    time += 1000;
+    for (int i = 0; i < Math.max(1, webappCount / 100); i++) {
+      state.latestAccessMap.put("app" + nextChanged, time);
+      nextChanged = (nextChanged + 1) % webappCount;
+    }
+    store.save(state);
+  }
+
+  @Benchmark
+  public void compact() throws IOException {
+    store.compact(state);
+  }
+
+  @Benchmark
+  public Retrificator.State load() throws IOException {
+    return store.load();
+  }
+}
@@ -0,0 +1,82 @@
+package org.jepria.retrificator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing of the webapps directory: a synthetic directory of wars, retrified wars and deployed directories
+ * with the given number of entries in total
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebappInventoryBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int entryCount;
+
+  private Path root;
+  private File webappsDir;
+  private TomcatImpl tomcat;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("retrificator-benchmark");
+    webappsDir = Files.createDirectory(root.resolve("webapps")).toFile();
+    final File logsDir = Files.createDirectory(root.resolve("logs")).toFile();
+
+    // a third of the webapps retrified, the rest deployed from the war
+    for (int i = 0, entry = 0; entry < entryCount; i++) {
+      final String name = (i % 10 == 0 ? "app" + i + "##" + i % 7 : "app" + i);
+      if (i % 3 == 0) {
+        Files.createFile(new File(webappsDir, name + ".war.retro").toPath());
+        entry++;
+      } else {
+        Files.createFile(new File(webappsDir, name + ".war").toPath());
+        entry++;
+        if (entry < entryCount) {
+          Files.createDirectory(new File(webappsDir, name).toPath());
+          entry++;
+        }
+      }
+    }
+
+    tomcat = new TomcatImpl(webappsDir, logsDir, null);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  @Benchmark
+  public Collection<Webapp> getWebapps() {
+    return tomcat.getWebapps();
+  }
+
+  @Benchmark
+  public WebappInventory scan() {
+    return WebappInventory.scan(webappsDir);
+  }
+}
@@ -0,0 +1,282 @@
+package org.jepria.retrificator;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Request counts of the webapps by time buckets, for the retrification strategies to be evaluated against the past traffic
+ * without re-reading the access logs.
+ * <br/>
+ * The buckets are hourly for the recent {@link #HOURLY_DAYS} days. On {@link #downsample} the older buckets are merged into
+ * daily ones, and the buckets older than {@link #RETENTION_DAYS} days are dropped, so a webapp has at most
+ * {@code 24 * HOURLY_DAYS + RETENTION_DAYS} buckets however long its history is.
+ * A bucket start is the number of hours since the epoch; a daily bucket starts at the UTC midnight.
+ * <br/>
+ * Not thread-safe.
+ */
+class AccessHistogram {
+
+  public static final int HOURLY_DAYS = 14;
+  public static final int RETENTION_DAYS = 400;
+
+  static final long HOUR = 60 * 60 * 1000L;
+
+  /**
+   * Key: webapp name (or the first url path segment, as in the latest access map); value: the buckets
+   */
+  final Map<String, Series> series = new HashMap<>();
+
+  /**
+   * The bucket start (hours since the epoch) from which the buckets are hourly, the earlier buckets are daily
+   */
+  int hourlySince = Integer.MIN_VALUE;
+
+  /**
+   * The timestamp from which all requests are counted: the requests before it (processed before the histogram existed,
+   * or dropped by the retention) are not
+   */
+  long coveredSince;
+
+  /**
+   * Whether changed since the last {@link AccessHistogramStore#save save}
+   */
+  boolean modified;
+
+  /**
+   * The time buckets of a single webapp, sorted by the start once {@link #normalize normalized}
+   */
+  static final class Series {
+    int[] starts;
+    int[] counts;
+    int size;
+    /**
+     * Whether the buckets are sorted by the start, with no duplicate starts
+     */
+    private boolean sorted = true;
+    /**
+     * The size after the latest normalization
+     */
+    private int normalizedSize;
+
+    Series() {
+      this(4);
+    }
+
+    Series(int capacity) {
+      starts = new int[capacity];
+      counts = new int[capacity];
+    }
+
+    /**
+     * Adds the count to the bucket, in constant time for the bucket last added to or for a newer one.
+     * An older bucket (the records or the files out of order) is added to in place if the buckets are sorted,
+     * otherwise appended as a duplicate, and the duplicates are merged by the normalization once they double the size
+     */
+    void add(int start, int count) {
+      if (size > 0 && starts[size - 1] == start) {
+        counts[size - 1] = saturatedAdd(counts[size - 1], count);
+        return;
+      }
+      if (sorted && size > 0 && start < starts[size - 1]) {
+        final int i = Arrays.binarySearch(starts, 0, size, start);
+        if (i >= 0) {
+          counts[i] = saturatedAdd(counts[i], count);
+          return;
+        }
+        sorted = false;
+      }
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      starts[size] = start;
+      counts[size] = count;
+      size++;
+      if (!sorted && size >= Math.max(64, normalizedSize * 2)) {
+        normalize();
+      }
+    }
+    
+    /**
+     * Sorts the buckets by the start and merges the ones of the same start
+     */
+    void normalize() {
+      if (!sorted) {
+        // the start in the high bits, the index in the low ones
+        final long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+          keys[i] = (long) starts[i] << 32 | i;
+        }
+        Arrays.sort(keys);
+        final int[] sortedStarts = new int[starts.length];
+        final int[] sortedCounts = new int[counts.length];
+        int n = 0;
+        for (long key : keys) {
+          final int start = (int) (key >> 32);
+          final int count = counts[(int) key];
+          if (n > 0 && sortedStarts[n - 1] == start) {
+            sortedCounts[n - 1] = saturatedAdd(sortedCounts[n - 1], count);
+          } else {
+            sortedStarts[n] = start;
+            sortedCounts[n] = count;
+            n++;
+          }
+        }
+        starts = sortedStarts;
+        counts = sortedCounts;
+        size = n;
+        sorted = true;
+      }
+      normalizedSize = size;
+    }
+
+    /**
+     * @return the total count of the buckets ending after the start (so the bucket the start falls into is counted entirely)
+     * and starting before the end, in hours since the epoch
+     */
+    long count(int fromHour, int toHour, int hourlySince) {
+      normalize();
+      long total = 0;
+      for (int i = size - 1; i >= 0; i--) {
+        final int start = starts[i];
+        final int end = start < hourlySince ? start + 24 : start + 1;
+        if (end <= fromHour) {
+          break;
+        }
+        if (start < toHour) {
+          total += counts[i];
+        }
+      }
+      return total;
+    }
+
+    private static int saturatedAdd(int a, int b) {
+      final long sum = (long) a + b;
+      return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+    }
+  }
+
+  /**
+   * Counts a request
+   *
+   * @param name NotNull the webapp name
+   * @param time the request timestamp
+   */
+  public void add(String name, long time) {
+    Series s = series.get(name);
+    if (s == null) {
+      s = new Series();
+      series.put(name, s);
+    }
+    s.add(bucketStart(toHour(time)), 1);
+    modified = true;
+  }
+
+  /**
+   * Adds the counts of the other histogram to this one, in the buckets of this one
+   */
+  public void merge(AccessHistogram other) {
+    for (Map.Entry<String, Series> entry : other.series.entrySet()) {
+      final Series from = entry.getValue();
+      if (from.size == 0) {
+        continue;
+      }
+      from.normalize();
+      Series s = series.get(entry.getKey());
+      if (s == null) {
+        s = new Series(Math.max(4, from.size));
+        series.put(entry.getKey(), s);
+      }
+      for (int i = 0; i < from.size; i++) {
+        s.add(bucketStart(from.starts[i]), from.counts[i]);
+      }
+      modified = true;
+    }
+  }
+
+  /**
+   * @return the number of the requests to the webapp from the time to the time, at the bucket resolution:
+   * the bucket the start time falls into is counted entirely
+   */
+  public long count(String name, long fromTime, long toTime) {
+    final Series s = series.get(name);
+    return s == null ? 0 : s.count(toHour(fromTime), toHour(toTime) + 1, hourlySince);
+  }
+
+  /**
+   * @return whether all requests since the time are counted
+   */
+  public boolean covers(long time) {
+    return time >= coveredSince;
+  }
+
+  /**
+   * Removes the series of the webapps not present anymore
+   *
+   * @param names NotNull the names of the webapps to keep
+   */
+  public void retainAll(Collection<String> names) {
+    if (series.keySet().retainAll(names)) {
+      modified = true;
+    }
+  }
+
+  /**
+   * Merges the hourly buckets older than {@link #HOURLY_DAYS} days into the daily ones
+   * and drops the buckets older than {@link #RETENTION_DAYS} days
+   *
+   * @param now
+   */
+  public void downsample(long now) {
+    final int today = toHour(now) - Math.floorMod(toHour(now), 24);
+    final int newHourlySince = today - HOURLY_DAYS * 24;
+    final int retainedSince = today - RETENTION_DAYS * 24;
+    if (newHourlySince == hourlySince) {
+      return;
+    }
+    hourlySince = newHourlySince;
+    coveredSince = Math.max(coveredSince, retainedSince * HOUR);
+
+    final Iterator<Series> iterator = series.values().iterator();
+    while (iterator.hasNext()) {
+      final Series s = iterator.next();
+      s.normalize();
+      int size = 0;
+      for (int i = 0; i < s.size; i++) {
+        if (s.starts[i] < retainedSince) {
+          continue;
+        }
+        final int start = bucketStart(s.starts[i]);
+        if (size > 0 && s.starts[size - 1] == start) {
+          s.counts[size - 1] = Series.saturatedAdd(s.counts[size - 1], s.counts[i]);
+        } else {
+          s.starts[size] = start;
+          s.counts[size] = s.counts[i];
+          size++;
+        }
+      }
+      s.size = size;
+      if (size == 0) {
+        iterator.remove();
+      } else if (size < s.starts.length / 4) {
+        s.starts = Arrays.copyOf(s.starts, size * 2);
+        s.counts = Arrays.copyOf(s.counts, size * 2);
+      }
+    }
+    modified = true;
+  }
+
+  /**
+   * @return the start of the bucket the hour falls into
+   */
+  private int bucketStart(int hour) {
+    return hour < hourlySince ? hour - Math.floorMod(hour, 24) : hour;
+  }
+
+  static int toHour(long time) {
+    return (int) Math.floorDiv(time, HOUR);
+  }
+}
@@ -0,0 +1,196 @@
+package org.jepria.retrificator;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Persistent storage of the {@link AccessHistogram}: a single binary file, replaced atomically by renaming a temporary file.
+ * <br/>
+ * The numbers are varints (7 bits per byte, the least significant group first), the signed ones zigzag-encoded:
+ * <pre>
+ * magic "RAH" version(1)
+ * hourlySince coveredSince seriesCount
+ * for each series: nameLength name(UTF-8) bucketCount, for each bucket: startDelta count
+ * </pre>
+ * where the start delta is that from the previous bucket of the series (the first one from zero),
+ * so a bucket less than 64 hours after the previous one takes a single byte, and so does a count below 128.
+ * <br/>
+ * Not thread-safe.
+ */
+class AccessHistogramStore {
+
+  private static final int MAGIC = 'R' << 24 | 'A' << 16 | 'H' << 8 | 1;
+
+  private final File file;
+
+  /**
+   * @param file NotNull
+   */
+  public AccessHistogramStore(File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @param mapped whether to read the file through a memory mapping, for the read-only use only:
+   *               the mapping is released by the garbage collector only, and until then the file cannot be replaced on some
+   *               platforms (Windows), so a histogram to be saved back is read into the heap
+   * @return the histogram read, or {@code null} if there is no file
+   * @throws IOException
+   */
+  public AccessHistogram load(boolean mapped) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (mapped) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } else {
+        buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+          // read fully
+        }
+        buffer.flip();
+      }
+    }
+    try {
+      return decode(buffer);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Failed to read the access histogram " + file, e);
+    }
+  }
+
+  private static AccessHistogram decode(ByteBuffer buffer) {
+    if (buffer.getInt() != MAGIC) {
+      throw new IllegalArgumentException("Not an access histogram file, or of an unsupported version");
+    }
+    final AccessHistogram histogram = new AccessHistogram();
+    histogram.hourlySince = (int) readSigned(buffer);
+    histogram.coveredSince = readSigned(buffer);
+    final long seriesCount = readVarint(buffer);
+    byte[] name = new byte[64];
+    for (long i = 0; i < seriesCount; i++) {
+      final int nameLength = readLength(buffer, 1);
+      if (nameLength > name.length) {
+        name = new byte[Math.max(nameLength, name.length * 2)];
+      }
+      buffer.get(name, 0, nameLength);
+      // a bucket takes two bytes at least
+      final int bucketCount = readLength(buffer, 2);
+      final AccessHistogram.Series series = new AccessHistogram.Series(Math.max(4, bucketCount));
+      int start = 0;
+      for (int j = 0; j < bucketCount; j++) {
+        start += (int) readSigned(buffer);
+        series.starts[j] = start;
+        series.counts[j] = (int) readVarint(buffer);
+      }
+      series.size = bucketCount;
+      histogram.series.put(new String(name, 0, nameLength, StandardCharsets.UTF_8), series);
+    }
+    return histogram;
+  }
+
+  /**
+   * Reads the length of the data following, checked against the bytes left, for a corrupt file not to cause a huge allocation
+   *
+   * @param minItemSize min size of an item of the data, in bytes
+   */
+  private static int readLength(ByteBuffer buffer, int minItemSize) {
+    final long length = readVarint(buffer);
+    if (length < 0 || length > buffer.remaining() / minItemSize) {
+      throw new IllegalArgumentException("Illegal length value '" + length + "': " + buffer.remaining() + " bytes left");
+    }
+    return (int) length;
+  }
+
+  /**
+   * Writes the histogram and marks it not {@link AccessHistogram#modified modified}
+   *
+   * @param histogram NotNull
+   * @throws IOException
+   */
+  public void save(AccessHistogram histogram) throws IOException {
+    final VarintOutputStream out = new VarintOutputStream();
+    out.writeInt(MAGIC);
+    out.writeSigned(histogram.hourlySince);
+    out.writeSigned(histogram.coveredSince);
+    out.writeVarint(histogram.series.size());
+    for (Map.Entry<String, AccessHistogram.Series> entry : histogram.series.entrySet()) {
+      final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      out.writeVarint(name.length);
+      out.write(name, 0, name.length);
+      final AccessHistogram.Series series = entry.getValue();
+      series.normalize();
+      out.writeVarint(series.size);
+      int start = 0;
+      for (int i = 0; i < series.size; i++) {
+        out.writeSigned(series.starts[i] - start);
+        out.writeVarint(series.counts[i]);
+        start = series.starts[i];
+      }
+    }
+
+    final Path path = file.toPath();
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+      out.writeTo(fos);
+      fos.getFD().sync();
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    histogram.modified = false;
+  }
+
+  private static long readVarint(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  private static long readSigned(ByteBuffer buffer) {
+    final long value = readVarint(buffer);
+    return value >>> 1 ^ -(value & 1);
+  }
+
+  private static class VarintOutputStream extends ByteArrayOutputStream {
+    VarintOutputStream() {
+      super(64 * 1024);
+    }
+
+    void writeInt(int value) {
+      write(value >>> 24);
+      write(value >>> 16);
+      write(value >>> 8);
+      write(value);
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7fL) != 0) {
+        write((int) (value & 0x7f | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    void writeSigned(long value) {
+      writeVarint(value << 1 ^ value >> 63);
+    }
+  }
+}
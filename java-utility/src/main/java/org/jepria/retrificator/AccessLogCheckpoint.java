@@ -0,0 +1,156 @@
+package org.jepria.retrificator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Position up to which an access log file has been processed, along with the identity of the file
+ * to detect the file truncation, rotation or rename between the runs.
+ * The lines below the position may include a range not processed yet (skipped by the newest first processing),
+ * to be caught up by a later run.
+ * <br/>
+ * The identity is the file key (inode on unix, if available) and the checksum of the first bytes of the file.
+ */
+public class AccessLogCheckpoint {
+
+  /**
+   * Max number of the first bytes of the file to compute the fingerprint over
+   */
+  public static final int FINGERPRINT_LENGTH = 1024;
+
+  /**
+   * Nullable: {@link BasicFileAttributes#fileKey()} as a string, if supported by the file system
+   */
+  public String fileKey;
+  /**
+   * CRC32 of the first {@link #fingerprintLength} bytes of the file
+   */
+  public long fingerprint;
+  public int fingerprintLength;
+  /**
+   * Position right after the last complete line processed
+   */
+  public long offset;
+  /**
+   * File size at the moment of the checkpoint
+   */
+  public long size;
+  /**
+   * Start (a line start) of the range of the lines below the {@link #offset} not processed yet
+   */
+  public long unreadStart;
+  /**
+   * End (right after a line) of the range of the lines below the {@link #offset} not processed yet, equal to the start if there is none
+   */
+  public long unreadEnd;
+
+  /**
+   * Creates a checkpoint for the current state of the file with zero offset
+   *
+   * @param file NotNull
+   * @return
+   * @throws IOException
+   */
+  public static AccessLogCheckpoint identify(Path file) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+    AccessLogCheckpoint checkpoint = new AccessLogCheckpoint();
+    checkpoint.fileKey = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+    checkpoint.size = attrs.size();
+    checkpoint.fingerprintLength = (int) Math.min(attrs.size(), FINGERPRINT_LENGTH);
+    checkpoint.fingerprint = fingerprint(file, checkpoint.fingerprintLength);
+    checkpoint.offset = 0;
+    return checkpoint;
+  }
+
+  /**
+   * @param file NotNull
+   * @param current NotNull the checkpoint of the current state of the file, as created by {@link #identify(Path)}
+   * @return whether the file is the same one (possibly appended) as this checkpoint was made for
+   * @throws IOException
+   */
+  public boolean sameFile(Path file, AccessLogCheckpoint current) throws IOException {
+    if (fileKey != null && current.fileKey != null && !fileKey.equals(current.fileKey)) {
+      return false;
+    }
+    if (fingerprintLength > current.size) {
+      return false;
+    }
+    final long currentFingerprint;
+    if (fingerprintLength == current.fingerprintLength) {
+      currentFingerprint = current.fingerprint;
+    } else {
+      currentFingerprint = fingerprint(file, fingerprintLength);
+    }
+    return fingerprint == currentFingerprint;
+  }
+
+  /**
+   * @return whether there is a range of the lines below the offset not processed yet
+   */
+  public boolean hasUnread() {
+    return unreadStart < unreadEnd;
+  }
+
+  /**
+   * @return whether the checkpoint identity is distinctive enough to recognize the file under another name
+   */
+  public boolean identifiable() {
+    return fileKey != null || fingerprintLength > 0;
+  }
+
+  private static long fingerprint(Path file, int length) throws IOException {
+    CRC32 crc = new CRC32();
+    if (length > 0) {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer) < 0) {
+            break;
+          }
+        }
+      }
+      crc.update(buffer.array(), 0, buffer.position());
+    }
+    return crc.getValue();
+  }
+
+  @Override
+  public String toString() {
+    return "AccessLogCheckpoint{" +
+            "fileKey='" + fileKey + '\'' +
+            ", fingerprint=" + fingerprint +
+            ", fingerprintLength=" + fingerprintLength +
+            ", offset=" + offset +
+            ", size=" + size +
+            ", unreadStart=" + unreadStart +
+            ", unreadEnd=" + unreadEnd +
+            '}';
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    AccessLogCheckpoint that = (AccessLogCheckpoint) o;
+    return fingerprint == that.fingerprint &&
+            fingerprintLength == that.fingerprintLength &&
+            offset == that.offset &&
+            size == that.size &&
+            unreadStart == that.unreadStart &&
+            unreadEnd == that.unreadEnd &&
+            Objects.equals(fileKey, that.fileKey);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(fileKey, fingerprint, fingerprintLength, offset, size, unreadStart, unreadEnd);
+  }
+}
@@ -0,0 +1,507 @@
+package org.jepria.retrificator;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Access log parser compiled from a Tomcat access log valve pattern
+ * (see javadoc for org.apache.catalina.valves.AbstractAccessLogValve), e.g. {@code %{X-Forwarded-For}i %h %t "%r" %s %b %D}.
+ * <br/>
+ * The pattern is compiled once into a sequence of literals and fields, each field is extracted up to the first occurrence
+ * of the literal following it, with no regex. Only the fields known to the {@link AccessLogParser.FieldSink} are reported
+ * (%h, %l, %u, %t, %r, %m, %U, %H, %s, %b, %B), the other fields are only skipped over.
+ * The timestamp is reported before any other field of the record, wherever %t stands in the pattern.
+ * A field which may contain spaces (a header, a cookie, a custom-formatted timestamp) and is followed by a space
+ * is tried against the subsequent spaces until the rest of the record matches.
+ * <br/>
+ * The instance is thread-safe.
+ */
+public class AccessLogFormat extends AccessLogParser {
+
+  public static final String COMMON = "%h %l %u %t \"%r\" %s %b";
+
+  public static final String COMBINED = "%h %l %u %t \"%r\" %s %b \"%{Referer}i\" \"%{User-Agent}i\"";
+
+  /**
+   * Max number of the split alternatives to try for a field which may contain spaces
+   */
+  private static final int MAX_ALTERNATIVES = 16;
+
+  private enum FieldType {
+    REMOTE_HOST_NAME, REMOTE_LOGICAL_USERNAME, REMOTE_USER, DATE_AND_TIME, REQUEST, METHOD, URL, PROTOCOL,
+    HTTP_STATUS, BYTES_SENT, OTHER
+  }
+
+  private enum TimeFormat {
+    /**
+     * dd/MMM/yyyy:HH:mm:ss Z
+     */
+    DEFAULT,
+    /**
+     * seconds since the epoch
+     */
+    SEC,
+    /**
+     * milliseconds since the epoch
+     */
+    MSEC,
+    /**
+     * {@link SimpleDateFormat} pattern
+     */
+    CUSTOM
+  }
+
+  /**
+   * Either a literal or a field
+   */
+  private static final class Element {
+    /**
+     * Nullable: not null for the literal
+     */
+    final String literal;
+    final FieldType type;
+    /**
+     * Whether the field value never contains spaces
+     */
+    final boolean spaceFree;
+    /**
+     * Whether the field value may be empty
+     */
+    final boolean mayBeEmpty;
+    final TimeFormat timeFormat;
+    /**
+     * Nullable: for the {@link TimeFormat#CUSTOM} only
+     */
+    final ThreadLocal<DateFormat> customTimeFormat;
+
+    Element(String literal) {
+      this.literal = literal;
+      this.type = null;
+      this.spaceFree = false;
+      this.mayBeEmpty = false;
+      this.timeFormat = null;
+      this.customTimeFormat = null;
+    }
+
+    Element(FieldType type, boolean spaceFree, boolean mayBeEmpty, TimeFormat timeFormat, String customTimeFormat) {
+      this.literal = null;
+      this.type = type;
+      this.spaceFree = spaceFree;
+      this.mayBeEmpty = mayBeEmpty;
+      this.timeFormat = timeFormat;
+      this.customTimeFormat = customTimeFormat == null ? null
+              : ThreadLocal.withInitial(() -> new SimpleDateFormat(customTimeFormat, Locale.US));
+    }
+
+    boolean isLiteral() {
+      return literal != null;
+    }
+  }
+
+  /**
+   * Per-thread match results, to avoid the allocation per record
+   */
+  private static final class Scratch {
+    /**
+     * field start and end indexes, by the element index
+     */
+    final int[] ranges;
+    long dateAndTime;
+
+    Scratch(int elementCount) {
+      ranges = new int[elementCount * 2];
+    }
+  }
+
+  private final String pattern;
+  private final Element[] elements;
+  private final ThreadLocal<Scratch> scratch;
+
+  private AccessLogFormat(String pattern, List<Element> elements) {
+    this.pattern = pattern;
+    this.elements = elements.toArray(new Element[0]);
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(this.elements.length));
+  }
+
+  /**
+   * @param pattern NotNull the access log valve pattern, or the {@code common} or {@code combined} shorthand
+   * @return the hand-written {@link AccessLogParser#getDefault()} for the common pattern, or a parser compiled from the pattern
+   * @throws IllegalArgumentException if the pattern is not supported, or has no timestamp (%t) or no url (%r or %U)
+   */
+  public static AccessLogParser compile(String pattern) throws IllegalArgumentException {
+    final String expanded;
+    if ("common".equals(pattern)) {
+      expanded = COMMON;
+    } else if ("combined".equals(pattern)) {
+      expanded = COMBINED;
+    } else {
+      expanded = pattern;
+    }
+
+    if (COMMON.equals(expanded)) {
+      return AccessLogParser.getDefault();
+    }
+
+    return new AccessLogFormat(expanded, compileElements(expanded));
+  }
+
+  private static List<Element> compileElements(String pattern) {
+    final List<Element> elements = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c != '%' || i + 1 >= pattern.length()) {
+        literal.append(c);
+        continue;
+      }
+
+      i++;
+      String param = null;
+      if (pattern.charAt(i) == '{') {
+        int close = pattern.indexOf('}', i);
+        if (close == -1 || close + 1 >= pattern.length()) {
+          throw new IllegalArgumentException("Unterminated '%{' in the pattern '" + pattern + "'");
+        }
+        param = pattern.substring(i + 1, close);
+        i = close + 1;
+      }
+      final char code = pattern.charAt(i);
+
+      if (code == '%') {
+        literal.append('%');
+        continue;
+      }
+
+      if (code == 't') {
+        String format = param;
+        if (format != null) {
+          if (format.startsWith("begin") || format.startsWith("end")) {
+            format = format.substring(format.indexOf(':') == -1 ? format.length() : format.indexOf(':') + 1);
+          }
+          if (format.isEmpty()) {
+            format = null;
+          }
+        }
+        if (format == null) {
+          // [dd/MMM/yyyy:HH:mm:ss Z]
+          literal.append('[');
+          addLiteral(elements, literal);
+          elements.add(new Element(FieldType.DATE_AND_TIME, false, false, TimeFormat.DEFAULT, null));
+          literal.append(']');
+        } else {
+          addLiteral(elements, literal);
+          if ("sec".equals(format)) {
+            elements.add(new Element(FieldType.DATE_AND_TIME, true, false, TimeFormat.SEC, null));
+          } else if ("msec".equals(format)) {
+            elements.add(new Element(FieldType.DATE_AND_TIME, true, false, TimeFormat.MSEC, null));
+          } else if (format.startsWith("msec_frac") || format.startsWith("sec_frac")) {
+            elements.add(new Element(FieldType.OTHER, true, false, null, null));
+          } else {
+            elements.add(new Element(FieldType.DATE_AND_TIME, false, false, TimeFormat.CUSTOM, format));
+          }
+        }
+        continue;
+      }
+
+      addLiteral(elements, literal);
+
+      if (param != null) {
+        // headers, cookies, attributes etc.
+        elements.add(new Element(FieldType.OTHER, false, true, null, null));
+        continue;
+      }
+
+      switch (code) {
+        case 'h':
+          elements.add(new Element(FieldType.REMOTE_HOST_NAME, true, false, null, null));
+          break;
+        case 'l':
+          elements.add(new Element(FieldType.REMOTE_LOGICAL_USERNAME, true, false, null, null));
+          break;
+        case 'u':
+          elements.add(new Element(FieldType.REMOTE_USER, true, false, null, null));
+          break;
+        case 'r':
+          elements.add(new Element(FieldType.REQUEST, false, false, null, null));
+          break;
+        case 'm':
+          elements.add(new Element(FieldType.METHOD, true, false, null, null));
+          break;
+        case 'U':
+          elements.add(new Element(FieldType.URL, true, false, null, null));
+          break;
+        case 'H':
+          elements.add(new Element(FieldType.PROTOCOL, true, false, null, null));
+          break;
+        case 's':
+          elements.add(new Element(FieldType.HTTP_STATUS, true, false, null, null));
+          break;
+        case 'b':
+        case 'B':
+          elements.add(new Element(FieldType.BYTES_SENT, true, false, null, null));
+          break;
+        case 'q':
+          // empty if no query string
+          elements.add(new Element(FieldType.OTHER, true, true, null, null));
+          break;
+        case 'a':
+        case 'A':
+        case 'p':
+        case 'D':
+        case 'T':
+        case 'F':
+        case 'S':
+        case 'v':
+        case 'X':
+          elements.add(new Element(FieldType.OTHER, true, false, null, null));
+          break;
+        case 'I':
+          elements.add(new Element(FieldType.OTHER, false, false, null, null));
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported field '%" + code + "' in the pattern '" + pattern + "'");
+      }
+    }
+    addLiteral(elements, literal);
+
+    // the field is delimited by the literal following it
+    for (int i = 1; i < elements.size(); i++) {
+      if (!elements.get(i).isLiteral() && !elements.get(i - 1).isLiteral()) {
+        throw new IllegalArgumentException("Adjacent fields with no delimiter are not supported in the pattern '" + pattern + "'");
+      }
+    }
+
+    // the access is attributed by the url and the timestamp of the record
+    if (elements.stream().noneMatch(element -> element.type == FieldType.DATE_AND_TIME)) {
+      throw new IllegalArgumentException("No timestamp field '%t' in the pattern '" + pattern + "'");
+    }
+    if (elements.stream().noneMatch(element -> element.type == FieldType.REQUEST || element.type == FieldType.URL)) {
+      throw new IllegalArgumentException("No url field '%r' or '%U' in the pattern '" + pattern + "'");
+    }
+
+    return elements;
+  }
+
+  private static void addLiteral(List<Element> elements, StringBuilder literal) {
+    if (literal.length() > 0) {
+      elements.add(new Element(literal.toString()));
+      literal.setLength(0);
+    }
+  }
+
+  @Override
+  public boolean parse(CharSequence s, int start, int end, FieldSink sink) {
+    final Scratch scratch = this.scratch.get();
+    if (!match(s, start, end, 0, scratch)) {
+      return false;
+    }
+
+    // the sink may need the timestamp at any other field (e.g. at the url), so it goes first
+    sink.dateAndTime(scratch.dateAndTime);
+
+    final int[] ranges = scratch.ranges;
+    for (int i = 0; i < elements.length; i++) {
+      final Element element = elements[i];
+      if (element.isLiteral()) {
+        continue;
+      }
+      final int fieldStart = ranges[i * 2];
+      final int fieldEnd = ranges[i * 2 + 1];
+      switch (element.type) {
+        case REMOTE_HOST_NAME:
+          sink.remoteHostName(s, fieldStart, fieldEnd);
+          break;
+        case REMOTE_LOGICAL_USERNAME:
+          sink.remoteLogicalUsername(s, fieldStart, fieldEnd);
+          break;
+        case REMOTE_USER:
+          sink.remoteUser(s, fieldStart, fieldEnd);
+          break;
+        case REQUEST: {
+          // validated by the match
+          final int methodEnd = indexOf(s, ' ', fieldStart, fieldEnd);
+          final int urlEnd = indexOf(s, ' ', methodEnd + 1, fieldEnd);
+          sink.method(s, fieldStart, methodEnd);
+          sink.url(s, methodEnd + 1, urlEnd);
+          sink.protocol(s, urlEnd + 1, fieldEnd);
+          break;
+        }
+        case METHOD:
+          sink.method(s, fieldStart, fieldEnd);
+          break;
+        case URL:
+          sink.url(s, fieldStart, fieldEnd);
+          break;
+        case PROTOCOL:
+          sink.protocol(s, fieldStart, fieldEnd);
+          break;
+        case HTTP_STATUS:
+          sink.httpStatus(s, fieldStart, fieldEnd);
+          break;
+        case BYTES_SENT:
+          sink.bytesSent(s, fieldStart, fieldEnd);
+          break;
+        default:
+          // the timestamp reported above, or not needed
+      }
+    }
+    sink.endRecord();
+    return true;
+  }
+
+  /**
+   * Matches the elements starting from the index specified against the input starting from the position specified
+   */
+  private boolean match(CharSequence s, int pos, int end, int elementIndex, Scratch scratch) {
+    for (int i = elementIndex; i < elements.length; i++) {
+      final Element element = elements[i];
+
+      if (element.isLiteral()) {
+        if (!regionMatches(s, pos, end, element.literal)) {
+          return false;
+        }
+        pos += element.literal.length();
+        continue;
+      }
+
+      final String delimiter = i + 1 < elements.length ? elements[i + 1].literal : null;
+
+      if (delimiter == null) {
+        // the last field: up to the end
+        return matchField(s, pos, end, i, scratch);
+      }
+
+      final boolean quoted = delimiter.charAt(0) == '"';
+      int fieldEnd = indexOf(s, delimiter, pos, end, quoted);
+
+      if (!element.spaceFree && delimiter.charAt(0) == ' ') {
+        // ambiguous: try the subsequent delimiters until the rest matches
+        for (int alternative = 0; alternative < MAX_ALTERNATIVES && fieldEnd != -1; alternative++) {
+          if (matchField(s, pos, fieldEnd, i, scratch) && match(s, fieldEnd, end, i + 1, scratch)) {
+            return true;
+          }
+          fieldEnd = indexOf(s, delimiter, fieldEnd + 1, end, false);
+        }
+        return false;
+      }
+
+      if (fieldEnd == -1 || !matchField(s, pos, fieldEnd, i, scratch)) {
+        return false;
+      }
+      pos = fieldEnd;
+    }
+    return pos == end;
+  }
+
+  private boolean matchField(CharSequence s, int start, int end, int elementIndex, Scratch scratch) {
+    final Element element = elements[elementIndex];
+    if (start >= end && !element.mayBeEmpty) {
+      return false;
+    }
+    if (element.spaceFree && indexOf(s, ' ', start, end) != -1) {
+      return false;
+    }
+
+    switch (element.type) {
+      case REQUEST: {
+        // ([^ ]+) ([^ ]+) ([^ ]+)
+        final int methodEnd = indexOf(s, ' ', start, end);
+        if (methodEnd <= start) {
+          return false;
+        }
+        final int urlEnd = indexOf(s, ' ', methodEnd + 1, end);
+        if (urlEnd <= methodEnd + 1 || urlEnd + 1 >= end || indexOf(s, ' ', urlEnd + 1, end) != -1) {
+          return false;
+        }
+        break;
+      }
+      case DATE_AND_TIME: {
+        final long dateAndTime = parseDateAndTime(s, start, end, element);
+        if (dateAndTime == INVALID_DATE_AND_TIME) {
+          return false;
+        }
+        scratch.dateAndTime = dateAndTime;
+        break;
+      }
+      default:
+    }
+
+    scratch.ranges[elementIndex * 2] = start;
+    scratch.ranges[elementIndex * 2 + 1] = end;
+    return true;
+  }
+
+  private long parseDateAndTime(CharSequence s, int start, int end, Element element) {
+    switch (element.timeFormat) {
+      case DEFAULT:
+        return parseDateAndTime(s, start, end);
+      case SEC:
+      case MSEC: {
+        if (end - start > 18) {
+          return INVALID_DATE_AND_TIME;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+          final char c = s.charAt(i);
+          if (c < '0' || c > '9') {
+            return INVALID_DATE_AND_TIME;
+          }
+          value = value * 10 + (c - '0');
+        }
+        return element.timeFormat == TimeFormat.SEC ? value * 1000 : value;
+      }
+      default:
+        try {
+          return element.customTimeFormat.get().parse(s.subSequence(start, end).toString()).getTime();
+        } catch (ParseException e) {
+          return INVALID_DATE_AND_TIME;
+        }
+    }
+  }
+
+  private static boolean regionMatches(CharSequence s, int pos, int end, String literal) {
+    if (end - pos < literal.length()) {
+      return false;
+    }
+    for (int i = 0; i < literal.length(); i++) {
+      if (s.charAt(pos + i) != literal.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param escaped whether to skip the occurrences preceded with '\'
+   */
+  private static int indexOf(CharSequence s, String literal, int from, int to, boolean escaped) {
+    final char first = literal.charAt(0);
+    for (int i = from; i <= to - literal.length(); i++) {
+      if (s.charAt(i) == first && regionMatches(s, i, to, literal) && !(escaped && i > from && s.charAt(i - 1) == '\\')) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public IllegalArgumentException describeFailure(CharSequence s) {
+    return new IllegalArgumentException("The input '" + abbreviate(s) + "' does not match the access log pattern '" + pattern + "'");
+  }
+
+  public String getPattern() {
+    return pattern;
+  }
+
+  @Override
+  public String toString() {
+    return "AccessLogFormat{" +
+            "pattern='" + pattern + '\'' +
+            '}';
+  }
+}
@@ -0,0 +1,327 @@
+package org.jepria.retrificator;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Hand-written parser of the access log records in the Tomcat "common" format
+ * (see javadoc for org.apache.catalina.valves.AbstractAccessLogValve),
+ * equivalent to {@link AccessLogReader#RECORD_PATTERN_DEFAULT}, {@link AccessLogReader#REQUEST_PATTERN_DEFAULT}
+ * and {@link AccessLogReader#DATE_FORMAT_DEFAULT} but with no regex and no per-record allocation:
+ * the fields are reported to a {@link FieldSink} as index ranges of the input {@link CharSequence}
+ * (use {@link ByteCharSequence} to parse bytes).
+ * <br/>
+ * The instance is thread-safe.
+ */
+public class AccessLogParser {
+
+  /**
+   * Receives the fields of a successfully parsed record.
+   * The ranges are the indexes of the input CharSequence, start inclusive, end exclusive.
+   * A sink receives nothing for a record failed to parse.
+   */
+  public interface FieldSink {
+    default void remoteHostName(CharSequence s, int start, int end) {}
+
+    default void remoteLogicalUsername(CharSequence s, int start, int end) {}
+
+    default void remoteUser(CharSequence s, int start, int end) {}
+
+    /**
+     * @param dateAndTime timestamp, milliseconds
+     */
+    default void dateAndTime(long dateAndTime) {}
+
+    default void method(CharSequence s, int start, int end) {}
+
+    default void url(CharSequence s, int start, int end) {}
+
+    default void protocol(CharSequence s, int start, int end) {}
+
+    default void httpStatus(CharSequence s, int start, int end) {}
+
+    default void bytesSent(CharSequence s, int start, int end) {}
+
+    /**
+     * Invoked after all fields of the record have been reported
+     */
+    default void endRecord() {}
+  }
+
+  /**
+   * The value returned by {@link #parseDateAndTime(CharSequence, int, int)} for the input which could not be parsed
+   */
+  public static final long INVALID_DATE_AND_TIME = Long.MIN_VALUE;
+
+  private static final String DATE_FORMAT_PATTERN = "dd/MMM/yyyy:HH:mm:ss Z";
+
+  private static final ThreadLocal<DateFormat> DATE_FORMAT = ThreadLocal.withInitial(
+          () -> new SimpleDateFormat(DATE_FORMAT_PATTERN, Locale.US/*because MMM is written in english*/));
+
+  private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+
+  private static final AccessLogParser DEFAULT = new AccessLogParser();
+
+  /**
+   * Latest parsed timestamp, reused for the records of the same second
+   */
+  private static final class DateCacheEntry {
+    final long key;
+    final long dateAndTime;
+
+    DateCacheEntry(long key, long dateAndTime) {
+      this.key = key;
+      this.dateAndTime = dateAndTime;
+    }
+  }
+
+  private volatile DateCacheEntry dateCache = new DateCacheEntry(-1L, INVALID_DATE_AND_TIME);
+
+  public AccessLogParser() {
+  }
+
+  public static AccessLogParser getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return a thread-confined instance of the date format equal to {@link AccessLogReader#DATE_FORMAT_DEFAULT}
+   */
+  public static DateFormat getDateFormat() {
+    return DATE_FORMAT.get();
+  }
+
+  public boolean parse(CharSequence s, FieldSink sink) {
+    if (s instanceof ByteCharSequence && ((ByteCharSequence) s).isTruncated()) {
+      // an over-long line cut by the reader
+      return false;
+    }
+    return parse(s, 0, s.length(), sink);
+  }
+
+  /**
+   * @param s example input: "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] "POST /manager/html/undeploy?path=/Ubs HTTP/1.1" 200 309828"
+   * @param start inclusive
+   * @param end exclusive, not including line terminators
+   * @param sink NotNull
+   * @return {@code true} if the record has been parsed and reported to the sink, {@code false} if the record is malformed
+   */
+  public boolean parse(CharSequence s, int start, int end, FieldSink sink) {
+
+    // ([^ ]+) ([^ ]+) ([^ ]+) \[([^]]+)] "([^"]+)" ([^ ]+) ([^ ]+)
+    final int hostEnd = indexOf(s, ' ', start, end);
+    if (hostEnd <= start) {
+      return false;
+    }
+    final int logicalStart = hostEnd + 1;
+    final int logicalEnd = indexOf(s, ' ', logicalStart, end);
+    if (logicalEnd <= logicalStart) {
+      return false;
+    }
+    final int userStart = logicalEnd + 1;
+    final int userEnd = indexOf(s, ' ', userStart, end);
+    if (userEnd <= userStart || userEnd + 1 >= end || s.charAt(userEnd + 1) != '[') {
+      return false;
+    }
+    final int dateStart = userEnd + 2;
+    final int dateEnd = indexOf(s, ']', dateStart, end);
+    if (dateEnd <= dateStart || dateEnd + 2 >= end || s.charAt(dateEnd + 1) != ' ' || s.charAt(dateEnd + 2) != '"') {
+      return false;
+    }
+    final int requestStart = dateEnd + 3;
+    final int requestEnd = indexOf(s, '"', requestStart, end);
+    if (requestEnd <= requestStart || requestEnd + 1 >= end || s.charAt(requestEnd + 1) != ' ') {
+      return false;
+    }
+    final int statusStart = requestEnd + 2;
+    final int statusEnd = indexOf(s, ' ', statusStart, end);
+    if (statusEnd <= statusStart) {
+      return false;
+    }
+    final int bytesStart = statusEnd + 1;
+    if (bytesStart >= end || indexOf(s, ' ', bytesStart, end) != -1) {
+      return false;
+    }
+
+    // ([^ ]+) ([^ ]+) ([^ ]+)
+    final int methodEnd = indexOf(s, ' ', requestStart, requestEnd);
+    if (methodEnd <= requestStart) {
+      return false;
+    }
+    final int urlStart = methodEnd + 1;
+    final int urlEnd = indexOf(s, ' ', urlStart, requestEnd);
+    if (urlEnd <= urlStart) {
+      return false;
+    }
+    final int protocolStart = urlEnd + 1;
+    if (protocolStart >= requestEnd || indexOf(s, ' ', protocolStart, requestEnd) != -1) {
+      return false;
+    }
+
+    final long dateAndTime = parseDateAndTime(s, dateStart, dateEnd);
+    if (dateAndTime == INVALID_DATE_AND_TIME) {
+      return false;
+    }
+
+    sink.remoteHostName(s, start, hostEnd);
+    sink.remoteLogicalUsername(s, logicalStart, logicalEnd);
+    sink.remoteUser(s, userStart, userEnd);
+    sink.dateAndTime(dateAndTime);
+    sink.method(s, requestStart, methodEnd);
+    sink.url(s, urlStart, urlEnd);
+    sink.protocol(s, protocolStart, requestEnd);
+    sink.httpStatus(s, statusStart, statusEnd);
+    sink.bytesSent(s, bytesStart, end);
+    sink.endRecord();
+    return true;
+  }
+
+  /**
+   * Builds the exception describing why the record could not be parsed. Slow, not intended for the hot path
+   *
+   * @param s the record {@link #parse} returned {@code false} for
+   * @return
+   */
+  public IllegalArgumentException describeFailure(CharSequence s) {
+    try {
+      AccessLogReader.parseRecord(s.toString(), AccessLogReader.RECORD_PATTERN_DEFAULT, getDateFormat(), AccessLogReader.REQUEST_PATTERN_DEFAULT);
+      return new IllegalArgumentException("The input '" + abbreviate(s) + "' could not be parsed");
+    } catch (IllegalArgumentException e) {
+      return e;
+    }
+  }
+
+  /**
+   * Max length of the input quoted in the failure messages
+   */
+  protected static final int MAX_QUOTED_LENGTH = 200;
+
+  /**
+   * @return the input to be quoted in the failure message, cut to the {@link #MAX_QUOTED_LENGTH}
+   */
+  protected static String abbreviate(CharSequence s) {
+    return s.length() <= MAX_QUOTED_LENGTH ? s.toString()
+            : s.subSequence(0, MAX_QUOTED_LENGTH) + "... (" + s.length() + " chars)";
+  }
+
+  /**
+   * Parses the timestamp arithmetically if it is in the canonical form,
+   * otherwise falls back to the {@link #getDateFormat()} which yields the same result for any input
+   *
+   * @param s example input: "03/Feb/2020:17:38:48 +0300"
+   * @param start inclusive
+   * @param end exclusive
+   * @return timestamp, milliseconds, or {@link #INVALID_DATE_AND_TIME}
+   */
+  public long parseDateAndTime(CharSequence s, int start, int end) {
+    // dd/MMM/yyyy:HH:mm:ss +zzzz
+    if (end - start == 26
+            && s.charAt(start + 2) == '/' && s.charAt(start + 6) == '/' && s.charAt(start + 11) == ':'
+            && s.charAt(start + 14) == ':' && s.charAt(start + 17) == ':' && s.charAt(start + 20) == ' ') {
+      final int day = digits(s, start, 2);
+      final int month = month(s, start + 3);
+      final int year = digits(s, start + 7, 4);
+      final int hour = digits(s, start + 12, 2);
+      final int minute = digits(s, start + 15, 2);
+      final int second = digits(s, start + 18, 2);
+      final char sign = s.charAt(start + 21);
+      final int zoneHours = digits(s, start + 22, 2);
+      final int zoneMinutes = digits(s, start + 24, 2);
+
+      if (day >= 1 && month >= 1 && year >= 1600 && hour >= 0 && hour < 24 && minute >= 0 && minute < 60
+              && second >= 0 && second < 60 && (sign == '+' || sign == '-') && zoneHours >= 0 && zoneHours < 24 && zoneMinutes >= 0 && zoneMinutes < 60
+              && day <= daysInMonth(year, month)) {
+
+        final int zoneOffset = (sign == '-' ? -1 : 1) * (zoneHours * 60 + zoneMinutes);
+
+        final long key = ((((((long) year * 13 + month) * 32 + day) * 24 + hour) * 60 + minute) * 60 + second) * 8192
+                + (zoneOffset + 4096);
+
+        final DateCacheEntry cached = dateCache;
+        if (cached.key == key) {
+          return cached.dateAndTime;
+        }
+
+        final long dateAndTime = ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute - zoneOffset) * 60_000L
+                + second * 1000L;
+        dateCache = new DateCacheEntry(key, dateAndTime);
+        return dateAndTime;
+      }
+    }
+
+    // non-canonical form: leniency, different zone notation etc.
+    try {
+      return getDateFormat().parse(s.subSequence(start, end).toString()).getTime();
+    } catch (ParseException e) {
+      return INVALID_DATE_AND_TIME;
+    }
+  }
+
+  protected static int indexOf(CharSequence s, char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return non-negative number or {@code -1} if the range contains non-digits
+   */
+  private static int digits(CharSequence s, int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      final char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * @return 1-based month number or {@code -1} if the abbreviation is not recognized
+   */
+  private static int month(CharSequence s, int start) {
+    final char c0 = Character.toLowerCase(s.charAt(start));
+    final char c1 = Character.toLowerCase(s.charAt(start + 1));
+    final char c2 = Character.toLowerCase(s.charAt(start + 2));
+    for (int i = 0; i < MONTHS.length; i++) {
+      final String month = MONTHS[i];
+      if (month.charAt(0) == c0 && month.charAt(1) == c1 && month.charAt(2) == c2) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * @return number of days since 1970-01-01 in the proleptic Gregorian calendar
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    final int y = month <= 2 ? year - 1 : year;
+    final int era = y / 400; // y is positive
+    final int yearOfEra = y - era * 400;
+    final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}
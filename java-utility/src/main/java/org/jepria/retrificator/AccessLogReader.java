@@ -1,143 +1,554 @@
-package org.jepria.retrificator;
-
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-public class AccessLogReader {
-  
-  private AccessLogReader() {}
-  
-  public static final Pattern RECORD_PATTERN_DEFAULT = Pattern.compile("([^ ]+) ([^ ]+) ([^ ]+) \\[([^]]+)] \"([^\"]+)\" ([^ ]+) ([^ ]+)");
-  
-  public static final Pattern REQUEST_PATTERN_DEFAULT = Pattern.compile("([^ ]+) ([^ ]+) ([^ ]+)");
-  
-  public static final DateFormat DATE_FORMAT_DEFAULT = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US/*because MMM is written in english*/);
-  
-  /**
-   * For the log record format see javadoc for org.apache.catalina.valves.AbstractAccessLogValve
-   * <br/>
-   * Example: "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] "POST /manager/html/undeploy?path=/Ubs HTTP/1.1" 200 309828"
-   */
-  public static class Record {
-    public String remoteHostName;
-    public String remoteLogicalUsername;
-    public String remoteUser;
-    public Long dateAndTime;
-    public Request request;
-    public String httpStatus;
-    public String bytesSent;
-    
-    @Override
-    public String toString() {
-      return "AccessLogRecord{" +
-              "remoteHostName='" + remoteHostName + '\'' +
-              ", remoteLogicalUsername='" + remoteLogicalUsername + '\'' +
-              ", remoteUser='" + remoteUser + '\'' +
-              ", dateAndTime='" + dateAndTime + '\'' +
-              ", request='" + request + '\'' +
-              ", httpStatus='" + httpStatus + '\'' +
-              ", bytesSent='" + bytesSent + '\'' +
-              '}';
-    }
-  }
-  
-  /**
-   * A double-quoted part of a log record
-   * Example: "POST /manager/html/undeploy?path=/Ubs HTTP/1.1"
-   */
-  public static class Request {
-    public String method;
-    public String url;
-    public String protocol;
-    
-    @Override
-    public String toString() {
-      return "Request{" +
-              "method='" + method + '\'' +
-              ", url='" + url + '\'' +
-              ", protocol='" + protocol + '\'' +
-              '}';
-    }
-  }
-  
-  public static Record parseRecord(String s) throws IllegalArgumentException {
-    return parseRecord(s, RECORD_PATTERN_DEFAULT, DATE_FORMAT_DEFAULT, REQUEST_PATTERN_DEFAULT);
-  }
-  
-  /**
-   * @param s              example input: "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] "POST /manager/html/undeploy?path=/Ubs HTTP/1.1" 200 309828"
-   * @param recordPattern
-   * @param dateFormat
-   * @param requestPattern
-   * @return
-   * @throws IllegalArgumentException
-   */
-  public static Record parseRecord(String s, Pattern recordPattern, DateFormat dateFormat, Pattern requestPattern) throws IllegalArgumentException {
-    
-    Matcher m = recordPattern.matcher(s);
-    if (m.matches()) {
-      
-      Record record = new Record();
-      record.remoteHostName = m.group(1);
-      record.remoteLogicalUsername = m.group(2);
-      record.remoteUser = m.group(3);
-      try {
-        record.dateAndTime = parseDateAndTime(m.group(4), dateFormat);
-      } catch (IllegalArgumentException e) {
-        // TODO throw or log? If not to throw but log instead, the API user can get enough with a partially parsed record
-        throw new IllegalArgumentException("The string '" + s + "' does not match the pattern '" + recordPattern + "'", e);
-      }
-      try {
-        record.request = parseRequest(m.group(5), requestPattern);
-      } catch (IllegalArgumentException e) {
-        // TODO throw or log? If not to throw but log instead, the API user can get enough with a partially parsed record
-        throw new IllegalArgumentException("The string '" + s + "' does not match the pattern '" + recordPattern + "'", e);
-      }
-      record.httpStatus = m.group(6);
-      record.bytesSent = m.group(7);
-      return record;
-      
-    } else {
-      throw new IllegalArgumentException("The input '" + s + "' does not match the pattern '" + recordPattern + "'");
-    }
-  }
-  
-  /**
-   * @param s example input: "POST /manager/html/undeploy?path=/Ubs HTTP/1.1"
-   * @return
-   * @throws IllegalArgumentException
-   */
-  public static Request parseRequest(String s, Pattern requestPattern) throws IllegalArgumentException {
-    Matcher m = requestPattern.matcher(s);
-    if (m.matches()) {
-      Request request = new Request();
-      request.method = m.group(1);
-      request.url = m.group(2);
-      request.protocol = m.group(3);
-      return request;
-    } else {
-      throw new IllegalArgumentException("The string '" + s + "' does not match against the pattern '" + requestPattern + "'");
-    }
-  }
-  
-  /**
-   * @param s      example input: "03/Feb/2020:17:38:48 +0300"
-   * @param format example:
-   * @return
-   * @throws IllegalArgumentException
-   */
-  public static Long parseDateAndTime(String s, DateFormat format) throws IllegalArgumentException {
-    Date date;
-    try {
-      date = format.parse(s);
-    } catch (ParseException e) {
-      throw new IllegalArgumentException("The input '" + s + "' does not match the date format '" + format + "'");
-    }
-    return date.getTime();
-  }
-}
+package org.jepria.retrificator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class AccessLogReader {
+  
+  private AccessLogReader() {}
+  
+  public static final Pattern RECORD_PATTERN_DEFAULT = Pattern.compile("([^ ]+) ([^ ]+) ([^ ]+) \\[([^]]+)] \"([^\"]+)\" ([^ ]+) ([^ ]+)");
+  
+  public static final Pattern REQUEST_PATTERN_DEFAULT = Pattern.compile("([^ ]+) ([^ ]+) ([^ ]+)");
+  
+  /**
+   * Not thread-safe, use {@link AccessLogParser#getDateFormat()} for concurrent parsing
+   */
+  public static final DateFormat DATE_FORMAT_DEFAULT = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US/*because MMM is written in english*/);
+  
+  /**
+   * For the log record format see javadoc for org.apache.catalina.valves.AbstractAccessLogValve
+   * <br/>
+   * Example: "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] "POST /manager/html/undeploy?path=/Ubs HTTP/1.1" 200 309828"
+   */
+  public static class Record {
+    public String remoteHostName;
+    public String remoteLogicalUsername;
+    public String remoteUser;
+    public Long dateAndTime;
+    public Request request;
+    public String httpStatus;
+    public String bytesSent;
+    
+    @Override
+    public String toString() {
+      return "AccessLogRecord{" +
+              "remoteHostName='" + remoteHostName + '\'' +
+              ", remoteLogicalUsername='" + remoteLogicalUsername + '\'' +
+              ", remoteUser='" + remoteUser + '\'' +
+              ", dateAndTime='" + dateAndTime + '\'' +
+              ", request='" + request + '\'' +
+              ", httpStatus='" + httpStatus + '\'' +
+              ", bytesSent='" + bytesSent + '\'' +
+              '}';
+    }
+  }
+  
+  /**
+   * A double-quoted part of a log record
+   * Example: "POST /manager/html/undeploy?path=/Ubs HTTP/1.1"
+   */
+  public static class Request {
+    public String method;
+    public String url;
+    public String protocol;
+    
+    @Override
+    public String toString() {
+      return "Request{" +
+              "method='" + method + '\'' +
+              ", url='" + url + '\'' +
+              ", protocol='" + protocol + '\'' +
+              '}';
+    }
+  }
+  
+  /**
+   * Builds a {@link Record} from the fields reported by the {@link AccessLogParser}
+   */
+  protected static class RecordBuilder implements AccessLogParser.FieldSink {
+    protected final Record record = new Record();
+    
+    protected Request request() {
+      if (record.request == null) {
+        record.request = new Request();
+      }
+      return record.request;
+    }
+    
+    @Override
+    public void remoteHostName(CharSequence s, int start, int end) {
+      record.remoteHostName = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void remoteLogicalUsername(CharSequence s, int start, int end) {
+      record.remoteLogicalUsername = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void remoteUser(CharSequence s, int start, int end) {
+      record.remoteUser = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void dateAndTime(long dateAndTime) {
+      record.dateAndTime = dateAndTime;
+    }
+    
+    @Override
+    public void method(CharSequence s, int start, int end) {
+      request().method = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void url(CharSequence s, int start, int end) {
+      request().url = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void protocol(CharSequence s, int start, int end) {
+      request().protocol = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void httpStatus(CharSequence s, int start, int end) {
+      record.httpStatus = s.subSequence(start, end).toString();
+    }
+    
+    @Override
+    public void bytesSent(CharSequence s, int start, int end) {
+      record.bytesSent = s.subSequence(start, end).toString();
+    }
+  }
+  
+  /**
+   * Parses the record in the default format with the {@link AccessLogParser#getDefault()},
+   * the result is the same as of {@link #parseRecord(String, Pattern, DateFormat, Pattern)} with the default patterns and format
+   *
+   * @param s
+   * @return
+   * @throws IllegalArgumentException
+   */
+  public static Record parseRecord(String s) throws IllegalArgumentException {
+    return parseRecord((CharSequence) s);
+  }
+  
+  /**
+   * Same as {@link #parseRecord(String)} but for any char sequence, e.g. {@link ByteCharSequence}
+   *
+   * @param s
+   * @return
+   * @throws IllegalArgumentException
+   */
+  public static Record parseRecord(CharSequence s) throws IllegalArgumentException {
+    return parseRecord(s, AccessLogParser.getDefault());
+  }
+  
+  /**
+   * @param s
+   * @param parser NotNull the parser for the log format, e.g. compiled by {@link AccessLogFormat#compile(String)}
+   * @return
+   * @throws IllegalArgumentException
+   */
+  public static Record parseRecord(CharSequence s, AccessLogParser parser) throws IllegalArgumentException {
+    RecordBuilder builder = new RecordBuilder();
+    if (parser.parse(s, builder)) {
+      return builder.record;
+    } else {
+      // the slow path for the detailed failure message
+      throw parser.describeFailure(s);
+    }
+  }
+  
+  /**
+   * Receives the lines read by {@link #readLines(FileChannel, long, long, LineHandler)}
+   */
+  public interface LineHandler {
+    /**
+     * @param line the line without line terminator, valid only during the invocation
+     * @param offset position of the line start in the file
+     */
+    void line(ByteCharSequence line, long offset);
+  }
+  
+  /**
+   * Reads the complete (terminated with '\n') lines from the file channel in the range specified.
+   * The trailing incomplete line is not read, it is up to the next invocation to read it once completed.
+   *
+   * @param channel NotNull
+   * @param position position to start reading from, must be a line start
+   * @param limit position to read up to, exclusive
+   * @param handler NotNull
+   * @return position right after the last complete line read
+   * @throws IOException
+   */
+  public static long readLines(FileChannel channel, long position, long limit, LineHandler handler) throws IOException {
+    LineReader reader = new LineReader(channel, position, limit);
+    ByteCharSequence line;
+    while ((line = reader.nextLine()) != null) {
+      handler.line(line, reader.getLineOffset());
+    }
+    return reader.getPosition();
+  }
+  
+  /**
+   * Push-style parsing of the complete lines of the file with no per-record allocation
+   *
+   * @param file NotNull
+   * @param sink NotNull receives the records parsed successfully
+   * @param malformedLineHandler Nullable receives the lines failed to parse
+   * @return position right after the last complete line read
+   * @throws IOException
+   */
+  public static long parse(Path file, AccessLogParser.FieldSink sink, LineHandler malformedLineHandler) throws IOException {
+    return parse(file, AccessLogParser.getDefault(), sink, malformedLineHandler);
+  }
+  
+  /**
+   * @param file NotNull
+   * @param parser NotNull the parser for the log format
+   * @param sink NotNull receives the records parsed successfully
+   * @param malformedLineHandler Nullable receives the lines failed to parse
+   * @return position right after the last complete line read
+   * @throws IOException
+   * @see #parse(Path, AccessLogParser.FieldSink, LineHandler)
+   */
+  public static long parse(Path file, AccessLogParser parser, AccessLogParser.FieldSink sink, LineHandler malformedLineHandler) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return readLines(channel, 0, channel.size(), parsingHandler(parser, sink, malformedLineHandler));
+    }
+  }
+  
+  /**
+   * Push-style parsing of the complete lines of the input stream with no per-record allocation
+   *
+   * @param in NotNull, not closed by the method
+   * @param sink NotNull receives the records parsed successfully
+   * @param malformedLineHandler Nullable receives the lines failed to parse
+   * @return number of bytes of the complete lines read
+   * @throws IOException
+   */
+  public static long parse(InputStream in, AccessLogParser.FieldSink sink, LineHandler malformedLineHandler) throws IOException {
+    return parse(in, AccessLogParser.getDefault(), sink, malformedLineHandler);
+  }
+  
+  /**
+   * @param in NotNull, not closed by the method
+   * @param parser NotNull the parser for the log format
+   * @param sink NotNull receives the records parsed successfully
+   * @param malformedLineHandler Nullable receives the lines failed to parse
+   * @return number of bytes of the complete lines read
+   * @throws IOException
+   * @see #parse(InputStream, AccessLogParser.FieldSink, LineHandler)
+   */
+  public static long parse(InputStream in, AccessLogParser parser, AccessLogParser.FieldSink sink, LineHandler malformedLineHandler) throws IOException {
+    LineReader reader = new LineReader(in);
+    LineHandler handler = parsingHandler(parser, sink, malformedLineHandler);
+    ByteCharSequence line;
+    while ((line = reader.nextLine()) != null) {
+      handler.line(line, reader.getLineOffset());
+    }
+    return reader.getPosition();
+  }
+  
+  private static LineHandler parsingHandler(AccessLogParser parser, AccessLogParser.FieldSink sink, LineHandler malformedLineHandler) {
+    return (line, offset) -> {
+      if (!parser.parse(line, sink) && malformedLineHandler != null) {
+        malformedLineHandler.line(line, offset);
+      }
+    };
+  }
+  
+  /**
+   * Lazily populated stream of the records of the file, splittable for the parallel processing.
+   * The malformed lines are skipped. The stream must be closed to release the file.
+   *
+   * @param file NotNull
+   * @return
+   * @throws IOException
+   */
+  public static Stream<Record> stream(Path file) throws IOException {
+    return stream(file, null);
+  }
+  
+  /**
+   * @param file NotNull
+   * @param malformedLineHandler Nullable receives the lines failed to parse, must be thread-safe for the parallel stream
+   * @return
+   * @throws IOException
+   * @see #stream(Path)
+   */
+  public static Stream<Record> stream(Path file, LineHandler malformedLineHandler) throws IOException {
+    return stream(file, AccessLogParser.getDefault(), malformedLineHandler);
+  }
+  
+  /**
+   * @param file NotNull
+   * @param parser NotNull the parser for the log format
+   * @param malformedLineHandler Nullable receives the lines failed to parse, must be thread-safe for the parallel stream
+   * @return
+   * @throws IOException
+   * @see #stream(Path)
+   */
+  public static Stream<Record> stream(Path file, AccessLogParser parser, LineHandler malformedLineHandler) throws IOException {
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      final long limit = channel.size();
+      return StreamSupport.stream(new RecordSpliterator(channel, 0, limit, parser, malformedLineHandler), false)
+              .onClose(() -> {
+                try {
+                  channel.close();
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              });
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+  
+  /**
+   * Lazily populated sequential stream of the records of the input stream. The malformed lines are skipped.
+   *
+   * @param in NotNull, not closed by the stream
+   * @return
+   */
+  public static Stream<Record> stream(InputStream in) {
+    return StreamSupport.stream(new RecordSpliterator(new LineReader(in), AccessLogParser.getDefault(), null), false);
+  }
+  
+  /**
+   * @return position right after the first '\n' at or after the position, or the limit
+   */
+  public static long nextLineStart(FileChannel channel, long position, long limit) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+    long bufferPosition = position;
+    while (bufferPosition < limit) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), limit - bufferPosition));
+      final int read = channel.read(buffer, bufferPosition);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return bufferPosition + i + 1;
+        }
+      }
+      bufferPosition += read;
+    }
+    return limit;
+  }
+  
+  /**
+   * @return position right after the last '\n' before the limit, or the position if there is no such
+   */
+  public static long lastLineEnd(FileChannel channel, long position, long limit) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+    long bufferEnd = limit;
+    while (bufferEnd > position) {
+      final long bufferPosition = Math.max(position, bufferEnd - buffer.capacity());
+      buffer.clear();
+      buffer.limit((int) (bufferEnd - bufferPosition));
+      int read = 0;
+      while (buffer.hasRemaining()) {
+        int r = channel.read(buffer, bufferPosition + read);
+        if (r < 0) {
+          break;
+        }
+        read += r;
+      }
+      for (int i = read - 1; i >= 0; i--) {
+        if (buffer.get(i) == '\n') {
+          return bufferPosition + i + 1;
+        }
+      }
+      bufferEnd = bufferPosition;
+    }
+    return position;
+  }
+  
+  /**
+   * Splits by the line-aligned ranges of the file, if created over a file channel
+   */
+  private static class RecordSpliterator implements Spliterator<Record> {
+    
+    /**
+     * Do not split the ranges smaller than that
+     */
+    private static final long MIN_SPLIT_SIZE = 1024 * 1024;
+    
+    private final FileChannel channel;
+    private final long limit;
+    private final LineHandler malformedLineHandler;
+    private final AccessLogParser parser;
+    
+    private long position;
+    private LineReader reader;
+    
+    RecordSpliterator(FileChannel channel, long position, long limit, AccessLogParser parser, LineHandler malformedLineHandler) {
+      this.channel = channel;
+      this.position = position;
+      this.limit = limit;
+      this.parser = parser;
+      this.malformedLineHandler = malformedLineHandler;
+    }
+    
+    RecordSpliterator(LineReader reader, AccessLogParser parser, LineHandler malformedLineHandler) {
+      this.channel = null;
+      this.position = 0;
+      this.limit = Long.MAX_VALUE;
+      this.reader = reader;
+      this.parser = parser;
+      this.malformedLineHandler = malformedLineHandler;
+    }
+    
+    @Override
+    public boolean tryAdvance(Consumer<? super Record> action) {
+      if (reader == null) {
+        reader = new LineReader(channel, position, limit);
+      }
+      try {
+        ByteCharSequence line;
+        while ((line = reader.nextLine()) != null) {
+          RecordBuilder builder = new RecordBuilder();
+          if (parser.parse(line, builder)) {
+            action.accept(builder.record);
+            return true;
+          } else if (malformedLineHandler != null) {
+            malformedLineHandler.line(line, reader.getLineOffset());
+          }
+        }
+        return false;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    
+    @Override
+    public Spliterator<Record> trySplit() {
+      if (channel == null) {
+        return null;
+      }
+      final long from = reader == null ? position : reader.getPosition();
+      if (limit - from < MIN_SPLIT_SIZE) {
+        return null;
+      }
+      final long middle;
+      try {
+        middle = nextLineStart(channel, from + (limit - from) / 2, limit);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (middle >= limit) {
+        return null;
+      }
+      // this takes the second half
+      RecordSpliterator prefix = new RecordSpliterator(channel, from, middle, parser, malformedLineHandler);
+      position = middle;
+      reader = null;
+      return prefix;
+    }
+    
+    @Override
+    public long estimateSize() {
+      // no way to count the lines without reading
+      return channel == null ? Long.MAX_VALUE : limit - (reader == null ? position : reader.getPosition());
+    }
+    
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+    }
+  }
+  
+  /**
+   * @param s              example input: "10.50.132.206 - admin [07/Feb/2020:18:01:00 +0300] "POST /manager/html/undeploy?path=/Ubs HTTP/1.1" 200 309828"
+   * @param recordPattern
+   * @param dateFormat
+   * @param requestPattern
+   * @return
+   * @throws IllegalArgumentException
+   */
+  public static Record parseRecord(String s, Pattern recordPattern, DateFormat dateFormat, Pattern requestPattern) throws IllegalArgumentException {
+    
+    Matcher m = recordPattern.matcher(s);
+    if (m.matches()) {
+      
+      Record record = new Record();
+      record.remoteHostName = m.group(1);
+      record.remoteLogicalUsername = m.group(2);
+      record.remoteUser = m.group(3);
+      try {
+        record.dateAndTime = parseDateAndTime(m.group(4), dateFormat);
+      } catch (IllegalArgumentException e) {
+        // TODO throw or log? If not to throw but log instead, the API user can get enough with a partially parsed record
+        throw new IllegalArgumentException("The string '" + AccessLogParser.abbreviate(s) + "' does not match the pattern '" + recordPattern + "'", e);
+      }
+      try {
+        record.request = parseRequest(m.group(5), requestPattern);
+      } catch (IllegalArgumentException e) {
+        // TODO throw or log? If not to throw but log instead, the API user can get enough with a partially parsed record
+        throw new IllegalArgumentException("The string '" + AccessLogParser.abbreviate(s) + "' does not match the pattern '" + recordPattern + "'", e);
+      }
+      record.httpStatus = m.group(6);
+      record.bytesSent = m.group(7);
+      return record;
+      
+    } else {
+      throw new IllegalArgumentException("The input '" + AccessLogParser.abbreviate(s) + "' does not match the pattern '" + recordPattern + "'");
+    }
+  }
+  
+  /**
+   * @param s example input: "POST /manager/html/undeploy?path=/Ubs HTTP/1.1"
+   * @return
+   * @throws IllegalArgumentException
+   */
+  public static Request parseRequest(String s, Pattern requestPattern) throws IllegalArgumentException {
+    Matcher m = requestPattern.matcher(s);
+    if (m.matches()) {
+      Request request = new Request();
+      request.method = m.group(1);
+      request.url = m.group(2);
+      request.protocol = m.group(3);
+      return request;
+    } else {
+      throw new IllegalArgumentException("The string '" + AccessLogParser.abbreviate(s) + "' does not match against the pattern '" + requestPattern + "'");
+    }
+  }
+  
+  /**
+   * @param s      example input: "03/Feb/2020:17:38:48 +0300"
+   * @param format example:
+   * @return
+   * @throws IllegalArgumentException
+   */
+  public static Long parseDateAndTime(String s, DateFormat format) throws IllegalArgumentException {
+    Date date;
+    try {
+      date = format.parse(s);
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("The input '" + AccessLogParser.abbreviate(s) + "' does not match the date format '" + format + "'");
+    }
+    return date.getTime();
+  }
+}
@@ -0,0 +1,255 @@
+package org.jepria.retrificator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The log output written by a background thread in batches, for the logging threads never to block on the file I/O.
+ * <br/>
+ * The output is split into lines, the level of a line is its {@code ERROR:}, {@code WARNING:} or {@code VERBOSE:} prefix
+ * (the other lines, such as the stack traces, continue the level of the previous line).
+ * The complete lines are queued and the background thread writes the whole queue with a single write.
+ * If the lines are produced faster than written, the queue is bounded: the {@code VERBOSE} lines are dropped once the queue
+ * is over the half of the limit, the rest of the lines once over the limit; the number of the lines dropped is reported
+ * in the log as soon as the queue is written.
+ * <br/>
+ * The {@link #flush()} does not wait for the write (so the auto-flushing {@link java.io.PrintStream} over this stream does not block),
+ * the {@link #close()} does. On the JVM shutdown the lines queued are written, and the lines logged afterwards
+ * (by the other shutdown hooks running concurrently, such as the daemon completing its run) are written synchronously.
+ * <br/>
+ * Thread-safe.
+ */
+class AsyncLogOutputStream extends OutputStream {
+
+  public static final int DEFAULT_QUEUE_LIMIT = 8 * 1024 * 1024;
+
+  private final OutputStream out;
+  private final int queueLimit;
+
+  /**
+   * The current line, not complete yet
+   */
+  private final LineBuffer line = new LineBuffer();
+  /**
+   * Whether the current line continues a {@code VERBOSE} one
+   */
+  private boolean verboseLine;
+  /**
+   * Whether the lines continuing the dropped one are dropped as well
+   */
+  private boolean droppingLine;
+
+  /**
+   * The complete lines to be written, guarded by this
+   */
+  private ByteArrayOutputStream queue = new ByteArrayOutputStream();
+  private long droppedLines;
+  private boolean closed;
+  /**
+   * Whether the background thread is stopped on the JVM shutdown, for the lines to be written synchronously
+   */
+  private boolean draining;
+  private boolean synchronous;
+
+  private final Thread writer;
+  private final Thread shutdownHook;
+
+  /**
+   * @param out NotNull the output to write into from the background thread, closed on {@link #close()}
+   */
+  public AsyncLogOutputStream(OutputStream out) {
+    this(out, DEFAULT_QUEUE_LIMIT);
+  }
+
+  /**
+   * @param out NotNull the output to write into from the background thread, closed on {@link #close()}
+   * @param queueLimit max size of the lines queued, in bytes
+   */
+  public AsyncLogOutputStream(OutputStream out, int queueLimit) {
+    this.out = out;
+    this.queueLimit = queueLimit;
+
+    writer = new Thread(this::writeLoop, "retrificator-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    shutdownHook = new Thread(this::drain);
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    line.write(b);
+    if (b == '\n') {
+      endLine();
+    }
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    int start = off;
+    for (int i = off; i < off + len; i++) {
+      if (b[i] == '\n') {
+        line.write(b, start, i + 1 - start);
+        endLine();
+        start = i + 1;
+      }
+    }
+    line.write(b, start, off + len - start);
+  }
+
+  /**
+   * Queues the complete line or drops it
+   */
+  private void endLine() {
+    if (line.startsWith("ERROR:") || line.startsWith("WARNING:")) {
+      verboseLine = false;
+      droppingLine = false;
+    } else if (line.startsWith("VERBOSE:")) {
+      verboseLine = true;
+      droppingLine = false;
+    }
+
+    if (synchronous && !closed) {
+      try {
+        line.writeTo(out);
+        out.flush();
+      } catch (IOException e) {
+        // nowhere to log
+      }
+      line.reset();
+      return;
+    }
+
+    final int limit = verboseLine ? queueLimit / 2 : queueLimit;
+    if (droppingLine || closed || queue.size() + line.size() > limit) {
+      // the continuation lines of a dropped line are not counted separately
+      if (!droppingLine) {
+        if (droppedLines++ == 0) {
+          notifyAll();
+        }
+      }
+      droppingLine = true;
+    } else {
+      if (queue.size() == 0) {
+        notifyAll();
+      }
+      line.appendTo(queue);
+    }
+    line.reset();
+  }
+
+  private static class LineBuffer extends ByteArrayOutputStream {
+    void appendTo(ByteArrayOutputStream out) {
+      out.write(buf, 0, count);
+    }
+
+    boolean startsWith(String prefix) {
+      if (count < prefix.length()) {
+        return false;
+      }
+      for (int i = 0; i < prefix.length(); i++) {
+        if (buf[i] != prefix.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private void writeLoop() {
+    while (true) {
+      final ByteArrayOutputStream batch;
+      final long dropped;
+      synchronized (this) {
+        while (queue.size() == 0 && droppedLines == 0 && !closed && !draining) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // keep writing until closed
+          }
+        }
+        if (queue.size() == 0 && droppedLines == 0 && (closed || draining)) {
+          return;
+        }
+        batch = queue;
+        dropped = droppedLines;
+        queue = new ByteArrayOutputStream(Math.min(batch.size(), 64 * 1024));
+        droppedLines = 0;
+      }
+
+      try {
+        batch.writeTo(out);
+        if (dropped > 0) {
+          out.write(("WARNING: " + dropped + " log lines dropped as produced faster than written\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+      } catch (IOException e) {
+        // nowhere to log
+      }
+    }
+  }
+
+  /**
+   * Does not wait for the lines to be written
+   */
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * Writes the complete lines queued (the incomplete line is discarded) and closes the output
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // closing on the shutdown
+    }
+    out.close();
+  }
+
+  /**
+   * Writes the lines queued and stops the background thread, the output is left open for the lines written afterwards
+   */
+  private void drain() {
+    synchronized (this) {
+      if (closed || draining) {
+        return;
+      }
+      draining = true;
+      notifyAll();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      // the lines queued since the background thread has taken its last batch
+      try {
+        queue.writeTo(out);
+        out.flush();
+      } catch (IOException e) {
+        // nowhere to log
+      }
+      queue.reset();
+      synchronous = true;
+    }
+  }
+}
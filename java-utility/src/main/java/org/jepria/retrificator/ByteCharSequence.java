@@ -0,0 +1,93 @@
+package org.jepria.retrificator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable (flyweight) {@link CharSequence} view over a range of bytes, one byte per char (ISO-8859-1).
+ * Allows parsing the access log bytes without decoding them into Strings.
+ * <br/>
+ * Not thread-safe: each reading thread must use its own instance.
+ */
+public final class ByteCharSequence implements CharSequence {
+
+  private ByteBuffer buffer;
+  private int offset;
+  private int length;
+  private boolean truncated;
+
+  public ByteCharSequence() {
+  }
+
+  /**
+   * @param buffer NotNull
+   * @param start absolute start index in the buffer, inclusive
+   * @param end absolute end index in the buffer, exclusive
+   * @return this
+   */
+  public ByteCharSequence reset(ByteBuffer buffer, int start, int end) {
+    return reset(buffer, start, end, false);
+  }
+
+  /**
+   * @param buffer NotNull
+   * @param start absolute start index in the buffer, inclusive
+   * @param end absolute end index in the buffer, exclusive
+   * @param truncated whether the range is only the start of a longer line, see {@link #isTruncated()}
+   * @return this
+   */
+  public ByteCharSequence reset(ByteBuffer buffer, int start, int end, boolean truncated) {
+    if (start < 0 || end < start || end > buffer.limit()) {
+      throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", limit: " + buffer.limit());
+    }
+    this.buffer = buffer;
+    this.offset = start;
+    this.length = end - start;
+    this.truncated = truncated;
+    return this;
+  }
+
+  /**
+   * @return whether the chars are only the start of a line longer than the {@link LineReader#MAX_LINE_LENGTH},
+   * the rest skipped, so the line is malformed
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (buffer.get(offset + index) & 0xFF);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString(start, end);
+  }
+
+  /**
+   * @param start inclusive
+   * @param end exclusive
+   * @return new String of the chars in range
+   */
+  public String toString(int start, int end) {
+    if (start < 0 || end < start || end > length) {
+      throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+    }
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(offset + start + i);
+    }
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  @Override
+  public String toString() {
+    return toString(0, length);
+  }
+}
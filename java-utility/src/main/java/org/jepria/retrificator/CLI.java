@@ -1,130 +1,376 @@
-package org.jepria.retrificator;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
-
-/**
- * CLI options:
- * <pre>
- * -v --verbose: whether to log everything or just errors
- * -t --tomcat-root [<absolute directory path>]: tomcat root (home) directory
- * -r --retrificator-root [<absolute directory path>]: retrificator root directory
- * -a --access-age [<long>]: latest access age in milliseconds, for the apps to be retrified. Default 14400 (10 days)
- * -d --deploy-age [<long>]: latest deploy age in milliseconds, for the apps to be retrified. Default 43200 (30 days)
- * </pre>
- */
-public class CLI {
-  public static void main(String[] args) {
-
-    File tomcatRoot = null;
-    boolean verbose = false;
-    File retrificatorRoot = null;
-
-    int accessAgeMins = 14400; // 10 days
-    int deployAgeMins = 43200; // 30 days
-
-    for (int i = 0; i < args.length; i++) {
-      String arg = args[i];
-      if ("-t".equals(arg) || "--tomcat-root".equals(arg)) {
-        i++;
-        if (i >= args.length) {
-          throw new IllegalArgumentException("No value provided for the '" + arg + "' argument");
-        }
-        String val = args[i];
-        tomcatRoot = new File(val);
-
-      } else if ("-v".equals(arg) || "--verbose".equals(arg)) {
-        verbose = true;
-      } else if ("-r".equals(arg) || "--retrificator-root".equals(arg)) {
-        i++;
-        if (i >= args.length) {
-          throw new IllegalArgumentException("No value provided for the '" + arg + "' argument");
-        }
-        String val = args[i];
-        retrificatorRoot = new File(val);
-
-      } else if ("-a".equals(arg) || "--access-age".equals(arg)) {
-        i++;
-        if (i >= args.length) {
-          throw new IllegalArgumentException("No value provided for the '" + arg + "' argument");
-        }
-        String val = args[i];
-        try {
-          accessAgeMins = Integer.parseInt(val);
-        } catch (NumberFormatException e) {
-          throw new IllegalArgumentException("Failed to parse the value '" + val + "' as integer", e);
-        }
-        if (accessAgeMins <= 0) {
-          throw new IllegalArgumentException("Illegal value '" + val + "': positive integer allowed");
-        }
-      } else if ("-d".equals(arg) || "--deploy-age".equals(arg)) {
-        i++;
-        if (i >= args.length) {
-          throw new IllegalArgumentException("No value provided for the '" + arg + "' argument");
-        }
-        String val = args[i];
-        try {
-          deployAgeMins = Integer.parseInt(val);
-        } catch (NumberFormatException e) {
-          throw new IllegalArgumentException("Failed to parse the value '" + val + "' as integer", e);
-        }
-        if (deployAgeMins <= 0) {
-          throw new IllegalArgumentException("Illegal value '" + val + "': positive integer allowed");
-        }
-      }
-
-
-    }
-
-
-    if (tomcatRoot == null) {
-      throw new IllegalStateException("Tomcat root directory not specified. Use '--tomcat-root' ('-t') option");
-    }
-    if (retrificatorRoot == null) {
-      throw new IllegalStateException("Retrificator root directory not specified. Use '--retrificator-root' ('-r') option");
-    }
-
-    File retrificatorStateFileInternal = new File(retrificatorRoot, "retrificator-state.json");
-    File retrificatorLogFileInternal = new File(retrificatorRoot, "retrificator-log.txt");
-
-    File retrificatorIgnoreAppsFileInternal = new File(retrificatorRoot, "ignore-apps.txt");
-    List<String> ignoreAppNameRegexps = readIgnoreApps(retrificatorIgnoreAppsFileInternal);
-  
-    Tomcat tomcat = new TomcatImpl(tomcatRoot);
-    
-    
-    Retrificator r = new Retrificator(tomcat, retrificatorStateFileInternal, verbose, retrificatorLogFileInternal);
-    r.setIgnoreAppNameRegexps(ignoreAppNameRegexps);
-    r.warnUnboundWebapps();
-    Retrificator.Strategy strategy = Retrificator.Strategy.newBuilder()
-            .byAccessAge(accessAgeMins * 60 * 1000L)
-            .byDeployAge(deployAgeMins * 60 * 1000L)
-            .create();
-    r.retrify(strategy);
-  }
-
-  protected static List<String> readIgnoreApps(File file) {
-    final List<String> ignoreAppNameRegexps = new ArrayList<>();
-
-    if (file.exists()) {
-      try (Scanner sc = new Scanner(file)) {
-        while (sc.hasNextLine()) {
-          String s = sc.nextLine();
-          if (s != null) {
-            String sTrim = s.trim();
-            if (!"".equals(sTrim) && !sTrim.startsWith("#")) {
-              ignoreAppNameRegexps.add(sTrim);
-            }
-          }
-        }
-      } catch (FileNotFoundException e) {
-        throw new RuntimeException(e); // impossible
-      }
-    }
-
-    return ignoreAppNameRegexps;
-  }
-}
+package org.jepria.retrificator;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.function.Consumer;
+
+/**
+ * CLI options:
+ * <pre>
+ * -v --verbose: whether to log everything or just errors
+ * -t --tomcat-root [<absolute directory path>]: tomcat root (home) directory
+ * -r --retrificator-root [<absolute directory path>]: retrificator root directory
+ * -a --access-age [<long>]: latest access age in milliseconds, for the apps to be retrified. Default 14400 (10 days)
+ * -d --deploy-age [<long>]: latest deploy age in milliseconds, for the apps to be retrified. Default 43200 (30 days)
+ * --capacity [<int>]: max total weight of the live (not retrified) webapps, the least recently used ones over it are retrified regardless of the ages.
+ *   In webapps, or in megabytes for the size weights. Default: no capacity bound
+ * --capacity-weight [count|war-size|deployed-size]: the weight of a webapp for the capacity. Default count
+ * --min-requests [<int>]: min number of requests within the window, for the apps requested fewer times to be retrified. Default: no minimum
+ * --min-requests-window [<int>]: the window of the min requests before now, in minutes. Default 10080 (7 days)
+ * --simulate: instead of the retrification, print the webapps the strategy options would retrify now, evaluated against the state
+ *   and the request counts as of the latest run, with no access logs read and nothing changed
+ * --scan-threads [<int>]: number of threads to scan a single large access log file with. Default 1 (sequential scan)
+ * --scan-chunk-size [<int>]: size of a chunk of an access log file to scan in parallel, in megabytes. Default 64
+ * --ingest-threads [<int>]: max number of access log files to process concurrently. Default 1 (one by one)
+ * --newest-first: process the access logs from the newest to the oldest one, each backwards, stopping as soon as the latest access of every webapp is known. Not applicable along with the --min-requests
+ * --access-log-pattern [<pattern>]: tomcat access log valve pattern of the access logs. Default: discovered from the conf/server.xml, or 'common'
+ * --daemon: keep running, ingesting the access logs and retrifying the webapps periodically, until terminated
+ * --ingest-interval [<int>]: in the daemon mode, interval between the access log ingestions, in seconds. Default 60
+ * --retrify-interval [<int>]: in the daemon mode, interval between the retrifications, in minutes. Default 60
+ * --revive: in the daemon mode, revive the retrified webapps as soon as they are requested (answered with 404 in the access logs)
+ * --revive-interval [<int>]: in the daemon mode, interval between the checks of the access logs for the requests to the retrified webapps, in seconds. Default 1
+ * --retro-store: retrify the webapps into the deduplicated store in the retrificator root (see {@link RetroStore}) instead of renaming the war files
+ * --restore [<webapp name>]: instead of the retrification, revive the retrified webapp (either renamed or stored into the retro store)
+ * --retrify-batch-size [<int>]: max number of webapps to retrify at once, before awaiting their undeployment. Default: all at once
+ * --retrify-rate [<int>]: max number of webapps to retrify per minute. Default: no limit
+ * --undeploy-timeout [<int>]: max time to await the undeployment of a batch of retrified webapps, in seconds. Default 0 (no awaiting)
+ * --fleet [<file path>]: json configuration of many tomcat instances to be managed at once (see {@link RetrificatorFleet#readConfig}),
+ *   instead of the tomcat root, retrificator root, access age, deploy age and access log pattern options
+ * </pre>
+ */
+public class CLI {
+  public static void main(String[] args) {
+
+    File tomcatRoot = null;
+    boolean verbose = false;
+    File retrificatorRoot = null;
+
+    int accessAgeMins = 14400; // 10 days
+    int deployAgeMins = 43200; // 30 days
+    
+    Integer capacity = null;
+    Retrificator.CapacityWeight capacityWeight = Retrificator.CapacityWeight.COUNT;
+    
+    Integer minRequests = null;
+    int minRequestsWindowMins = 10080; // 7 days
+    boolean simulate = false;
+    
+    int scanThreads = 1;
+    int scanChunkSizeMb = ParallelAccessLogScanner.DEFAULT_CHUNK_SIZE / 1024 / 1024;
+    int ingestThreads = 1;
+    String accessLogPattern = null;
+    boolean newestFirst = false;
+    boolean daemon = false;
+    int ingestIntervalSecs = 60;
+    int retrifyIntervalMins = 60;
+    int retrifyBatchSize = Integer.MAX_VALUE;
+    int retrifyRate = 0;
+    int undeployTimeoutSecs = 0;
+    boolean revive = false;
+    boolean retroStore = false;
+    String restoreWebappName = null;
+    int reviveIntervalSecs = 1;
+    File fleetConfig = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if ("-t".equals(arg) || "--tomcat-root".equals(arg)) {
+        tomcatRoot = new File(nextValue(args, ++i, arg));
+      } else if ("-v".equals(arg) || "--verbose".equals(arg)) {
+        verbose = true;
+      } else if ("-r".equals(arg) || "--retrificator-root".equals(arg)) {
+        retrificatorRoot = new File(nextValue(args, ++i, arg));
+      } else if ("-a".equals(arg) || "--access-age".equals(arg)) {
+        accessAgeMins = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("-d".equals(arg) || "--deploy-age".equals(arg)) {
+        deployAgeMins = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--capacity".equals(arg)) {
+        capacity = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--capacity-weight".equals(arg)) {
+        capacityWeight = parseCapacityWeight(nextValue(args, ++i, arg));
+      } else if ("--min-requests".equals(arg)) {
+        minRequests = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--min-requests-window".equals(arg)) {
+        minRequestsWindowMins = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--simulate".equals(arg)) {
+        simulate = true;
+      } else if ("--scan-threads".equals(arg)) {
+        scanThreads = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--scan-chunk-size".equals(arg)) {
+        String val = nextValue(args, ++i, arg);
+        scanChunkSizeMb = parsePositiveInt(val);
+        if (scanChunkSizeMb > ParallelAccessLogScanner.MAX_CHUNK_SIZE / 1024 / 1024) {
+          throw new IllegalArgumentException("Illegal value '" + val + "': positive integer up to " + ParallelAccessLogScanner.MAX_CHUNK_SIZE / 1024 / 1024 + " allowed");
+        }
+      } else if ("--ingest-threads".equals(arg)) {
+        ingestThreads = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--newest-first".equals(arg)) {
+        newestFirst = true;
+      } else if ("--access-log-pattern".equals(arg)) {
+        accessLogPattern = nextValue(args, ++i, arg);
+      } else if ("--daemon".equals(arg)) {
+        daemon = true;
+      } else if ("--ingest-interval".equals(arg)) {
+        ingestIntervalSecs = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--retrify-interval".equals(arg)) {
+        retrifyIntervalMins = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--revive".equals(arg)) {
+        revive = true;
+      } else if ("--revive-interval".equals(arg)) {
+        reviveIntervalSecs = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--retro-store".equals(arg)) {
+        retroStore = true;
+      } else if ("--restore".equals(arg)) {
+        restoreWebappName = nextValue(args, ++i, arg);
+      } else if ("--retrify-batch-size".equals(arg)) {
+        retrifyBatchSize = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--retrify-rate".equals(arg)) {
+        retrifyRate = parsePositiveInt(nextValue(args, ++i, arg));
+      } else if ("--undeploy-timeout".equals(arg)) {
+        undeployTimeoutSecs = parseNonNegativeInt(nextValue(args, ++i, arg));
+      } else if ("--fleet".equals(arg)) {
+        fleetConfig = new File(nextValue(args, ++i, arg));
+      }
+    }
+
+    
+    final int scanParallelism = scanThreads;
+    final int scanChunkSize = scanChunkSizeMb * 1024 * 1024;
+    final int ingestParallelism = ingestThreads;
+    final boolean newestFirstFinal = newestFirst;
+    final int retrifyBatchSizeFinal = retrifyBatchSize;
+    final int retrifyRateFinal = retrifyRate;
+    final long undeployTimeout = undeployTimeoutSecs * 1000L;
+    final Consumer<Retrificator> settings = r -> {
+      r.setScanParallelism(scanParallelism);
+      r.setScanChunkSize(scanChunkSize);
+      r.setIngestParallelism(ingestParallelism);
+      r.setNewestFirst(newestFirstFinal);
+      r.setRetrifyBatchSize(retrifyBatchSizeFinal);
+      r.setRetrifyRate(retrifyRateFinal);
+      r.setUndeployTimeout(undeployTimeout);
+    };
+    
+    if (revive && !daemon) {
+      throw new IllegalStateException("The '--revive' option is only applicable in the daemon mode. Use '--daemon' option");
+    }
+    final long reviveIntervalMillis = revive ? reviveIntervalSecs * 1000L : 0;
+    
+    if (simulate && (daemon || fleetConfig != null)) {
+      throw new IllegalStateException("The '--simulate' option is not applicable in the daemon or fleet mode");
+    }
+    
+    if (newestFirst && minRequests != null) {
+      // the newest first processing leaves the requests uncounted, so the request counts are never complete
+      throw new IllegalStateException("The '--min-requests' option is not applicable along with the '--newest-first' option");
+    }
+    
+    if (fleetConfig != null) {
+      runFleet(RetrificatorFleet.readConfig(fleetConfig), daemon, verbose, settings, ingestIntervalSecs, retrifyIntervalMins, reviveIntervalMillis);
+      return;
+    }
+
+    if (tomcatRoot == null) {
+      throw new IllegalStateException("Tomcat root directory not specified. Use '--tomcat-root' ('-t') option");
+    }
+    if (retrificatorRoot == null) {
+      throw new IllegalStateException("Retrificator root directory not specified. Use '--retrificator-root' ('-r') option");
+    }
+
+    File retrificatorStateFileInternal = new File(retrificatorRoot, "retrificator-state.json");
+    File retrificatorLogFileInternal = new File(retrificatorRoot, "retrificator-log.txt");
+
+    File retrificatorIgnoreAppsFileInternal = new File(retrificatorRoot, "ignore-apps.txt");
+    List<String> ignoreAppNameRegexps = readIgnoreApps(retrificatorIgnoreAppsFileInternal);
+    
+    File retrificatorPolicyFileInternal = new File(retrificatorRoot, "retrification-policy.txt");
+    RetrificationPolicy policy = RetrificationPolicy.read(retrificatorPolicyFileInternal);
+  
+    final TomcatImpl tomcat;
+    if (daemon) {
+      // the long-lived process tracks the changes instead of listing the directories on each run
+      try {
+        tomcat = new WatchingTomcat(tomcatRoot);
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to watch the tomcat directories", e);
+      }
+    } else {
+      tomcat = new TomcatImpl(tomcatRoot);
+    }
+    tomcat.setAccessLogPattern(accessLogPattern);
+    
+    
+    // the simulation logs to the console, along with its result
+    Retrificator r = new Retrificator(tomcat, retrificatorStateFileInternal, verbose, simulate ? null : retrificatorLogFileInternal);
+    tomcat.setLogStream(r.getLogStream());
+    r.setIgnoreAppNameRegexps(ignoreAppNameRegexps);
+    if (retroStore) {
+      r.setRetroStore(new RetroStore(new File(retrificatorRoot, "retro-store")));
+    }
+    settings.accept(r);
+    
+    if (restoreWebappName != null) {
+      Webapp webapp = tomcat.getInventory().get(restoreWebappName);
+      if (webapp == null) {
+        throw new IllegalArgumentException("No webapp '" + restoreWebappName + "' found in the tomcat");
+      }
+      if (!r.restore(webapp)) {
+        throw new IllegalStateException("Failed to restore the webapp '" + restoreWebappName + "', see the retrificator log");
+      }
+      return;
+    }
+    
+    r.warnUnboundWebapps();
+    Retrificator.StrategyBuilder strategyBuilder = Retrificator.Strategy.newBuilder()
+            .byAccessAge(accessAgeMins * 60 * 1000L)
+            .byDeployAge(deployAgeMins * 60 * 1000L)
+            .byPolicy(policy);
+    if (capacity != null) {
+      strategyBuilder.byCapacity(toCapacity(capacity, capacityWeight), capacityWeight);
+    }
+    if (minRequests != null) {
+      strategyBuilder.byMinRequests(minRequests, minRequestsWindowMins * 60L * 1000);
+    }
+    Retrificator.Strategy strategy = strategyBuilder.create();
+    
+    if (simulate) {
+      final long start = System.nanoTime();
+      final List<String> retrifications = r.simulate(strategy);
+      System.out.println("Simulated in " + (System.nanoTime() - start) / 1000000 + " ms: " + retrifications.size()
+              + " of " + tomcat.getInventory().size() + " webapps would be retrified");
+      for (String name : retrifications) {
+        System.out.println(name);
+      }
+      return;
+    }
+    
+    if (daemon) {
+      final RetrificatorDaemon retrificatorDaemon = new RetrificatorDaemon(r, strategy, ingestIntervalSecs * 1000L, retrifyIntervalMins * 60 * 1000L);
+      final RetrificatorReviver reviver = revive ? new RetrificatorReviver(r, tomcat, reviveIntervalMillis) : null;
+      // stop on SIGTERM (SIGINT) once the current run completes
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        if (reviver != null) {
+          reviver.close();
+        }
+        retrificatorDaemon.close();
+        try {
+          ((WatchingTomcat) tomcat).close();
+        } catch (IOException e) {
+          e.printStackTrace(r.getLogStream());
+        }
+      }));
+      retrificatorDaemon.start();
+      if (reviver != null) {
+        reviver.start();
+      }
+      try {
+        retrificatorDaemon.awaitTermination();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else {
+      r.retrify(strategy);
+    }
+  }
+
+  private static void runFleet(RetrificatorFleet.Config config, boolean daemon, boolean verbose, Consumer<Retrificator> settings,
+                               int ingestIntervalSecs, int retrifyIntervalMins, long reviveIntervalMillis) {
+    final RetrificatorFleet fleet = new RetrificatorFleet(config, daemon, verbose, settings, System.out);
+    try {
+      if (daemon) {
+        // stop on SIGTERM (SIGINT) once the current runs complete
+        Runtime.getRuntime().addShutdownHook(new Thread(fleet::close));
+        fleet.start(ingestIntervalSecs * 1000L, retrifyIntervalMins * 60 * 1000L, reviveIntervalMillis);
+        fleet.awaitTermination();
+      } else {
+        int failed = fleet.retrify();
+        fleet.close();
+        if (failed > 0) {
+          System.exit(1);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * @param args
+   * @param i index of the value
+   * @param arg the argument name
+   * @return the value of the argument
+   */
+  private static String nextValue(String[] args, int i, String arg) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("No value provided for the '" + arg + "' argument");
+    }
+    return args[i];
+  }
+  
+  protected static Retrificator.CapacityWeight parseCapacityWeight(String val) {
+    for (Retrificator.CapacityWeight weight : Retrificator.CapacityWeight.values()) {
+      if (weight.name().replace('_', '-').equalsIgnoreCase(val)) {
+        return weight;
+      }
+    }
+    throw new IllegalArgumentException("Illegal capacity weight value '" + val + "': 'count', 'war-size' or 'deployed-size' allowed");
+  }
+  
+  /**
+   * @param capacity in webapps, or in megabytes for the size weights
+   * @return the capacity in the units of the weight
+   */
+  protected static long toCapacity(long capacity, Retrificator.CapacityWeight weight) {
+    return weight == Retrificator.CapacityWeight.COUNT ? capacity : capacity * 1024 * 1024;
+  }
+  
+  private static int parsePositiveInt(String val) {
+    final int value = parseInt(val);
+    if (value <= 0) {
+      throw new IllegalArgumentException("Illegal value '" + val + "': positive integer allowed");
+    }
+    return value;
+  }
+  
+  private static int parseNonNegativeInt(String val) {
+    final int value = parseInt(val);
+    if (value < 0) {
+      throw new IllegalArgumentException("Illegal value '" + val + "': non-negative integer allowed");
+    }
+    return value;
+  }
+  
+  private static int parseInt(String val) {
+    try {
+      return Integer.parseInt(val);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Failed to parse the value '" + val + "' as integer", e);
+    }
+  }
+  
+  protected static List<String> readIgnoreApps(File file) {
+    final List<String> ignoreAppNameRegexps = new ArrayList<>();
+
+    if (file.exists()) {
+      try (Scanner sc = new Scanner(file)) {
+        while (sc.hasNextLine()) {
+          String s = sc.nextLine();
+          if (s != null) {
+            String sTrim = s.trim();
+            if (!"".equals(sTrim) && !sTrim.startsWith("#")) {
+              ignoreAppNameRegexps.add(sTrim);
+            }
+          }
+        }
+      } catch (FileNotFoundException e) {
+        throw new RuntimeException(e); // impossible
+      }
+    }
+
+    return ignoreAppNameRegexps;
+  }
+}
@@ -0,0 +1,202 @@
+package org.jepria.retrificator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves the request url to the webapp serving it, as tomcat does: by the longest context path
+ * matching the url path segments.
+ * <br/>
+ * The context path of a webapp is derived from its name: {@code ROOT} is the root context,
+ * the version after {@code ##} is ignored, {@code #} stands for {@code /}
+ * (so the {@code foo#bar.war} is deployed as {@code /foo/bar}).
+ * If several webapps (versions) have the same context path, the one with the greatest name serves it.
+ * <br/>
+ * The context paths are compiled into a trie over the path segments, with the children of a node in an open addressing table,
+ * so the url is resolved in a single pass over its chars regardless of the number of the webapps, with no allocation.
+ * <br/>
+ * Immutable, thread-safe.
+ */
+public class ContextResolver {
+
+  private static final class Node {
+    /**
+     * Nullable: the webapp with the context path ending at this node
+     */
+    String webappName;
+
+    // open addressing table of the children, built once
+    String[] segments;
+    int[] hashes;
+    Node[] children;
+    int mask;
+
+    /**
+     * the children during the build
+     */
+    Map<String, Node> childrenMap;
+
+    Node child(String segment) {
+      if (childrenMap == null) {
+        childrenMap = new HashMap<>();
+      }
+      return childrenMap.computeIfAbsent(segment, s -> new Node());
+    }
+
+    void compile() {
+      if (childrenMap == null) {
+        return;
+      }
+      int capacity = Integer.highestOneBit(Math.max(2, childrenMap.size()) * 2 - 1) << 1;
+      segments = new String[capacity];
+      hashes = new int[capacity];
+      children = new Node[capacity];
+      mask = capacity - 1;
+      for (Map.Entry<String, Node> entry : childrenMap.entrySet()) {
+        final String segment = entry.getKey();
+        final int hash = spread(segment.hashCode());
+        int i = hash & mask;
+        while (segments[i] != null) {
+          i = (i + 1) & mask;
+        }
+        segments[i] = segment;
+        hashes[i] = hash;
+        children[i] = entry.getValue();
+        entry.getValue().compile();
+      }
+      childrenMap = null;
+    }
+
+    /**
+     * @param hash the {@link #spread spread} hash of the segment
+     */
+    Node find(CharSequence s, int start, int end, int hash) {
+      if (segments == null) {
+        return null;
+      }
+      int i = hash & mask;
+      String segment;
+      while ((segment = segments[i]) != null) {
+        if (hashes[i] == hash && contentEquals(segment, s, start, end)) {
+          return children[i];
+        }
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+  }
+
+  private final Node root = new Node();
+
+  private final int size;
+
+  /**
+   * @param webappNames NotNull
+   */
+  public ContextResolver(Collection<String> webappNames) {
+    for (String webappName : webappNames) {
+      Node node = root;
+      for (String segment : getContextPath(webappName).split("/")) {
+        if (!segment.isEmpty()) {
+          node = node.child(segment);
+        }
+      }
+      if (node.webappName == null || node.webappName.compareTo(webappName) < 0) {
+        node.webappName = webappName;
+      }
+    }
+    root.compile();
+    this.size = webappNames.size();
+  }
+
+  /**
+   * @param webapps NotNull
+   * @return
+   */
+  public static ContextResolver of(Collection<Webapp> webapps) {
+    final Collection<String> names = new ArrayList<>(webapps.size());
+    for (Webapp webapp : webapps) {
+      names.add(webapp.name);
+    }
+    return new ContextResolver(names);
+  }
+
+  /**
+   * @param webappName NotNull
+   * @return the context path the webapp is deployed at by tomcat, {@code ""} for the root context
+   */
+  public static String getContextPath(String webappName) {
+    int versionIndex = webappName.indexOf("##");
+    String baseName = versionIndex == -1 ? webappName : webappName.substring(0, versionIndex);
+    if ("ROOT".equals(baseName)) {
+      return "";
+    }
+    return "/" + baseName.replace('#', '/');
+  }
+
+  /**
+   * @param url NotNull the request url (path and query)
+   * @param start inclusive
+   * @param end exclusive
+   * @return the name of the webapp with the longest context path matching the url,
+   * or {@code null} if there is no such webapp (with no root webapp)
+   */
+  public String resolve(CharSequence url, int start, int end) {
+    Node node = root;
+    String webappName = root.webappName;
+
+    int segmentStart = start;
+    int hash = 0;
+    for (int i = start; ; i++) {
+      final char c = i < end ? url.charAt(i) : '?';
+      if (c == '/' || c == '?' || c == ';') {
+        if (i > segmentStart) {
+          node = node.find(url, segmentStart, i, spread(hash));
+          if (node == null) {
+            break;
+          }
+          if (node.webappName != null) {
+            webappName = node.webappName;
+          }
+        }
+        if (c != '/') {
+          // the path end
+          break;
+        }
+        segmentStart = i + 1;
+        hash = 0;
+      } else {
+        hash = 31 * hash + c;
+      }
+    }
+    return webappName;
+  }
+
+  /**
+   * @return the number of the webapps
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Mixes the higher bits into the lower ones which the index is taken from
+   */
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean contentEquals(String key, CharSequence s, int start, int end) {
+    if (key.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < end - start; i++) {
+      if (key.charAt(i) != s.charAt(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
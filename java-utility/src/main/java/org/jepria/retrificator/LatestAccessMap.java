@@ -0,0 +1,214 @@
+package org.jepria.retrificator;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Map from the application context name to the latest access timestamp as a primitive {@code long},
+ * to fold the access log records into with no boxing and no per-record allocation.
+ * <br/>
+ * Open addressing with linear probing; the keys are looked up by a {@link CharSequence} slice
+ * and materialized as {@link String}s only once, on the insertion.
+ * <br/>
+ * Not thread-safe.
+ */
+public class LatestAccessMap {
+
+  /**
+   * The value returned for the missing keys
+   */
+  public static final long NO_VALUE = Long.MIN_VALUE;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private String[] keys;
+  private int[] hashes;
+  private long[] values;
+  private int size;
+  /**
+   * capacity - 1, the capacity is a power of two
+   */
+  private int mask;
+
+  public LatestAccessMap() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    hashes = new int[capacity];
+    values = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Puts the value unless the key is already mapped to a greater one, in a single probe
+   *
+   * @param s NotNull
+   * @param start inclusive
+   * @param end exclusive
+   * @param value
+   * @return the key as stored in the map
+   */
+  public String putMax(CharSequence s, int start, int end, long value) {
+    final int hash = hash(s, start, end);
+    int i = hash & mask;
+    String key;
+    while ((key = keys[i]) != null) {
+      if (hashes[i] == hash && contentEquals(key, s, start, end)) {
+        if (value > values[i]) {
+          values[i] = value;
+        }
+        return key;
+      }
+      i = (i + 1) & mask;
+    }
+    key = s.subSequence(start, end).toString();
+    insert(i, key, hash, value);
+    return key;
+  }
+
+  /**
+   * @param key NotNull
+   * @param value
+   * @return the key as stored in the map
+   * @see #putMax(CharSequence, int, int, long)
+   */
+  public String putMax(String key, long value) {
+    final int hash = spread(key.hashCode());
+    int i = hash & mask;
+    String existing;
+    while ((existing = keys[i]) != null) {
+      if (hashes[i] == hash && existing.equals(key)) {
+        if (value > values[i]) {
+          values[i] = value;
+        }
+        return existing;
+      }
+      i = (i + 1) & mask;
+    }
+    insert(i, key, hash, value);
+    return key;
+  }
+
+  private void insert(int i, String key, int hash, long value) {
+    keys[i] = key;
+    hashes[i] = hash;
+    values[i] = value;
+    // keep the load factor under 1/2
+    if (++size > (mask + 1) >> 1) {
+      rehash();
+    }
+  }
+
+  private void rehash() {
+    final String[] oldKeys = keys;
+    final int[] oldHashes = hashes;
+    final long[] oldValues = values;
+    allocate(oldKeys.length << 1);
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != null) {
+        int i = oldHashes[j] & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        hashes[i] = oldHashes[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  /**
+   * @param s NotNull
+   * @param start inclusive
+   * @param end exclusive
+   * @return the value mapped to the key or {@link #NO_VALUE}
+   */
+  public long get(CharSequence s, int start, int end) {
+    final int hash = hash(s, start, end);
+    int i = hash & mask;
+    String key;
+    while ((key = keys[i]) != null) {
+      if (hashes[i] == hash && contentEquals(key, s, start, end)) {
+        return values[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return NO_VALUE;
+  }
+
+  /**
+   * @param key NotNull
+   * @return the value mapped to the key or {@link #NO_VALUE}
+   */
+  public long get(String key) {
+    return get(key, 0, key.length());
+  }
+
+  /**
+   * Puts all entries of the other map by {@link #putMax}
+   *
+   * @param other NotNull
+   * @return this map
+   */
+  public LatestAccessMap merge(LatestAccessMap other) {
+    for (int j = 0; j < other.keys.length; j++) {
+      if (other.keys[j] != null) {
+        putMax(other.keys[j], other.values[j]);
+      }
+    }
+    return this;
+  }
+
+  public void forEach(ObjLongConsumer<String> action) {
+    for (int j = 0; j < keys.length; j++) {
+      if (keys[j] != null) {
+        action.accept(keys[j], values[j]);
+      }
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(keys, null);
+    size = 0;
+  }
+
+  /**
+   * Same as the {@link #spread spread} {@link String#hashCode()} of the slice
+   */
+  private static int hash(CharSequence s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    return spread(h);
+  }
+
+  /**
+   * Mixes the higher bits into the lower ones which the index is taken from
+   */
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean contentEquals(String key, CharSequence s, int start, int end) {
+    if (key.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < end - start; i++) {
+      if (key.charAt(i) != s.charAt(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
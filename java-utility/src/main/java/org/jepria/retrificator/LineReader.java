@@ -0,0 +1,166 @@
+package org.jepria.retrificator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the complete (terminated with '\n') lines of the access log bytes one by one through a reusable buffer,
+ * with no per-line allocation. The trailing incomplete line is not read.
+ * A line longer than the {@link #MAX_LINE_LENGTH} (such as a region of binary junk) is skipped up to its end
+ * and returned {@link ByteCharSequence#isTruncated() truncated}, for the memory to stay bounded.
+ * <br/>
+ * Not thread-safe.
+ */
+public class LineReader {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Max length of a line kept in the buffer, in bytes
+   */
+  public static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+  private interface Source {
+    /**
+     * @return the number of bytes read, or {@code -1} at the end
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+  }
+
+  private final Source source;
+  private final long limit;
+
+  private ByteBuffer buffer;
+  /**
+   * Source position of the buffer start
+   */
+  private long bufferPosition;
+  /**
+   * Index of the next line start in the buffer
+   */
+  private int lineStart;
+  /**
+   * Index in the buffer up to which there is no '\n' after the line start
+   */
+  private int scanned;
+  /**
+   * Number of the bytes of an over-long line dropped from the buffer after its first half
+   */
+  private long skipped;
+  private boolean eof;
+
+  private final ByteCharSequence line = new ByteCharSequence();
+  private long lineOffset = -1;
+
+  /**
+   * Reads the lines of the file channel in the range specified, by positional reads
+   * (so the channel may be shared with other readers)
+   *
+   * @param channel NotNull
+   * @param position position to start reading from, must be a line start
+   * @param limit position to read up to, exclusive
+   */
+  public LineReader(FileChannel channel, long position, long limit) {
+    this.source = channel::read;
+    this.limit = limit;
+    this.bufferPosition = position;
+    this.buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, limit - position)));
+  }
+
+  /**
+   * Reads the lines of the input stream up to its end
+   *
+   * @param in NotNull
+   */
+  public LineReader(InputStream in) {
+    final ReadableByteChannel channel = Channels.newChannel(in);
+    this.source = (dst, position) -> channel.read(dst);
+    this.limit = Long.MAX_VALUE;
+    this.bufferPosition = 0;
+    this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * @return the next line without line terminator, valid until the next invocation, or {@code null} if there are no more complete lines
+   * @throws IOException
+   */
+  public ByteCharSequence nextLine() throws IOException {
+    while (true) {
+      final int dataEnd = buffer.position();
+      for (int i = Math.max(lineStart, scanned); i < dataEnd; i++) {
+        if (buffer.get(i) == '\n') {
+          lineOffset = bufferPosition + lineStart;
+          if (skipped > 0) {
+            // the over-long line, with its start kept
+            line.reset(buffer, lineStart, buffer.capacity() / 2, true);
+            bufferPosition += skipped;
+            skipped = 0;
+          } else {
+            final int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+            line.reset(buffer, lineStart, lineEnd);
+          }
+          lineStart = i + 1;
+          scanned = lineStart;
+          return line;
+        }
+      }
+      scanned = dataEnd;
+
+      if (eof || bufferPosition + skipped + dataEnd >= limit) {
+        return null;
+      }
+
+      // move the incomplete line to the buffer start
+      if (lineStart > 0) {
+        buffer.flip();
+        buffer.position(lineStart);
+        buffer.compact();
+        bufferPosition += lineStart;
+        scanned -= lineStart;
+        lineStart = 0;
+      }
+      if (!buffer.hasRemaining()) {
+        if (buffer.capacity() < MAX_LINE_LENGTH) {
+          // a line longer than the buffer
+          ByteBuffer grown = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_LINE_LENGTH));
+          buffer.flip();
+          grown.put(buffer);
+          buffer = grown;
+        } else {
+          // an over-long line: keep its first half, read the rest over the second one up to the line end
+          final int half = buffer.capacity() / 2;
+          skipped += buffer.capacity() - half;
+          buffer.position(half);
+          scanned = half;
+        }
+      }
+
+      final int remaining = (int) Math.min(buffer.remaining(), limit - bufferPosition - skipped - buffer.position());
+      final int oldLimit = buffer.limit();
+      buffer.limit(buffer.position() + remaining);
+      final int read = source.read(buffer, bufferPosition + skipped + buffer.position());
+      buffer.limit(oldLimit);
+      if (read < 0) {
+        eof = true;
+      }
+    }
+  }
+
+  /**
+   * @return the position of the line last read, {@code -1} if no line has been read yet
+   */
+  public long getLineOffset() {
+    return lineOffset;
+  }
+
+  /**
+   * @return the position right after the last complete line read
+   */
+  public long getPosition() {
+    return bufferPosition + lineStart;
+  }
+}
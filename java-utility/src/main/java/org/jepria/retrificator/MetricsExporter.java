@@ -0,0 +1,139 @@
+package org.jepria.retrificator;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Writes the metrics of the latest runs as the node_exporter textfile (the Prometheus text format)
+ * and as the JSON summary, each replaced atomically by renaming a temporary file,
+ * for the collector never to read a partially written file.
+ */
+class MetricsExporter {
+
+  private final File textFile;
+  private final File jsonFile;
+
+  /**
+   * @param textFile NotNull the Prometheus text file, with the {@code .prom} extension for the node_exporter to collect it
+   * @param jsonFile NotNull
+   */
+  public MetricsExporter(File textFile, File jsonFile) {
+    this.textFile = textFile;
+    this.jsonFile = jsonFile;
+  }
+
+  /**
+   * @param runs NotNull the metrics of the latest run of each kind
+   * @throws IOException
+   */
+  public void export(Collection<RunMetrics> runs) throws IOException {
+    final StringBuilder text = new StringBuilder();
+
+    gauge(text, "retrificator_run_timestamp_seconds", "Start time of the latest run", runs, run -> run.startTime / 1e3);
+    gauge(text, "retrificator_run_duration_seconds", "Duration of the latest run", runs, run -> run.durationNanos / 1e9);
+
+    header(text, "retrificator_phase_duration_seconds", "Duration of the phase of the latest run");
+    for (RunMetrics run : runs) {
+      for (Map.Entry<String, Long> entry : run.phaseNanos.entrySet()) {
+        text.append("retrificator_phase_duration_seconds{run=\"").append(run.run).append("\",phase=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue() / 1e9).append('\n');
+      }
+    }
+
+    gauge(text, "retrificator_access_logs_ingested", "Number of the access log files ingested by the latest run", runs, run -> run.accessLogs.size());
+    gauge(text, "retrificator_access_logs_skipped", "Number of the access log files skipped by the latest run", runs, run -> run.accessLogsSkipped);
+    gauge(text, "retrificator_ingested_lines", "Number of the access log lines ingested by the latest run", runs, RunMetrics::getLines);
+    gauge(text, "retrificator_ingested_bytes", "Number of the access log bytes ingested by the latest run", runs, RunMetrics::getBytes);
+    gauge(text, "retrificator_parse_failures", "Number of the malformed access log lines met by the latest run", runs, RunMetrics::getParseFailures);
+    gauge(text, "retrificator_access_log_backlog_bytes", "Number of the access log bytes left unprocessed after the latest run", runs, RunMetrics::getBacklogBytes);
+    gauge(text, "retrificator_apps", "Number of the webapps in the tomcat", runs, run -> run.apps);
+    gauge(text, "retrificator_apps_retrified", "Number of the webapps retrified by the latest run", runs, run -> run.appsRetrified);
+    gauge(text, "retrificator_retrifications_failed", "Number of the webapps failed to be retrified by the latest run", runs, run -> run.retrificationsFailed);
+    gauge(text, "retrificator_state_entries", "Number of the latest access entries in the state", runs, run -> run.stateEntries);
+    gauge(text, "retrificator_state_bytes", "Size of the persisted state", runs, run -> run.stateBytes);
+
+    write(textFile, text.toString());
+
+    final StringWriter json = new StringWriter();
+    final JsonWriter writer = new JsonWriter(json);
+    writer.setIndent("  ");
+    writer.beginObject();
+    for (RunMetrics run : runs) {
+      writer.name(run.run);
+      writeRun(writer, run);
+    }
+    writer.endObject();
+    writer.flush();
+    write(jsonFile, json.toString());
+  }
+
+  /**
+   * Writes the run field by field, the same as the reflective data binding would, but without initializing it
+   */
+  private static void writeRun(JsonWriter writer, RunMetrics run) throws IOException {
+    writer.beginObject();
+    writer.name("run").value(run.run);
+    writer.name("startTime").value(run.startTime);
+    writer.name("durationNanos").value(run.durationNanos);
+    writer.name("phaseNanos").beginObject();
+    for (Map.Entry<String, Long> entry : run.phaseNanos.entrySet()) {
+      writer.name(entry.getKey()).value(entry.getValue().longValue());
+    }
+    writer.endObject();
+    writer.name("accessLogs").beginObject();
+    for (Map.Entry<String, RunMetrics.AccessLogMetrics> entry : run.accessLogs.entrySet()) {
+      final RunMetrics.AccessLogMetrics metrics = entry.getValue();
+      writer.name(entry.getKey()).beginObject();
+      writer.name("lines").value(metrics.lines);
+      writer.name("bytes").value(metrics.bytes);
+      writer.name("parseFailures").value(metrics.parseFailures);
+      writer.name("backlogBytes").value(metrics.backlogBytes);
+      writer.name("durationNanos").value(metrics.durationNanos);
+      writer.endObject();
+    }
+    writer.endObject();
+    writer.name("accessLogsSkipped").value(run.accessLogsSkipped);
+    writer.name("apps").value(run.apps);
+    writer.name("appsRetrified").value(run.appsRetrified);
+    writer.name("retrificationsFailed").value(run.retrificationsFailed);
+    writer.name("stateEntries").value(run.stateEntries);
+    writer.name("stateBytes").value(run.stateBytes);
+    writer.endObject();
+  }
+
+  private static void header(StringBuilder text, String name, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" gauge\n");
+  }
+
+  private static void gauge(StringBuilder text, String name, String help, Collection<RunMetrics> runs, ToDoubleFunction<RunMetrics> value) {
+    header(text, name, help);
+    for (RunMetrics run : runs) {
+      final double v = value.applyAsDouble(run);
+      text.append(name).append("{run=\"").append(run.run).append("\"} ");
+      if (v == (long) v) {
+        text.append((long) v);
+      } else {
+        text.append(v);
+      }
+      text.append('\n');
+    }
+  }
+
+  private static void write(File file, String content) throws IOException {
+    final Path path = file.toPath();
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp.toFile()), StandardCharsets.UTF_8)) {
+      writer.write(content);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,185 @@
+package org.jepria.retrificator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Scans a large access log file in parallel: the file is memory-mapped and split into newline-aligned chunks,
+ * each chunk is scanned line by line by a separate handler on a {@link ForkJoinPool}, then the handlers are reduced.
+ */
+public class ParallelAccessLogScanner implements AutoCloseable {
+
+  /**
+   * Max chunk size, limited by the max size of a single mapped buffer
+   */
+  public static final int MAX_CHUNK_SIZE = 1 << 30;
+
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  protected final ForkJoinPool pool;
+  protected final int chunkSize;
+
+  /**
+   * @param parallelism number of the worker threads
+   * @param chunkSize nominal chunk size in bytes, the actual chunk is extended up to the line end
+   */
+  public ParallelAccessLogScanner(int parallelism, int chunkSize) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Illegal parallelism value '" + parallelism + "': positive integer allowed");
+    }
+    if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Illegal chunk size value '" + chunkSize + "': positive integer up to " + MAX_CHUNK_SIZE + " allowed");
+    }
+    this.pool = new ForkJoinPool(parallelism);
+    this.chunkSize = chunkSize;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Result of the {@link #scan} invocation
+   *
+   * @param <T> the line handler type
+   */
+  public static class Result<T> {
+    /**
+     * Nullable: the reduced handler or {@code null} if there were no complete lines in the range
+     */
+    public final T handler;
+    /**
+     * Position right after the last complete line scanned
+     */
+    public final long position;
+
+    public Result(T handler, long position) {
+      this.handler = handler;
+      this.position = position;
+    }
+  }
+
+  /**
+   * Scans the complete (terminated with '\n') lines of the file channel in the range specified, in parallel.
+   * The trailing incomplete line is not scanned.
+   *
+   * @param channel NotNull
+   * @param position position to start scanning from, must be a line start
+   * @param limit position to scan up to, exclusive
+   * @param handlerFactory creates a new handler for each chunk
+   * @param combiner reduces two handlers of the adjacent chunks into one
+   * @param <T>
+   * @return
+   * @throws IOException
+   */
+  public <T extends AccessLogReader.LineHandler> Result<T> scan(FileChannel channel, long position, long limit,
+                                                                Supplier<T> handlerFactory, BinaryOperator<T> combiner) throws IOException {
+    final List<Long> boundaries = splitLines(channel, position, limit);
+    final long end = boundaries.get(boundaries.size() - 1);
+    if (boundaries.size() < 2) {
+      return new Result<>(null, end);
+    }
+
+    final T handler;
+    try {
+      handler = pool.invoke(new ChunkTask<>(channel, boundaries, 0, boundaries.size() - 1, handlerFactory, combiner));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return new Result<>(handler, end);
+  }
+
+  /**
+   * @return the chunk boundaries (line starts), the first is the position, the last is right after the last complete line
+   */
+  protected List<Long> splitLines(FileChannel channel, long position, long limit) throws IOException {
+    final List<Long> boundaries = new ArrayList<>();
+    boundaries.add(position);
+
+    final long end = AccessLogReader.lastLineEnd(channel, position, limit);
+
+    long boundary = position;
+    while (boundary < end) {
+      long next = boundary + chunkSize >= end ? end : AccessLogReader.nextLineStart(channel, boundary + chunkSize, end);
+      boundaries.add(next);
+      boundary = next;
+    }
+    return boundaries;
+  }
+
+  private static class ChunkTask<T extends AccessLogReader.LineHandler> extends RecursiveTask<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final List<Long> boundaries;
+    private final int from;
+    private final int to;
+    private final Supplier<T> handlerFactory;
+    private final BinaryOperator<T> combiner;
+
+    /**
+     * @param from index of the first chunk boundary
+     * @param to index of the last chunk boundary, exclusive
+     */
+    ChunkTask(FileChannel channel, List<Long> boundaries, int from, int to, Supplier<T> handlerFactory, BinaryOperator<T> combiner) {
+      this.channel = channel;
+      this.boundaries = boundaries;
+      this.from = from;
+      this.to = to;
+      this.handlerFactory = handlerFactory;
+      this.combiner = combiner;
+    }
+
+    @Override
+    protected T compute() {
+      if (to - from > 1) {
+        final int middle = (from + to) >>> 1;
+        ChunkTask<T> left = new ChunkTask<>(channel, boundaries, from, middle, handlerFactory, combiner);
+        ChunkTask<T> right = new ChunkTask<>(channel, boundaries, middle, to, handlerFactory, combiner);
+        left.fork();
+        T rightResult = right.compute();
+        T leftResult = left.join();
+        return combiner.apply(leftResult, rightResult);
+      }
+
+      final long chunkStart = boundaries.get(from);
+      final long chunkEnd = boundaries.get(from + 1);
+      final T handler = handlerFactory.get();
+      final MappedByteBuffer buffer;
+      try {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd - chunkStart);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+
+      final ByteCharSequence line = new ByteCharSequence();
+      final int size = buffer.limit();
+      int lineStart = 0;
+      for (int i = 0; i < size; i++) {
+        if (buffer.get(i) == '\n') {
+          int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+          handler.line(line.reset(buffer, lineStart, lineEnd), chunkStart + lineStart);
+          lineStart = i + 1;
+        }
+      }
+      return handler;
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,84 @@
+package org.jepria.retrificator;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the malformed lines of an access log file and keeps the samples of the first ones in the order read (backwards as well),
+ * to be reported once per file instead of per line. Once the samples are full, counting costs no allocation.
+ * <br/>
+ * Not thread-safe, the summaries of the parts of a file scanned in parallel are {@link #merge merged}.
+ */
+class ParseFailureSummary {
+
+  public static final int MAX_SAMPLES = 5;
+
+  private long count;
+
+  /**
+   * Key: the line offset in the file; value: the line abbreviated; at most {@link #MAX_SAMPLES} lines, the first ones read
+   */
+  private final TreeMap<Long, String> samples = new TreeMap<>();
+
+  /**
+   * @param line NotNull the line failed to parse, valid only during the invocation
+   * @param offset position of the line start in the file
+   */
+  public void add(CharSequence line, long offset) {
+    count++;
+    if (samples.size() < MAX_SAMPLES) {
+      samples.put(offset, sample(line));
+    }
+  }
+
+  /**
+   * @return the line abbreviated, with the control chars (e.g. of the binary garbage) replaced, for the log not to break
+   */
+  private static String sample(CharSequence line) {
+    final String abbreviated = AccessLogParser.abbreviate(line);
+    final StringBuilder sb = new StringBuilder(abbreviated.length());
+    for (int i = 0; i < abbreviated.length(); i++) {
+      final char c = abbreviated.charAt(i);
+      sb.append(c < 0x20 || c >= 0x7f && c < 0xa0 ? '?' : c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param other the summary of a part of the file read after the part of this one
+   */
+  public ParseFailureSummary merge(ParseFailureSummary other) {
+    count += other.count;
+    for (Map.Entry<Long, String> entry : other.samples.entrySet()) {
+      if (samples.size() >= MAX_SAMPLES) {
+        break;
+      }
+      samples.put(entry.getKey(), entry.getValue());
+    }
+    return this;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Logs the summary, if there are any failures
+   *
+   * @param logStream NotNull
+   * @param accessLogFilename NotNull
+   */
+  public void report(PrintStream logStream, String accessLogFilename) {
+    if (count == 0) {
+      return;
+    }
+    final StringBuilder sb = new StringBuilder();
+    sb.append("WARNING: ").append(count).append(" malformed lines skipped in the access log file ").append(accessLogFilename)
+            .append(count > samples.size() ? ", the first " + samples.size() + " read of them:" : ":");
+    for (Map.Entry<Long, String> entry : samples.entrySet()) {
+      sb.append(System.lineSeparator()).append("  at offset ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    logStream.println(sb);
+  }
+}
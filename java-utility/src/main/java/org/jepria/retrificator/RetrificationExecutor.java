@@ -0,0 +1,198 @@
+package org.jepria.retrificator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Applies the retrifications paced, for the tomcat not to undeploy many webapps at once:
+ * the war files are renamed in batches, no faster than the rate limit, and after each batch
+ * the deployed directories of the webapps are awaited to disappear (that is, the tomcat to undeploy them), up to the timeout.
+ * <br/>
+ * The batch size and the rate limit bound the tomcat undeployment work at a time (so the impact on the live traffic),
+ * the undeploy timeout bounds the duration of the entire run.
+ * With the defaults, all webapps are renamed at once with no waiting, as a single batch.
+ * <br/>
+ * The {@link #setMonitor(Object) monitor} held by the caller is released while pacing, for the other work
+ * guarded by it not to be blocked for the entire run.
+ * <br/>
+ * Not thread-safe.
+ */
+class RetrificationExecutor {
+
+  /**
+   * Interval between the checks of the deployed directories, in milliseconds
+   */
+  private static final long POLL_INTERVAL = 1000;
+
+  private final Predicate<Webapp> rename;
+  private final PrintStream logStream;
+  private final boolean verbose;
+
+  private int batchSize = Integer.MAX_VALUE;
+  private long renameIntervalMillis = 0;
+  private long undeployTimeoutMillis = 0;
+  private Object monitor;
+
+  /**
+   * The earliest time of the next rename, by the rate limit
+   */
+  private long nextRenameTime;
+
+  /**
+   * @param rename NotNull renames the war file of the webapp, returns whether succeeded
+   * @param logStream NotNull
+   * @param verbose
+   */
+  public RetrificationExecutor(Predicate<Webapp> rename, PrintStream logStream, boolean verbose) {
+    this.rename = rename;
+    this.logStream = logStream;
+    this.verbose = verbose;
+  }
+
+  /**
+   * @param batchSize max number of the webapps to rename before awaiting their undeployment
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Illegal batch size value '" + batchSize + "': positive integer allowed");
+    }
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param renameIntervalMillis min interval between two renames, {@code 0} for no rate limit
+   */
+  public void setRenameInterval(long renameIntervalMillis) {
+    if (renameIntervalMillis < 0) {
+      throw new IllegalArgumentException("Illegal rename interval value '" + renameIntervalMillis + "': non-negative integer allowed");
+    }
+    this.renameIntervalMillis = renameIntervalMillis;
+  }
+
+  /**
+   * @param undeployTimeoutMillis max time to await the undeployment of a batch, {@code 0} not to await
+   */
+  public void setUndeployTimeout(long undeployTimeoutMillis) {
+    if (undeployTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Illegal undeploy timeout value '" + undeployTimeoutMillis + "': non-negative integer allowed");
+    }
+    this.undeployTimeoutMillis = undeployTimeoutMillis;
+  }
+
+  /**
+   * @param monitor the monitor held by the caller of the {@link #execute}, to release while pacing, {@code null} for none
+   */
+  public void setMonitor(Object monitor) {
+    this.monitor = monitor;
+  }
+
+  /**
+   * Retrifies the webapps batch by batch
+   *
+   * @param webapps NotNull the webapps to retrify, in the order of retrification
+   * @param batchListener NotNull receives the outcomes of each batch once it is complete, key: webapp name
+   * @throws InterruptedException if interrupted while pacing, the outcomes of the batches complete so far are already received,
+   * along with the partial outcomes of the interrupted batch
+   */
+  public void execute(List<Webapp> webapps, Consumer<Map<String, RetrificationOutcome>> batchListener) throws InterruptedException {
+    int batchEnd;
+    for (int batchStart = 0; batchStart < webapps.size(); batchStart = batchEnd) {
+      batchEnd = (int) Math.min(webapps.size(), (long) batchStart + batchSize);
+      final List<Webapp> batch = webapps.subList(batchStart, batchEnd);
+
+      final Map<String, RetrificationOutcome> outcomes = new LinkedHashMap<>();
+      final List<Webapp> renamed = new ArrayList<>();
+      final List<Webapp> deployed;
+      try {
+        for (Webapp webapp : batch) {
+          awaitRenameTime();
+          if (rename.test(webapp)) {
+            renamed.add(webapp);
+          } else {
+            outcomes.put(webapp.name, new RetrificationOutcome(RetrificationOutcome.Status.FAILED, System.currentTimeMillis()));
+          }
+        }
+
+        deployed = awaitUndeployment(renamed);
+        final long now = System.currentTimeMillis();
+        for (Webapp webapp : renamed) {
+          final RetrificationOutcome.Status status;
+          if (!deployed.contains(webapp)) {
+            status = RetrificationOutcome.Status.UNDEPLOYED;
+          } else if (undeployTimeoutMillis > 0) {
+            status = RetrificationOutcome.Status.UNDEPLOY_TIMEOUT;
+            logStream.println("WARNING: application retrified but not undeployed within " + undeployTimeoutMillis + " ms: " + webapp.name
+                    + " (the deployed directory " + webapp.deployed + " still exists)");
+          } else {
+            status = RetrificationOutcome.Status.RETRIFIED;
+          }
+          outcomes.put(webapp.name, new RetrificationOutcome(status, now));
+        }
+      } catch (InterruptedException e) {
+        // the webapps renamed so far are retrified, with the undeployment not awaited
+        final long now = System.currentTimeMillis();
+        for (Webapp webapp : renamed) {
+          outcomes.putIfAbsent(webapp.name, new RetrificationOutcome(RetrificationOutcome.Status.RETRIFIED, now));
+        }
+        batchListener.accept(outcomes);
+        throw e;
+      }
+
+      if (verbose && batch.size() < webapps.size()) {
+        logStream.println("VERBOSE: retrification batch of " + batch.size() + " applications complete: " + renamed.size() + " renamed, "
+                + (renamed.size() - deployed.size()) + " undeployed");
+      }
+      batchListener.accept(outcomes);
+    }
+  }
+
+  private void awaitRenameTime() throws InterruptedException {
+    final long now = System.currentTimeMillis();
+    if (nextRenameTime > now) {
+      pause(nextRenameTime - now);
+    }
+    nextRenameTime = Math.max(now, nextRenameTime) + renameIntervalMillis;
+  }
+
+  /**
+   * @param renamed NotNull
+   * @return the webapps whose deployed directory still exists after the timeout
+   */
+  private List<Webapp> awaitUndeployment(List<Webapp> renamed) throws InterruptedException {
+    final List<Webapp> deployed = new ArrayList<>();
+    for (Webapp webapp : renamed) {
+      if (webapp.deployed != null && webapp.deployed.exists()) {
+        deployed.add(webapp);
+      }
+    }
+    final long deadline = System.currentTimeMillis() + undeployTimeoutMillis;
+    long now;
+    while (!deployed.isEmpty() && (now = System.currentTimeMillis()) < deadline) {
+      pause(Math.min(POLL_INTERVAL, deadline - now));
+      deployed.removeIf(webapp -> !webapp.deployed.exists());
+    }
+    return deployed;
+  }
+
+  /**
+   * Sleeps, with the {@link #monitor} (if any) released
+   */
+  private void pause(long millis) throws InterruptedException {
+    if (monitor == null) {
+      Thread.sleep(millis);
+      return;
+    }
+    final long deadline = System.currentTimeMillis() + millis;
+    synchronized (monitor) {
+      long now;
+      while ((now = System.currentTimeMillis()) < deadline) {
+        monitor.wait(deadline - now);
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.jepria.retrificator;
+
+import java.util.Objects;
+
+/**
+ * The result of the latest retrification attempt of a webapp, as recorded in the state
+ */
+public class RetrificationOutcome {
+
+  public enum Status {
+    /**
+     * The war file has been renamed, the undeployment has not been awaited
+     */
+    RETRIFIED,
+    /**
+     * The war file has been renamed and the deployed directory has disappeared (or there was none)
+     */
+    UNDEPLOYED,
+    /**
+     * The war file has been renamed but the deployed directory has not disappeared within the timeout
+     */
+    UNDEPLOY_TIMEOUT,
+    /**
+     * The war file could not be renamed
+     */
+    FAILED,
+  }
+
+  /**
+   * NotNull
+   */
+  public Status status;
+  /**
+   * Timestamp of the attempt
+   */
+  public long time;
+
+  public RetrificationOutcome() {
+  }
+
+  public RetrificationOutcome(Status status, long time) {
+    this.status = status;
+    this.time = time;
+  }
+
+  /**
+   * @return whether the war file has been renamed
+   */
+  public boolean isRetrified() {
+    return status != Status.FAILED;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    RetrificationOutcome that = (RetrificationOutcome) o;
+    return time == that.time && status == that.status;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(status, time);
+  }
+
+  @Override
+  public String toString() {
+    return "RetrificationOutcome{" +
+            "status=" + status +
+            ", time=" + time +
+            '}';
+  }
+}
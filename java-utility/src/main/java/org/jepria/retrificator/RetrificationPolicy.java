@@ -0,0 +1,482 @@
+package org.jepria.retrificator;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Ordered rules mapping the webapp names to the retrification settings: either ignore the webapp (never retrify it),
+ * or retrify it by the access and deploy ages of its own. The first rule matching the webapp name applies.
+ * <br/>
+ * The rules are compiled once: the literal selectors go into a hash map, the rest go into a single alternation regex
+ * (the first matching alternative is the first matching rule), which is only evaluated if the name starts with
+ * one of the literal prefixes of those selectors. So a webapp is resolved in a single evaluation regardless of the number of the rules.
+ * The regexes with backreferences (which the alternation would break by shifting the group numbers) are evaluated separately.
+ * <br/>
+ * Policy file format, one rule per line (empty lines and comments beginning with {@code #} are ignored):
+ * <pre>
+ * &lt;selector&gt; &lt;action&gt; [&lt;action&gt; ...]
+ * </pre>
+ * where the selector is either {@code glob:<glob>} (with {@code *} and {@code ?} wildcards), or {@code regex:<java regex>},
+ * or just {@code <glob>}, matching the entire webapp name; the action is either {@code ignore},
+ * or {@code accessAge=<minutes>} or {@code deployAge=<minutes>}.
+ * <br/>
+ * Immutable, thread-safe.
+ */
+public class RetrificationPolicy {
+
+  public static final RetrificationPolicy EMPTY = new Builder().build();
+
+  /**
+   * The settings of the webapps matching a selector
+   */
+  public static class Rule {
+    /**
+     * NotNull: the selector as specified
+     */
+    public final String selector;
+    public final boolean ignore;
+    /**
+     * Nullable: latest access age in milliseconds, for the apps to be retrified, overrides the strategy one
+     */
+    public final Long accessAge;
+    /**
+     * Nullable: latest deploy age in milliseconds, for the apps to be retrified, overrides the strategy one
+     */
+    public final Long deployAge;
+
+    public Rule(String selector, boolean ignore, Long accessAge, Long deployAge) {
+      this.selector = selector;
+      this.ignore = ignore;
+      this.accessAge = accessAge;
+      this.deployAge = deployAge;
+    }
+
+    @Override
+    public String toString() {
+      return "Rule{" +
+              "selector='" + selector + '\'' +
+              ", ignore=" + ignore +
+              ", accessAge=" + accessAge +
+              ", deployAge=" + deployAge +
+              '}';
+    }
+  }
+
+  private final List<Rule> rules;
+
+  /**
+   * Key: the literal webapp name; value: the index of the first rule with the literal selector
+   */
+  private final Map<String, Integer> literalRules;
+
+  /**
+   * Nullable: alternation of the non-literal selectors, or {@code null} if there are none
+   */
+  private final Pattern alternation;
+  /**
+   * The index of the capturing group of each alternative in the alternation
+   */
+  private final int[] alternativeGroups;
+  /**
+   * The index of the rule of each alternative in the alternation
+   */
+  private final int[] alternativeRules;
+  /**
+   * Sorted, prefix-free set of the literal prefixes of the alternatives: no string in it is a prefix of another one
+   */
+  private final TreeSet<String> alternationPrefixes;
+
+  /**
+   * The selectors evaluated separately from the alternation, in the order of application
+   */
+  private final Pattern[] separatePatterns;
+  /**
+   * The index of the rule of each separate pattern
+   */
+  private final int[] separateRules;
+
+  private RetrificationPolicy(List<Rule> rules, Map<String, Integer> literalRules, Pattern alternation,
+                              int[] alternativeGroups, int[] alternativeRules, TreeSet<String> alternationPrefixes,
+                              Pattern[] separatePatterns, int[] separateRules) {
+    this.rules = Collections.unmodifiableList(rules);
+    this.literalRules = literalRules;
+    this.alternation = alternation;
+    this.alternativeGroups = alternativeGroups;
+    this.alternativeRules = alternativeRules;
+    this.alternationPrefixes = alternationPrefixes;
+    this.separatePatterns = separatePatterns;
+    this.separateRules = separateRules;
+  }
+
+  /**
+   * @return unmodifiable list of the rules in the order of application
+   */
+  public List<Rule> getRules() {
+    return rules;
+  }
+
+  /**
+   * @param webappName NotNull
+   * @return the first rule matching the webapp name, or {@code null} if there is no such rule
+   */
+  public Rule resolve(String webappName) {
+    int index = literalRules.getOrDefault(webappName, Integer.MAX_VALUE);
+
+    if (alternation != null && mayMatchAlternation(webappName)) {
+      final Matcher matcher = alternation.matcher(webappName);
+      if (matcher.matches()) {
+        for (int i = 0; i < alternativeGroups.length; i++) {
+          if (matcher.start(alternativeGroups[i]) != -1) {
+            index = Math.min(index, alternativeRules[i]);
+            break;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < separatePatterns.length && separateRules[i] < index; i++) {
+      if (separatePatterns[i].matcher(webappName).matches()) {
+        index = separateRules[i];
+      }
+    }
+
+    return index == Integer.MAX_VALUE ? null : rules.get(index);
+  }
+
+  private boolean mayMatchAlternation(String webappName) {
+    // as the set is prefix-free, only the greatest string not greater than the name may be its prefix
+    final String prefix = alternationPrefixes.floor(webappName);
+    return prefix != null && webappName.startsWith(prefix);
+  }
+
+  /**
+   * @param other NotNull
+   * @return the policy with the rules of this policy followed by the rules of the other one
+   */
+  public RetrificationPolicy then(RetrificationPolicy other) {
+    if (other.rules.isEmpty()) {
+      return this;
+    }
+    if (rules.isEmpty()) {
+      return other;
+    }
+    Builder builder = new Builder();
+    builder.rules.addAll(this.rules);
+    builder.rules.addAll(other.rules);
+    return builder.build();
+  }
+
+  /**
+   * Creates the policy to ignore the webapps by the regexps, as in the {@code ignore-apps.txt}
+   *
+   * @param ignoreAppNameRegexps NotNull
+   * @return
+   * @throws IllegalArgumentException on an invalid regexp
+   */
+  public static RetrificationPolicy ofIgnoreAppNameRegexps(List<String> ignoreAppNameRegexps) {
+    Builder builder = new Builder();
+    for (String regex : ignoreAppNameRegexps) {
+      builder.add(new Rule("regex:" + regex, true, null, null));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Reads the policy file
+   *
+   * @param file NotNull
+   * @return the policy read, or {@link #EMPTY} if the file does not exist
+   * @throws IllegalArgumentException if the file contains an invalid rule
+   */
+  public static RetrificationPolicy read(File file) {
+    if (!file.exists()) {
+      return EMPTY;
+    }
+    final List<String> lines = new ArrayList<>();
+    try (Scanner sc = new Scanner(file)) {
+      while (sc.hasNextLine()) {
+        lines.add(sc.nextLine());
+      }
+    } catch (FileNotFoundException e) {
+      throw new RuntimeException(e); // impossible
+    }
+    try {
+      return parse(lines);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid policy file " + file + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param lines NotNull the lines of the policy file
+   * @return
+   * @throws IllegalArgumentException if a line contains an invalid rule
+   */
+  public static RetrificationPolicy parse(List<String> lines) {
+    final Builder builder = new Builder();
+    for (int i = 0; i < lines.size(); i++) {
+      final String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final String[] tokens = line.split("\\s+");
+      if (tokens.length < 2) {
+        throw new IllegalArgumentException("No action specified for the selector at line " + (i + 1) + ": '" + line + "'");
+      }
+      boolean ignore = false;
+      Long accessAge = null;
+      Long deployAge = null;
+      for (int j = 1; j < tokens.length; j++) {
+        final String action = tokens[j];
+        if ("ignore".equals(action)) {
+          ignore = true;
+        } else if (action.startsWith("accessAge=")) {
+          accessAge = parseAgeMinutes(action.substring("accessAge=".length()), i);
+        } else if (action.startsWith("deployAge=")) {
+          deployAge = parseAgeMinutes(action.substring("deployAge=".length()), i);
+        } else {
+          throw new IllegalArgumentException("Unknown action '" + action + "' at line " + (i + 1) + ": 'ignore', 'accessAge=<minutes>' or 'deployAge=<minutes>' allowed");
+        }
+      }
+      try {
+        builder.add(new Rule(tokens[0], ignore, accessAge, deployAge));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid selector at line " + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+    return builder.build();
+  }
+
+  private static long parseAgeMinutes(String value, int lineIndex) {
+    final long minutes;
+    try {
+      minutes = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Failed to parse the value '" + value + "' at line " + (lineIndex + 1) + " as integer", e);
+    }
+    if (minutes <= 0) {
+      throw new IllegalArgumentException("Illegal value '" + value + "' at line " + (lineIndex + 1) + ": positive integer allowed");
+    }
+    return minutes * 60 * 1000L;
+  }
+
+  /**
+   * Collects the rules in the order of application and compiles them
+   */
+  public static class Builder {
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * @param rule NotNull
+     * @return this builder
+     * @throws IllegalArgumentException if the rule selector is invalid
+     */
+    public Builder add(Rule rule) {
+      // fail fast on invalid selector
+      toRegex(rule.selector);
+      rules.add(rule);
+      return this;
+    }
+
+    public RetrificationPolicy build() {
+      final Map<String, Integer> literalRules = new HashMap<>();
+      final StringBuilder alternation = new StringBuilder();
+      final List<Integer> alternativeGroups = new ArrayList<>();
+      final List<Integer> alternativeRules = new ArrayList<>();
+      final List<String> prefixes = new ArrayList<>();
+      final List<Pattern> separatePatterns = new ArrayList<>();
+      final List<Integer> separateRules = new ArrayList<>();
+      final Set<String> groupNames = new HashSet<>();
+      int groupCount = 0;
+
+      for (int i = 0; i < rules.size(); i++) {
+        final String selector = rules.get(i).selector;
+        final String literal = getLiteral(selector);
+        if (literal != null) {
+          literalRules.putIfAbsent(literal, i);
+        } else if (hasBackreference(toRegex(selector))
+                || !Collections.disjoint(groupNames, getGroupNames(toRegex(selector)))) {
+          // a named group may occur once only in the alternation
+          separatePatterns.add(Pattern.compile(toRegex(selector)));
+          separateRules.add(i);
+        } else {
+          final String regex = toRegex(selector);
+          groupNames.addAll(getGroupNames(regex));
+          if (alternation.length() > 0) {
+            alternation.append('|');
+          }
+          alternation.append('(').append(regex).append(')');
+          alternativeGroups.add(++groupCount);
+          alternativeRules.add(i);
+          // the groups of the alternative itself
+          groupCount += Pattern.compile(regex).matcher("").groupCount();
+          prefixes.add(getLiteralPrefix(selector));
+        }
+      }
+
+      // keep the shortest prefixes only
+      Collections.sort(prefixes);
+      final TreeSet<String> prefixFree = new TreeSet<>();
+      String previous = null;
+      for (String prefix : prefixes) {
+        if (previous == null || !prefix.startsWith(previous)) {
+          prefixFree.add(prefix);
+          previous = prefix;
+        }
+      }
+
+      final Pattern alternationPattern;
+      try {
+        alternationPattern = alternation.length() == 0 ? null : Pattern.compile(alternation.toString());
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException("Illegal value '" + alternation + "'", e);
+      }
+
+      return new RetrificationPolicy(new ArrayList<>(rules), literalRules,
+              alternationPattern,
+              alternativeGroups.stream().mapToInt(Integer::intValue).toArray(),
+              alternativeRules.stream().mapToInt(Integer::intValue).toArray(),
+              prefixFree,
+              separatePatterns.toArray(new Pattern[0]),
+              separateRules.stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  private static final String GLOB_PREFIX = "glob:";
+  private static final String REGEX_PREFIX = "regex:";
+
+  /**
+   * @return the regex matching the same names as the selector
+   * @throws IllegalArgumentException if the selector is invalid
+   */
+  private static String toRegex(String selector) {
+    if (selector.startsWith(REGEX_PREFIX)) {
+      final String regex = selector.substring(REGEX_PREFIX.length());
+      try {
+        Pattern.compile(regex);
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException("Invalid regex '" + regex + "'", e);
+      }
+      return regex;
+    }
+    final String glob = selector.startsWith(GLOB_PREFIX) ? selector.substring(GLOB_PREFIX.length()) : selector;
+    if (glob.isEmpty()) {
+      throw new IllegalArgumentException("Empty selector");
+    }
+    final StringBuilder regex = new StringBuilder();
+    int literalStart = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      final char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > literalStart) {
+          regex.append(Pattern.quote(glob.substring(literalStart, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        literalStart = i + 1;
+      }
+    }
+    if (glob.length() > literalStart) {
+      regex.append(Pattern.quote(glob.substring(literalStart)));
+    }
+    return regex.toString();
+  }
+
+  /**
+   * @return the only name the selector matches, or {@code null} if it may match different names
+   */
+  private static String getLiteral(String selector) {
+    if (selector.startsWith(REGEX_PREFIX)) {
+      final String regex = selector.substring(REGEX_PREFIX.length());
+      final String prefix = getRegexLiteralPrefix(regex);
+      return prefix.length() == regex.length() ? regex : null;
+    }
+    final String glob = selector.startsWith(GLOB_PREFIX) ? selector.substring(GLOB_PREFIX.length()) : selector;
+    return glob.indexOf('*') == -1 && glob.indexOf('?') == -1 ? glob : null;
+  }
+
+  /**
+   * @return the string every name matching the selector starts with, possibly empty
+   */
+  private static String getLiteralPrefix(String selector) {
+    if (selector.startsWith(REGEX_PREFIX)) {
+      return getRegexLiteralPrefix(selector.substring(REGEX_PREFIX.length()));
+    }
+    final String glob = selector.startsWith(GLOB_PREFIX) ? selector.substring(GLOB_PREFIX.length()) : selector;
+    int end = 0;
+    while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') {
+      end++;
+    }
+    return glob.substring(0, end);
+  }
+
+  /**
+   * Conservative: the leading letters, digits, '-' and '_' of the regex, except the one followed by a quantifier
+   */
+  private static String getRegexLiteralPrefix(String regex) {
+    if (regex.indexOf('|') != -1) {
+      // a top-level alternation may have no common prefix
+      return "";
+    }
+    int end = 0;
+    while (end < regex.length() && isLiteral(regex.charAt(end))) {
+      end++;
+    }
+    if (end < regex.length()) {
+      final char next = regex.charAt(end);
+      if (next == '?' || next == '*' || next == '+' || next == '{') {
+        // the last literal char is optional or repeated
+        end = Math.max(0, end - 1);
+      }
+    }
+    return regex.substring(0, end);
+  }
+
+  /**
+   * Conservative: the names of the named groups of the regex, possibly with some quoted or in a character class
+   */
+  private static Set<String> getGroupNames(String regex) {
+    final Set<String> names = new HashSet<>();
+    for (int i = 0; i < regex.length() - 3; i++) {
+      if (regex.charAt(i) == '\\') {
+        // skip the escaped char
+        i++;
+      } else if (regex.startsWith("(?<", i) && Character.isLetter(regex.charAt(i + 3))) {
+        final int end = regex.indexOf('>', i + 3);
+        if (end != -1) {
+          names.add(regex.substring(i + 3, end));
+        }
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Conservative: whether the regex contains a numbered or named backreference
+   */
+  private static boolean hasBackreference(String regex) {
+    for (int i = 0; i < regex.length() - 1; i++) {
+      if (regex.charAt(i) == '\\') {
+        final char next = regex.charAt(i + 1);
+        if (next >= '1' && next <= '9' || next == 'k') {
+          return true;
+        }
+        // skip the escaped char
+        i++;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isLiteral(char c) {
+    return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+  }
+
+  @Override
+  public String toString() {
+    return "RetrificationPolicy" + rules;
+  }
+}
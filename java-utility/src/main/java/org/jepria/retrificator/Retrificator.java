@@ -1,514 +1,1809 @@
-package org.jepria.retrificator;
-
-import com.google.gson.Gson;
-
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.*;
-import java.util.stream.Collectors;
-
-public final class Retrificator {
-  
-  private final Tomcat tomcat;
-  
-  private final File retrificatorStateFile;
-  private final boolean verbose;
-  
-  private final PrintStream logStream;
-  
-  protected static class State {
-    /**
-     * Set of tomcat access log filenames which had already been processed and should further be ignored
-     */
-    public final Set<String> accessLogsProcessed = new HashSet<>();
-    
-    /**
-     * Key: application context path (starts with a single '/'); value: latest application access timestamp
-     */
-    public final Map<String, Long> latestAccessMap = new HashMap<>();
-  }
-  
-  /**
-   * class for serialization purposes only
-   */
-  private static class StateDto {
-    public Set<String> logFilesProcessed;
-    public Map<String, Long> latestAccessMap;
-  }
-  
-  /**
-   * @param json
-   * @return instance deserialized from json or new instance if the input is null or empty
-   */
-  private static State deserializeState(Reader json) {
-    if (json != null) {
-      final String content;
-      {
-        try (Scanner sc = new Scanner(json)) {
-          sc.useDelimiter("\\Z");
-          if (sc.hasNext()) {
-            content = sc.next();
-          } else {
-            content = null;
-          }
-        }
-      }
-      if (content != null && content.trim().length() > 0) {
-        
-        StateDto dto = new Gson().fromJson(content, StateDto.class);
-        
-        State state = new State();
-        {
-          if (dto.logFilesProcessed != null) {
-            state.accessLogsProcessed.addAll(dto.logFilesProcessed);
-          }
-          if (dto.latestAccessMap != null) {
-            state.latestAccessMap.putAll(dto.latestAccessMap);
-          }
-        }
-        return state;
-        
-      }
-    }
-    // empty or null input
-    return new State();
-  }
-  
-  private static void serializeState(State state, Writer json) {
-    
-    StateDto dto = new StateDto();
-    dto.logFilesProcessed = state.accessLogsProcessed;
-    dto.latestAccessMap = state.latestAccessMap;
-    
-    new Gson().toJson(dto, json);
-  }
-  
-  /**
-   * Read state from the file or create a new instance
-   *
-   * @return
-   */
-  protected State getState() {
-    State state;
-    if (!retrificatorStateFile.exists()) {
-      state = new State();
-    } else {
-      try {
-        state = deserializeState(new FileReader(retrificatorStateFile));
-      } catch (FileNotFoundException e) {
-        e.printStackTrace(logStream);
-        state = new State();
-      }
-    }
-    return state;
-  }
-  
-  protected List<String> ignoreAppNameRegexps;
-  
-  public List<String> getIgnoreAppNameRegexps() {
-    return ignoreAppNameRegexps;
-  }
-  
-  public void setIgnoreAppNameRegexps(List<String> ignoreAppNameRegexps) {
-    this.ignoreAppNameRegexps = ignoreAppNameRegexps;
-    if (verbose) {
-      logStream.println("VERBOSE: setIgnoreAppNameRegexps: " + ignoreAppNameRegexps);
-    }
-  }
-  
-  /**
-   * log warnings about webapps which have only a deployed directory (but no war file)
-   */
-  public void warnUnboundWebapps() {
-    Collection<Webapp> webapps = tomcat.getWebapps();
-    for (Webapp webapp : webapps) {
-      if (webapp.deployed != null && webapp.war == null) {
-        logStream.println("WARNING: warnUnwaredWebapps: The application " + webapp.name + " has only a deployed directory (but no war file) so it will never be retrified");
-      }
-    }
-  }
-  
-  /**
-   * @param tomcat                the target tomcat instance
-   * @param retrificatorStateFile
-   * @param verbose
-   * @param retrificatorLogFile
-   */
-  public Retrificator(Tomcat tomcat, File retrificatorStateFile, boolean verbose, File retrificatorLogFile) {
-    this.tomcat = tomcat;
-    
-    this.retrificatorStateFile = retrificatorStateFile;
-    this.verbose = verbose;
-    
-    PrintStream logStream;
-    if (retrificatorLogFile != null) {
-      try {
-        logStream = new PrintStream(new FileOutputStream(retrificatorLogFile, true), true);
-      } catch (FileNotFoundException e) {
-        // impossible: the file must be created
-        throw new RuntimeException(e);
-      }
-    } else {
-      logStream = System.out;
-    }
-    this.logStream = logStream;
-  }
-  
-  public static final class Strategy {
-    protected Long accessAge;
-    protected Long deployAge;
-    protected boolean cleanupOrphanRetroWars = true;
-    protected boolean cleanupState = true;
-    
-    protected Strategy() {}
-    
-    public static StrategyBuilder newBuilder() {
-      return new StrategyBuilderImpl();
-    }
-  
-    @Override
-    public String toString() {
-      return "Strategy{" +
-              "accessAge=" + accessAge +
-              ", deployAge=" + deployAge +
-              ", cleanupOrphanRetroWars=" + cleanupOrphanRetroWars +
-              ", cleanupState=" + cleanupState +
-              '}';
-    }
-  }
-  
-  public interface StrategyBuilder {
-    StrategyBuilder byAccessAge(long age);
-    
-    StrategyBuilder byDeployAge(long age);
-  
-    /**
-     * delete the existing .war.retro files for applications having actual (alive) .war files
-     * @param whether
-     * @return
-     */
-    StrategyBuilder cleanupOrphanRetroWars(boolean whether);
-  
-    /**
-     * remove webapps from the state which are not present anymore (undeployed)
-     * @param whether
-     * @return
-     */
-    StrategyBuilder cleanupState(boolean whether);
-    
-    Strategy create();
-  }
-  
-  private static class StrategyBuilderImpl implements StrategyBuilder {
-    protected final Strategy strategy = new Strategy();
-    protected boolean built = false;
-    
-    @Override
-    public StrategyBuilder byAccessAge(long age) {
-      checkBuiltOrElseThrow();
-      strategy.accessAge = age;
-      return this;
-    }
-    
-    @Override
-    public StrategyBuilder byDeployAge(long age) {
-      checkBuiltOrElseThrow();
-      strategy.deployAge = age;
-      return this;
-    }
-  
-    @Override
-    public StrategyBuilder cleanupOrphanRetroWars(boolean whether) {
-      checkBuiltOrElseThrow();
-      strategy.cleanupOrphanRetroWars = whether;
-      return this;
-    }
-  
-    @Override
-    public StrategyBuilder cleanupState(boolean whether) {
-      checkBuiltOrElseThrow();
-      strategy.cleanupState = whether;
-      return this;
-    }
-  
-    @Override
-    public Strategy create() {
-      checkBuiltOrElseThrow();
-      built = true;
-      return strategy;
-    }
-    
-    protected void checkBuiltOrElseThrow() {
-      if (built) {
-        throw new IllegalStateException("Already built");
-      }
-    }
-  }
-  
-  
-  public void retrify(Strategy strategy) {
-  
-    if (verbose) {
-      logStream.println("VERBOSE: run retrify at " + new Date() + " with strategy: " + strategy);
-    }
-    
-    // key: webapp name; value: webapp
-    final Map<String, Webapp> webappsToRetrify = new HashMap<>();
-    // element: webapp name
-    final Set<String> webappsToNotRetrify = new HashSet<>();
-  
-    final long now = System.currentTimeMillis();
-    final State state = getState();
-    
-  
-    // perform cleanup before retrification
-    if (strategy.cleanupOrphanRetroWars) {
-      Collection<Webapp> webapps = tomcat.getWebapps();
-      for (Webapp webapp : webapps) {
-        if (webapp.war != null && webapp.war.exists() && webapp.retroWar != null && webapp.retroWar.exists()) {
-          if (webapp.retroWar.delete()) {
-            // success
-            if (verbose) {
-              logStream.println("VERBOSE: application orphan .retro.war cleanup succeeded: " + webapp.name);
-            }
-          } else {
-            // failure
-            logStream.println("ERROR: application orphan .retro.war cleanup failed: " + webapp.name + " (failed to delete the file " + webapp.retroWar + ")");
-          }
-        }
-      }
-    }
-    
-    if (strategy.cleanupState) {
-      Collection<Webapp> webapps = tomcat.getWebapps();
-      Set<String> webappNames = webapps.stream().map(webapp -> webapp.name).collect(Collectors.toSet());
-      state.latestAccessMap.keySet().retainAll(webappNames);
-    }
-  
-    Collection<Webapp> webapps = tomcat.getWebapps();
-    
-    if (strategy.accessAge != null) {
-      // Retrify all tomcat webapps which have lateset access timestamp (known from the access log files) older than the age specified
-      
-      final long age = strategy.accessAge;
-      
-      Collection<File> accessLogs = tomcat.getAccessLogs();
-      Set<String> accessLogFilenames = accessLogs.stream().map(file -> file.getName()).collect(Collectors.toSet());
-      
-      // remove files processed which are not present anymore (deleted)
-      state.accessLogsProcessed.retainAll(accessLogFilenames);
-      
-      // process new files
-      for (File accessLog : accessLogs) {
-        final String accessLogFilename = accessLog.getName();
-        if (state.accessLogsProcessed.add(accessLogFilename)) {
-          List<AccessLogReader.Record> records = new ArrayList<>();
-          
-          try (Scanner sc = new Scanner(accessLog)) {
-            while (sc.hasNextLine()) {
-              String line = sc.nextLine();
-              try {
-                AccessLogReader.Record record = AccessLogReader.parseRecord(line);
-                records.add(record);
-              } catch (IllegalArgumentException e) {
-                // log and continue
-                e.printStackTrace(logStream);
-              }
-            }
-          } catch (IOException e) {
-            // log and continue
-            e.printStackTrace(logStream);
-          }
-          Map<String, Long> latestAccessMap = createLatestAccessMap(records);
-          
-          // merge a new map into the state's one
-          for (String key : latestAccessMap.keySet()) {
-            Long value = latestAccessMap.get(key);
-            mergeLatestAccess(state.latestAccessMap, key, value);
-          }
-        }
-      }
-      
-      final long threshold = now - age;
-      
-      for (Webapp webapp : webapps) {
-        if (webapp.war != null && !ignoredApp(webapp.name)) {
-          Long latestAccess = state.latestAccessMap.get(webapp.name);
-          if (latestAccess != null) {
-            if (latestAccess < threshold) {
-              // retrify
-              webappsToRetrify.put(webapp.name, webapp);
-            } else {
-              // do not retrify
-              webappsToNotRetrify.add(webapp.name);
-            }
-          }
-        }
-      }
-    }
-    
-    if (strategy.deployAge != null) {
-      // Retrify all tomcat apps which have deploy timestamp ({@link File#lastModified()}) older than the age specified
-  
-      final long age = strategy.deployAge;
-  
-      final long threshold = now - age;
-  
-      for (Webapp webapp : webapps) {
-        if (webapp.war != null && !ignoredApp(webapp.name)) {
-          long deploy = getDeployTime(webapp.war);
-          if (deploy < threshold) {
-            webappsToRetrify.put(webapp.name, webapp);
-          } else {
-            webappsToNotRetrify.add(webapp.name);
-          }
-        }
-      }
-    }
-    
-    // perform retrification
-    for (Webapp webapp: webappsToRetrify.values()) {
-      if (!webappsToNotRetrify.contains(webapp.name)) {
-        if (retrify(webapp)) {
-          state.latestAccessMap.remove(webapp.name);
-        }
-      }
-    }
-  
-    // save new state
-    serializeState(state);
-  
-    if (verbose) {
-      logStream.println("VERBOSE: run complete");
-    }
-  }
-  
-  /**
-   * Retrify particular webapp
-   *
-   * @param webapp
-   * @return
-   */
-  protected boolean retrify(Webapp webapp) {
-    // retrify application
-    
-    if (webapp == null) {
-      return false;
-      
-    } else {
-      if (webapp.war == null || !webapp.war.exists()) {
-        if (verbose) {
-          logStream.println("VERBOSE: application retrification failed: " + webapp.name + " (the application war file could not be found)");
-        }
-        return false;
-        
-      } else {
-        
-        final File webappRetroFile;
-        
-        if (webapp.retroWar != null) {
-          webappRetroFile = webapp.retroWar;
-        } else {
-          webappRetroFile = new File(webapp.war.getAbsolutePath() + ".retro");
-        }
-        
-        
-        if (webappRetroFile.exists()) {
-          // delete the existing .war.retro file before retrifying the actual (alive) .war file
-          if (!webappRetroFile.delete()) {
-            // failure
-            logStream.println("WARNING: failed to delete the existing retrified application by the file " + webappRetroFile + ", will try to overwrite it");
-          }
-        }
-        
-        if (webapp.war.renameTo(webappRetroFile)) {
-          // success
-          if (verbose) {
-            logStream.println("VERBOSE: application retrification succeeded: " + webapp.name);
-          }
-          
-          return true;
-        } else {
-          // failure
-          logStream.println("ERROR: application retrification failed: " + webapp.name + " (failed to rename the file " + webapp.war + " to " + webappRetroFile + ")");
-        }
-        
-        return false;
-      }
-    }
-  }
-  
-  protected boolean ignoredApp(String webappName) {
-    return ignoreAppNameRegexps != null && ignoreAppNameRegexps.stream().anyMatch(appNameRegex -> webappName.matches(appNameRegex));
-  }
-  
-  /**
-   * Deploy timestamp is the latest timestamp over the file's creation, access and modification timestamps
-   *
-   * @param webappWar NotNull
-   * @return
-   */
-  // TODO really need to check access timestamp or maybe enough with create and modify timestamps?
-  private static long getDeployTime(File webappWar) {
-    final BasicFileAttributes attrs;
-    try {
-      attrs = Files.readAttributes(webappWar.toPath(), BasicFileAttributes.class);
-    } catch (IOException e) {
-      throw new RuntimeException(e); // TODO maybe better to skip and log?
-    }
-    long created = attrs.creationTime().toMillis();
-    long accessed = attrs.lastAccessTime().toMillis();
-    long modified = attrs.lastModifiedTime().toMillis();
-    return Math.max(Math.max(created, accessed), modified);
-  }
-  
-  private static void mergeLatestAccess(Map<String, Long> map, String key, Long value) {
-    if (map != null) {
-      Long prev = map.get(key);
-      if (value != null && (prev == null || value > prev)) {
-        map.put(key, value);
-      }
-    }
-  }
-  
-  /**
-   * @param records
-   * @return Key: application context path without leading '/'; value: latest access timestamp
-   */
-  private Map<String, Long> createLatestAccessMap(Iterable<AccessLogReader.Record> records) {
-    
-    final Map<String, Long> map = new HashMap<>();
-    
-    if (records != null) {
-      for (AccessLogReader.Record record : records) {
-        
-        String key;
-        {
-          key = record.request.url;
-          while (key.length() > 0 && key.charAt(0) == '/') {
-            key = key.substring(1);
-          }
-          
-          int slashIndex = key.indexOf('/');
-          key = slashIndex == -1 ? key : key.substring(0, slashIndex);
-          
-          int questIndex = key.indexOf('?');
-          key = questIndex == -1 ? key : key.substring(0, questIndex);
-        }
-        
-        mergeLatestAccess(map, key, record.dateAndTime);
-      }
-    }
-    
-    return map;
-  }
-  
-  private void serializeState(State state) {
-    try (Writer w = new FileWriter(retrificatorStateFile, false)) {
-      serializeState(state, w);
-    } catch (IOException e) {
-      e.printStackTrace(logStream);
-    }
-  }
-}
+package org.jepria.retrificator;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+public final class Retrificator {
+  
+  private final Tomcat tomcat;
+  
+  private final StateStore stateStore;
+  private final AccessHistogramStore accessHistogramStore;
+  private final boolean verbose;
+  
+  private final PrintStream logStream;
+  
+  protected static class State {
+    /**
+     * Key: tomcat access log filename; value: the position up to which the file had already been processed
+     */
+    public final Map<String, AccessLogCheckpoint> accessLogCheckpoints = new HashMap<>();
+    
+    /**
+     * Set of tomcat access log filenames which had been processed entirely, as recorded by the previous versions.
+     * Read-only, converted to the checkpoints on the next run
+     */
+    public final Set<String> accessLogsProcessedLegacy = new HashSet<>();
+    
+    /**
+     * Key: webapp name (or the first url path segment, if no webapp served the url); value: latest application access timestamp
+     */
+    public final Map<String, Long> latestAccessMap = new ConcurrentHashMap<>();
+    
+    /**
+     * Key: webapp name; value: the outcome of the latest retrification attempt of the webapp
+     */
+    public final Map<String, RetrificationOutcome> retrificationOutcomes = new HashMap<>();
+    
+    /**
+     * Request counts of the webapps by time buckets, persisted separately by the {@link AccessHistogramStore}
+     */
+    public AccessHistogram accessHistogram = new AccessHistogram();
+  }
+  
+  public PrintStream getLogStream() {
+    return logStream;
+  }
+  
+  public boolean isVerbose() {
+    return verbose;
+  }
+  
+  /**
+   * Nullable: the state read once and kept in memory between the runs
+   */
+  private State state;
+  
+  /**
+   * Read state from the store or create a new instance, on the first invocation
+   *
+   * @return
+   */
+  protected State getState() {
+    if (state == null) {
+      try {
+        state = stateStore.load();
+      } catch (IOException e) {
+        e.printStackTrace(logStream);
+        state = new State();
+      }
+      state.accessHistogram = loadAccessHistogram(state, false);
+    }
+    return state;
+  }
+  
+  /**
+   * @param mapped see {@link AccessHistogramStore#load(boolean)}
+   * @return the histogram persisted, or a new one if there is none, covering the requests of the access log lines not yet processed
+   */
+  private AccessHistogram loadAccessHistogram(State state, boolean mapped) {
+    try {
+      final AccessHistogram histogram = accessHistogramStore.load(mapped);
+      if (histogram != null) {
+        return histogram;
+      }
+    } catch (IOException e) {
+      e.printStackTrace(logStream);
+    }
+    final AccessHistogram histogram = new AccessHistogram();
+    if (!state.accessLogCheckpoints.isEmpty() || !state.accessLogsProcessedLegacy.isEmpty()) {
+      // the access logs processed before have not been counted
+      histogram.coveredSince = System.currentTimeMillis();
+    }
+    return histogram;
+  }
+  
+  /**
+   * Key: webapp name; value: revival timestamp.
+   * The revivals happen concurrently with the runs, so they are applied to the state by the runs
+   */
+  private final Map<String, Long> pendingRevivals = new ConcurrentHashMap<>();
+  
+  /**
+   * Marks the revived webapps as accessed at the revival time
+   */
+  private void applyRevivals(State state) {
+    for (String webappName : new ArrayList<>(pendingRevivals.keySet())) {
+      final Long revival = pendingRevivals.remove(webappName);
+      if (revival != null) {
+        state.latestAccessMap.merge(webappName, revival, Math::max);
+      }
+    }
+  }
+  
+  protected List<String> ignoreAppNameRegexps;
+  
+  public List<String> getIgnoreAppNameRegexps() {
+    return ignoreAppNameRegexps;
+  }
+  
+  /**
+   * The {@link #ignoreAppNameRegexps} compiled
+   */
+  protected RetrificationPolicy ignorePolicy = RetrificationPolicy.EMPTY;
+  
+  /**
+   * @param ignoreAppNameRegexps
+   * @throws IllegalArgumentException on an invalid regexp
+   */
+  public void setIgnoreAppNameRegexps(List<String> ignoreAppNameRegexps) {
+    this.ignoreAppNameRegexps = ignoreAppNameRegexps;
+    this.ignorePolicy = ignoreAppNameRegexps == null ? RetrificationPolicy.EMPTY : RetrificationPolicy.ofIgnoreAppNameRegexps(ignoreAppNameRegexps);
+    if (verbose) {
+      logStream.println("VERBOSE: setIgnoreAppNameRegexps: " + ignoreAppNameRegexps);
+    }
+  }
+  
+  /**
+   * Number of threads to scan a single large access log file in parallel with, {@code 1} to scan sequentially
+   */
+  protected int scanParallelism = 1;
+  
+  /**
+   * Size of a chunk of an access log file to scan in parallel, in bytes.
+   * Only the files having more new bytes than the chunk size are scanned in parallel
+   */
+  protected int scanChunkSize = ParallelAccessLogScanner.DEFAULT_CHUNK_SIZE;
+  
+  public int getScanParallelism() {
+    return scanParallelism;
+  }
+  
+  public void setScanParallelism(int scanParallelism) {
+    if (scanParallelism <= 0) {
+      throw new IllegalArgumentException("Illegal scan parallelism value '" + scanParallelism + "': positive integer allowed");
+    }
+    this.scanParallelism = scanParallelism;
+  }
+  
+  public int getScanChunkSize() {
+    return scanChunkSize;
+  }
+  
+  public void setScanChunkSize(int scanChunkSize) {
+    if (scanChunkSize <= 0 || scanChunkSize > ParallelAccessLogScanner.MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Illegal scan chunk size value '" + scanChunkSize + "': positive integer up to " + ParallelAccessLogScanner.MAX_CHUNK_SIZE + " allowed");
+    }
+    this.scanChunkSize = scanChunkSize;
+  }
+  
+  /**
+   * Whether to process the access logs from the newest to the oldest, stopping as soon as possible
+   */
+  protected boolean newestFirst = false;
+  
+  public boolean isNewestFirst() {
+    return newestFirst;
+  }
+  
+  public void setNewestFirst(boolean newestFirst) {
+    this.newestFirst = newestFirst;
+  }
+  
+  /**
+   * Max number of access log files to process concurrently, {@code 1} to process the files one by one
+   */
+  protected int ingestParallelism = 1;
+  
+  public int getIngestParallelism() {
+    return ingestParallelism;
+  }
+  
+  public void setIngestParallelism(int ingestParallelism) {
+    if (ingestParallelism <= 0) {
+      throw new IllegalArgumentException("Illegal ingest parallelism value '" + ingestParallelism + "': positive integer allowed");
+    }
+    this.ingestParallelism = ingestParallelism;
+  }
+  
+  /**
+   * Max number of webapps to retrify before awaiting their undeployment
+   */
+  protected int retrifyBatchSize = Integer.MAX_VALUE;
+  
+  /**
+   * Max number of webapps to retrify per minute, {@code 0} for no limit
+   */
+  protected int retrifyRate = 0;
+  
+  /**
+   * Max time to await the undeployment of a batch of retrified webapps, in milliseconds, {@code 0} not to await
+   */
+  protected long undeployTimeout = 0;
+  
+  public int getRetrifyBatchSize() {
+    return retrifyBatchSize;
+  }
+  
+  public void setRetrifyBatchSize(int retrifyBatchSize) {
+    if (retrifyBatchSize <= 0) {
+      throw new IllegalArgumentException("Illegal retrify batch size value '" + retrifyBatchSize + "': positive integer allowed");
+    }
+    this.retrifyBatchSize = retrifyBatchSize;
+  }
+  
+  public int getRetrifyRate() {
+    return retrifyRate;
+  }
+  
+  public void setRetrifyRate(int retrifyRate) {
+    if (retrifyRate < 0) {
+      throw new IllegalArgumentException("Illegal retrify rate value '" + retrifyRate + "': non-negative integer allowed");
+    }
+    this.retrifyRate = retrifyRate;
+  }
+  
+  public long getUndeployTimeout() {
+    return undeployTimeout;
+  }
+  
+  public void setUndeployTimeout(long undeployTimeout) {
+    if (undeployTimeout < 0) {
+      throw new IllegalArgumentException("Illegal undeploy timeout value '" + undeployTimeout + "': non-negative integer allowed");
+    }
+    this.undeployTimeout = undeployTimeout;
+  }
+  
+  /**
+   * Nullable: the store to retrify the webapps into, deduplicated, instead of renaming the war files
+   */
+  protected RetroStore retroStore;
+  
+  public RetroStore getRetroStore() {
+    return retroStore;
+  }
+  
+  public void setRetroStore(RetroStore retroStore) {
+    this.retroStore = retroStore;
+  }
+  
+  /**
+   * Writes the metrics of the latest runs into the retrificator root after every run
+   */
+  private final MetricsExporter metricsExporter;
+  
+  /**
+   * Key: {@link RunMetrics#run}; value: the metrics of the latest run of the kind
+   */
+  private final Map<String, RunMetrics> latestRunMetrics = new ConcurrentSkipListMap<>();
+  
+  /**
+   * The metrics of the current run, accessed by the run thread and the ingestion tasks
+   */
+  private volatile RunMetrics runMetrics;
+  
+  /**
+   * @return the metrics of the latest run of each kind (ingestion, retrification)
+   */
+  public Collection<RunMetrics> getLatestRunMetrics() {
+    return Collections.unmodifiableCollection(latestRunMetrics.values());
+  }
+  
+  /**
+   * Whether the next run is to {@link #warnUnboundWebapps(Collection) warn} about the webapps it lists
+   */
+  private volatile boolean warnUnboundWebapps;
+  
+  /**
+   * log warnings about webapps which have only a deployed directory (but no war file).
+   * The warnings are logged by the next run (either the ingestion or the retrification) over the webapps it lists,
+   * for the webapps not to be listed twice
+   */
+  public void warnUnboundWebapps() {
+    warnUnboundWebapps = true;
+  }
+  
+  private void warnUnboundWebapps(Collection<Webapp> webapps) {
+    if (!warnUnboundWebapps) {
+      return;
+    }
+    warnUnboundWebapps = false;
+    for (Webapp webapp : webapps) {
+      if (webapp.deployed != null && webapp.war == null) {
+        logStream.println("WARNING: warnUnwaredWebapps: The application " + webapp.name + " has only a deployed directory (but no war file) so it will never be retrified");
+      }
+    }
+  }
+  
+  /**
+   * @param tomcat                the target tomcat instance
+   * @param retrificatorStateFile
+   * @param verbose
+   * @param retrificatorLogFile
+   */
+  public Retrificator(Tomcat tomcat, File retrificatorStateFile, boolean verbose, File retrificatorLogFile) {
+    this.tomcat = tomcat;
+    
+    this.stateStore = new StateStore(retrificatorStateFile);
+    this.verbose = verbose;
+    
+    final File retrificatorRoot = retrificatorStateFile.getAbsoluteFile().getParentFile();
+    this.accessHistogramStore = new AccessHistogramStore(new File(retrificatorRoot, "retrificator-access-histogram.bin"));
+    this.metricsExporter = new MetricsExporter(new File(retrificatorRoot, "retrificator-metrics.prom"),
+            new File(retrificatorRoot, "retrificator-metrics.json"));
+    
+    PrintStream logStream;
+    if (retrificatorLogFile != null) {
+      try {
+        // the lines are written by the background thread, for the runs not to block on the log
+        logStream = new PrintStream(new AsyncLogOutputStream(new FileOutputStream(retrificatorLogFile, true)), true);
+      } catch (FileNotFoundException e) {
+        // impossible: the file must be created
+        throw new RuntimeException(e);
+      }
+    } else {
+      logStream = System.out;
+    }
+    this.logStream = logStream;
+  }
+  
+  public static final class Strategy {
+    protected Long accessAge;
+    protected Long deployAge;
+    protected boolean cleanupOrphanRetroWars = true;
+    protected boolean cleanupState = true;
+    /**
+     * The rules applied after the ignored apps, overriding the ages for particular webapps
+     */
+    protected RetrificationPolicy policy = RetrificationPolicy.EMPTY;
+    /**
+     * Max total weight of the live (not retrified) webapps, {@code null} for no bound
+     */
+    protected Long capacity;
+    protected CapacityWeight capacityWeight = CapacityWeight.COUNT;
+    /**
+     * Min number of the requests to a webapp within the {@link #minRequestsWindow} for it not to be retrified, {@code null} for no bound
+     */
+    protected Long minRequests;
+    protected long minRequestsWindow;
+    
+    protected Strategy() {}
+    
+    public static StrategyBuilder newBuilder() {
+      return new StrategyBuilderImpl();
+    }
+  
+    @Override
+    public String toString() {
+      return "Strategy{" +
+              "accessAge=" + accessAge +
+              ", deployAge=" + deployAge +
+              ", cleanupOrphanRetroWars=" + cleanupOrphanRetroWars +
+              ", cleanupState=" + cleanupState +
+              ", policy=" + policy +
+              ", capacity=" + capacity +
+              ", capacityWeight=" + capacityWeight +
+              ", minRequests=" + minRequests +
+              ", minRequestsWindow=" + minRequestsWindow +
+              '}';
+    }
+  }
+  
+  /**
+   * The weight of a live webapp, for the capacity bound
+   */
+  public enum CapacityWeight {
+    /**
+     * each webapp weighs 1, so the capacity is the max number of the live webapps
+     */
+    COUNT,
+    /**
+     * the size of the war file in bytes
+     */
+    WAR_SIZE,
+    /**
+     * the total size of the files in the deployed directory in bytes
+     */
+    DEPLOYED_SIZE,
+  }
+  
+  public interface StrategyBuilder {
+    StrategyBuilder byAccessAge(long age);
+    
+    StrategyBuilder byDeployAge(long age);
+  
+    /**
+     * delete the existing .war.retro files for applications having actual (alive) .war files
+     * @param whether
+     * @return
+     */
+    StrategyBuilder cleanupOrphanRetroWars(boolean whether);
+  
+    /**
+     * remove webapps from the state which are not present anymore (undeployed)
+     * @param whether
+     * @return
+     */
+    StrategyBuilder cleanupState(boolean whether);
+    
+    /**
+     * ignore the webapps or retrify them by the ages of their own, according to the policy rules
+     * @param policy
+     * @return
+     */
+    StrategyBuilder byPolicy(RetrificationPolicy policy);
+    
+    /**
+     * treat the live webapps as a bounded cache: once their total weight exceeds the capacity,
+     * retrify the least recently used ones (by the latest access, or by the deploy time if never accessed),
+     * as few as needed to get under the capacity, regardless of the ages
+     * @param capacity max total weight of the live webapps
+     * @param weight
+     * @return
+     */
+    StrategyBuilder byCapacity(long capacity, CapacityWeight weight);
+    
+    /**
+     * retrify the webapps requested fewer times than the minimum within the window before now (as counted by the access histogram,
+     * at the hourly resolution for the recent days and daily before that). Not applied if the histogram does not cover the window
+     * @param minRequests
+     * @param window in milliseconds
+     * @return
+     */
+    StrategyBuilder byMinRequests(long minRequests, long window);
+    
+    Strategy create();
+  }
+  
+  private static class StrategyBuilderImpl implements StrategyBuilder {
+    protected final Strategy strategy = new Strategy();
+    protected boolean built = false;
+    
+    @Override
+    public StrategyBuilder byAccessAge(long age) {
+      checkBuiltOrElseThrow();
+      strategy.accessAge = age;
+      return this;
+    }
+    
+    @Override
+    public StrategyBuilder byDeployAge(long age) {
+      checkBuiltOrElseThrow();
+      strategy.deployAge = age;
+      return this;
+    }
+  
+    @Override
+    public StrategyBuilder cleanupOrphanRetroWars(boolean whether) {
+      checkBuiltOrElseThrow();
+      strategy.cleanupOrphanRetroWars = whether;
+      return this;
+    }
+  
+    @Override
+    public StrategyBuilder cleanupState(boolean whether) {
+      checkBuiltOrElseThrow();
+      strategy.cleanupState = whether;
+      return this;
+    }
+  
+    @Override
+    public StrategyBuilder byPolicy(RetrificationPolicy policy) {
+      checkBuiltOrElseThrow();
+      strategy.policy = policy == null ? RetrificationPolicy.EMPTY : policy;
+      return this;
+    }
+  
+    @Override
+    public StrategyBuilder byCapacity(long capacity, CapacityWeight weight) {
+      checkBuiltOrElseThrow();
+      if (capacity < 0) {
+        throw new IllegalArgumentException("Illegal capacity value '" + capacity + "': non-negative integer allowed");
+      }
+      strategy.capacity = capacity;
+      strategy.capacityWeight = weight == null ? CapacityWeight.COUNT : weight;
+      return this;
+    }
+    
+    @Override
+    public StrategyBuilder byMinRequests(long minRequests, long window) {
+      checkBuiltOrElseThrow();
+      if (window <= 0) {
+        throw new IllegalArgumentException("Illegal window value '" + window + "': positive integer allowed");
+      }
+      strategy.minRequests = minRequests;
+      strategy.minRequestsWindow = window;
+      return this;
+    }
+    
+    @Override
+    public Strategy create() {
+      checkBuiltOrElseThrow();
+      built = true;
+      return strategy;
+    }
+    
+    protected void checkBuiltOrElseThrow() {
+      if (built) {
+        throw new IllegalStateException("Already built");
+      }
+    }
+  }
+  
+  
+  /**
+   * Processes the new lines of the access logs into the state and persists it, with no retrification.
+   * Intended to be invoked more often than the {@link #retrify(Strategy)}, to keep the state up to date
+   * with less work on each invocation
+   */
+  public synchronized void ingest() {
+    if (verbose) {
+      logStream.println("VERBOSE: run ingest at " + new Date());
+    }
+    
+    runMetrics = new RunMetrics(RunMetrics.RUN_INGEST);
+    final State state = getState();
+    applyRevivals(state);
+    final Collection<Webapp> webapps = tomcat.getInventory().getWebapps();
+    runMetrics.apps = webapps.size();
+    warnUnboundWebapps(webapps);
+    
+    long phaseStart = System.nanoTime();
+    ingestAccessLogs(state, webapps);
+    phaseStart = runMetrics.phase("ingestion", phaseStart);
+    // the interrupt status is restored once the state is saved, as the file channels are closed by an interrupt
+    final boolean interrupted = Thread.interrupted();
+    serializeState(state);
+    runMetrics.phase("state_save", phaseStart);
+    
+    exportRunMetrics(state);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  public synchronized void retrify(Strategy strategy) {
+  
+    if (verbose) {
+      logStream.println("VERBOSE: run retrify at " + new Date() + " with strategy: " + strategy);
+    }
+    
+    final long now = System.currentTimeMillis();
+    runMetrics = new RunMetrics(RunMetrics.RUN_RETRIFY);
+    final State state = getState();
+    applyRevivals(state);
+    // the webapps listed once for all phases of the run
+    final WebappInventory inventory = tomcat.getInventory();
+    runMetrics.apps = inventory.size();
+    warnUnboundWebapps(inventory.getWebapps());
+    
+    long phaseStart = System.nanoTime();
+  
+    // perform cleanup before retrification
+    if (strategy.cleanupOrphanRetroWars) {
+      Collection<Webapp> webapps = inventory.getWebapps();
+      for (Webapp webapp : webapps) {
+        if (webapp.war != null && webapp.war.exists() && webapp.retroWar != null && webapp.retroWar.exists()) {
+          if (webapp.retroWar.delete()) {
+            // success
+            if (verbose) {
+              logStream.println("VERBOSE: application orphan .retro.war cleanup succeeded: " + webapp.name);
+            }
+          } else {
+            // failure
+            logStream.println("ERROR: application orphan .retro.war cleanup failed: " + webapp.name + " (failed to delete the file " + webapp.retroWar + ")");
+          }
+        }
+      }
+      phaseStart = runMetrics.phase("orphan_cleanup", phaseStart);
+    }
+    
+    if (strategy.cleanupState) {
+      state.latestAccessMap.keySet().retainAll(inventory.getNames());
+      state.retrificationOutcomes.keySet().retainAll(inventory.getNames());
+      state.accessHistogram.retainAll(inventory.getNames());
+      phaseStart = runMetrics.phase("state_cleanup", phaseStart);
+    }
+  
+    List<Webapp> retrifications = selectRetrifications(strategy, inventory, state, now, true);
+    if (Thread.currentThread().isInterrupted() && !retrifications.isEmpty()) {
+      // the ingestion may have stopped short of the latest accesses
+      logStream.println("WARNING: retrification interrupted, the applications are left for the next run");
+      retrifications = Collections.emptyList();
+    }
+    phaseStart = System.nanoTime();
+    
+    final RetrificationExecutor executor = new RetrificationExecutor(this::retrify, logStream, verbose);
+    executor.setBatchSize(retrifyBatchSize);
+    executor.setRenameInterval(retrifyRate == 0 ? 0 : 60 * 1000L / retrifyRate);
+    executor.setUndeployTimeout(undeployTimeout);
+    // the ingestion and the revivals are not blocked while pacing; the state is shared, the run metrics are not
+    executor.setMonitor(this);
+    final RunMetrics metrics = runMetrics;
+    boolean interrupted = false;
+    try {
+      executor.execute(retrifications, outcomes -> {
+        for (Map.Entry<String, RetrificationOutcome> entry : outcomes.entrySet()) {
+          state.retrificationOutcomes.put(entry.getKey(), entry.getValue());
+          if (entry.getValue().isRetrified()) {
+            state.latestAccessMap.remove(entry.getKey());
+            metrics.appsRetrified++;
+          } else {
+            metrics.retrificationsFailed++;
+          }
+        }
+        // persist each batch, for the outcomes not to be lost if the run is terminated
+        serializeState(state);
+      });
+    } catch (InterruptedException e) {
+      logStream.println("WARNING: retrification interrupted, the rest of the applications are left for the next run");
+      interrupted = true;
+    }
+    runMetrics = metrics;
+    // the interrupt status is restored once the state is saved, as the file channels are closed by an interrupt
+    interrupted |= Thread.interrupted();
+    phaseStart = runMetrics.phase("renames", phaseStart);
+  
+    if (retroStore != null && !interrupted) {
+      // the webapps listed anew, as retrified just now
+      collectRetroStoreGarbage(tomcat.getInventory().getWebapps());
+      phaseStart = runMetrics.phase("retro_store_gc", phaseStart);
+    }
+  
+    // save new state
+    serializeState(state);
+    runMetrics.phase("state_save", phaseStart);
+    
+    exportRunMetrics(state);
+  
+    if (verbose) {
+      logStream.println("VERBOSE: webapp inventory of " + inventory.size() + " webapps: " + inventory.getHits() + " lookups served from the snapshot, " + inventory.getMisses() + " missed");
+      logStream.println("VERBOSE: run complete");
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Evaluates the strategy over the webapps and the state
+   *
+   * @param ingest whether to ingest the access logs first, if the strategy needs the latest accesses or the request counts
+   * @return the webapps to retrify, sorted by the name
+   */
+  private List<Webapp> selectRetrifications(Strategy strategy, WebappInventory inventory, State state, long now, boolean ingest) {
+    long phaseStart = System.nanoTime();
+    
+    // key: webapp name; value: webapp
+    final Map<String, Webapp> webappsToRetrify = new HashMap<>();
+    // element: webapp name
+    final Set<String> webappsToNotRetrify = new HashSet<>();
+    
+    Collection<Webapp> webapps = inventory.getWebapps();
+    
+    // the rules of the webapps to be retrified, resolved once for all phases
+    final RetrificationPolicy policy = ignorePolicy.then(strategy.policy);
+    final Map<String, RetrificationPolicy.Rule> webappRules = new HashMap<>();
+    boolean accessAgeRules = false;
+    boolean deployAgeRules = false;
+    for (Webapp webapp : webapps) {
+      if (webapp.war != null) {
+        RetrificationPolicy.Rule rule = policy.resolve(webapp.name);
+        if (rule != null) {
+          webappRules.put(webapp.name, rule);
+          accessAgeRules |= !rule.ignore && rule.accessAge != null;
+          deployAgeRules |= !rule.ignore && rule.deployAge != null;
+        }
+      }
+    }
+    
+    if (ingest && (strategy.accessAge != null || accessAgeRules || strategy.capacity != null || strategy.minRequests != null)) {
+      // the latest access timestamps and the request counts are needed up to date
+      phaseStart = runMetrics.phase("strategy", phaseStart);
+      ingestAccessLogs(state, webapps);
+      phaseStart = runMetrics.phase("ingestion", phaseStart);
+    }
+    
+    if (strategy.accessAge != null || accessAgeRules) {
+      // Retrify all tomcat webapps which have lateset access timestamp (known from the access log files) older than the age specified
+      
+      for (Webapp webapp : webapps) {
+        final RetrificationPolicy.Rule rule = webappRules.get(webapp.name);
+        final Long age = rule != null && rule.accessAge != null ? rule.accessAge : strategy.accessAge;
+        if (webapp.war != null && (rule == null || !rule.ignore) && age != null) {
+          final long threshold = now - age;
+          Long latestAccess = state.latestAccessMap.get(webapp.name);
+          if (latestAccess != null) {
+            if (latestAccess < threshold) {
+              // retrify
+              webappsToRetrify.put(webapp.name, webapp);
+            } else {
+              // do not retrify
+              webappsToNotRetrify.add(webapp.name);
+            }
+          }
+        }
+      }
+    }
+    
+    if (strategy.deployAge != null || deployAgeRules) {
+      // Retrify all tomcat apps which have deploy timestamp ({@link File#lastModified()}) older than the age specified
+  
+      for (Webapp webapp : webapps) {
+        final RetrificationPolicy.Rule rule = webappRules.get(webapp.name);
+        final Long age = rule != null && rule.deployAge != null ? rule.deployAge : strategy.deployAge;
+        if (webapp.war != null && (rule == null || !rule.ignore) && age != null) {
+          final long threshold = now - age;
+          long deploy = getDeployTime(inventory.getWarAttributes(webapp.war));
+          if (deploy < threshold) {
+            webappsToRetrify.put(webapp.name, webapp);
+          } else {
+            webappsToNotRetrify.add(webapp.name);
+          }
+        }
+      }
+    }
+    
+    if (strategy.minRequests != null) {
+      // Retrify all tomcat webapps requested fewer times than the minimum within the window (as counted in the access histogram)
+      
+      final long windowStart = now - strategy.minRequestsWindow;
+      final AccessHistogram histogram = state.accessHistogram;
+      if (histogram.covers(windowStart)) {
+        for (Webapp webapp : webapps) {
+          final RetrificationPolicy.Rule rule = webappRules.get(webapp.name);
+          if (webapp.war != null && (rule == null || !rule.ignore)) {
+            if (histogram.count(webapp.name, windowStart, now) < strategy.minRequests) {
+              webappsToRetrify.put(webapp.name, webapp);
+            } else {
+              webappsToNotRetrify.add(webapp.name);
+            }
+          }
+        }
+      } else {
+        logStream.println("WARNING: the min requests are not applied: the requests are only counted since " + new Date(histogram.coveredSince)
+                + ", later than the window start " + new Date(windowStart));
+      }
+    }
+    
+    final List<Webapp> retrifications = new ArrayList<>();
+    for (Webapp webapp: webappsToRetrify.values()) {
+      if (!webappsToNotRetrify.contains(webapp.name)) {
+        retrifications.add(webapp);
+      }
+    }
+    
+    if (strategy.capacity != null) {
+      // the webapps vetoed by another criterion stay live, so count towards the capacity
+      final Set<String> retrified = new HashSet<>();
+      for (Webapp webapp : retrifications) {
+        retrified.add(webapp.name);
+      }
+      retrifications.addAll(selectOverCapacity(strategy, inventory, state, webappRules, retrified));
+    }
+    
+    retrifications.sort(Comparator.comparing(webapp -> webapp.name));
+    runMetrics.phase("strategy", phaseStart);
+    return retrifications;
+  }
+  
+  /**
+   * Evaluates the strategy over the state as persisted (the latest accesses and the request counts), with no access logs read
+   * and nothing retrified or changed, to see what the strategy would do
+   *
+   * @return the names of the webapps the strategy would retrify now, sorted
+   */
+  public synchronized List<String> simulate(Strategy strategy) {
+    runMetrics = new RunMetrics(RunMetrics.RUN_SIMULATE);
+    final State state = this.state != null ? this.state : stateForSimulation();
+    final List<String> names = new ArrayList<>();
+    for (Webapp webapp : selectRetrifications(strategy, tomcat.getInventory(), state, System.currentTimeMillis(), false)) {
+      names.add(webapp.name);
+    }
+    return names;
+  }
+  
+  /**
+   * @return the state as persisted, with the histogram mapped rather than read, not to be kept
+   */
+  private State stateForSimulation() {
+    State state;
+    try {
+      state = stateStore.load();
+    } catch (IOException e) {
+      e.printStackTrace(logStream);
+      state = new State();
+    }
+    state.accessHistogram = loadAccessHistogram(state, true);
+    return state;
+  }
+  
+  /**
+   * A live webapp ranked for the eviction
+   */
+  private static final class EvictionCandidate implements Comparable<EvictionCandidate> {
+    final Webapp webapp;
+    /**
+     * The latest access, or the deploy time if never accessed
+     */
+    final long lastUsed;
+    final long weight;
+    
+    EvictionCandidate(Webapp webapp, long lastUsed, long weight) {
+      this.webapp = webapp;
+      this.lastUsed = lastUsed;
+      this.weight = weight;
+    }
+    
+    @Override
+    public int compareTo(EvictionCandidate o) {
+      final int cmp = Long.compare(lastUsed, o.lastUsed);
+      return cmp != 0 ? cmp : webapp.name.compareTo(o.webapp.name);
+    }
+  }
+  
+  /**
+   * Selects the least recently used webapps to retrify for the total weight of the live webapps to get under the capacity.
+   * The ignored webapps count towards the capacity but are never selected
+   *
+   * @param strategy with the capacity
+   * @param inventory
+   * @param state
+   * @param webappRules the policy rules of the webapps
+   * @param retrified the names of the webapps to be retrified by the other criteria anyway, not counted as live
+   * @return the webapps to retrify in addition to the ones by the other criteria
+   */
+  private List<Webapp> selectOverCapacity(Strategy strategy, WebappInventory inventory, State state,
+                                          Map<String, RetrificationPolicy.Rule> webappRules, Set<String> retrified) {
+    long total = 0;
+    final List<EvictionCandidate> candidates = new ArrayList<>();
+    for (Webapp webapp : inventory.getWebapps()) {
+      if (webapp.war == null || retrified.contains(webapp.name)) {
+        continue;
+      }
+      final long weight = getCapacityWeight(webapp, strategy.capacityWeight, inventory);
+      total += weight;
+      final RetrificationPolicy.Rule rule = webappRules.get(webapp.name);
+      if (rule == null || !rule.ignore) {
+        final Long latestAccess = state.latestAccessMap.get(webapp.name);
+        final long lastUsed = latestAccess != null ? latestAccess : getDeployTime(inventory.getWarAttributes(webapp.war));
+        candidates.add(new EvictionCandidate(webapp, lastUsed, weight));
+      }
+    }
+    
+    final long liveWeight = total;
+    final List<Webapp> evicted = new ArrayList<>();
+    if (total > strategy.capacity) {
+      // heapified in linear time, only the evicted ones are polled
+      final PriorityQueue<EvictionCandidate> heap = new PriorityQueue<>(candidates);
+      while (total > strategy.capacity && !heap.isEmpty()) {
+        final EvictionCandidate candidate = heap.poll();
+        evicted.add(candidate.webapp);
+        total -= candidate.weight;
+      }
+    }
+    
+    if (verbose) {
+      logStream.println("VERBOSE: live applications weigh " + liveWeight + " by " + strategy.capacityWeight
+              + " of the capacity " + strategy.capacity + ", " + evicted.size() + " least recently used to retrify: " + evicted.stream().map(webapp -> webapp.name).collect(Collectors.toList()));
+    }
+    if (total > strategy.capacity) {
+      logStream.println("WARNING: the live applications not ignored are not enough to get under the capacity " + strategy.capacity + ": " + total + " left");
+    }
+    return evicted;
+  }
+  
+  private static long getCapacityWeight(Webapp webapp, CapacityWeight weight, WebappInventory inventory) {
+    switch (weight) {
+      case WAR_SIZE:
+        return inventory.getWarAttributes(webapp.war).size();
+      case DEPLOYED_SIZE:
+        return webapp.deployed == null ? 0 : getDirectorySize(webapp.deployed.toPath());
+      default:
+        return 1;
+    }
+  }
+  
+  /**
+   * @return the total size of the regular files in the directory tree, the files failed to read skipped
+   */
+  private static long getDirectorySize(Path dir) {
+    final long[] size = {0};
+    try {
+      Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (attrs.isRegularFile()) {
+            size[0] += attrs.size();
+          }
+          return FileVisitResult.CONTINUE;
+        }
+        
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      // not a directory anymore
+    }
+    return size[0];
+  }
+  
+  /**
+   * Processes the new lines of the access logs into the state
+   *
+   * @param state
+   * @param webapps the webapps of the tomcat
+   */
+  private void ingestAccessLogs(State state, Collection<Webapp> webapps) {
+    Collection<File> accessLogs = tomcat.getAccessLogs();
+    final Set<String> accessLogFilenames = new HashSet<>();
+    for (File accessLog : accessLogs) {
+      accessLogFilenames.add(accessLog.getName());
+    }
+    
+    // key: access log filename; value: the checkpoint after the processing
+    final Map<String, AccessLogCheckpoint> accessLogCheckpoints = new ConcurrentHashMap<>();
+    
+    final Collection<File> modifiedAccessLogs = tomcat.pollModifiedAccessLogs();
+    if (modifiedAccessLogs != null) {
+      // the files not modified since the previous run have no new lines, keep their checkpoints as is,
+      // unless some lines have been left unprocessed (skipped by the newest first processing)
+      final Set<File> modified = new HashSet<>(modifiedAccessLogs);
+      final List<File> accessLogsToIngest = new ArrayList<>();
+      for (File accessLog : accessLogs) {
+        AccessLogCheckpoint checkpoint = state.accessLogCheckpoints.get(accessLog.getName());
+        if (checkpoint != null && checkpoint.offset >= checkpoint.size && !checkpoint.hasUnread() && !modified.contains(accessLog)) {
+          accessLogCheckpoints.put(accessLog.getName(), checkpoint);
+        } else {
+          accessLogsToIngest.add(accessLog);
+        }
+      }
+      runMetrics.accessLogsSkipped += accessLogs.size() - accessLogsToIngest.size();
+      if (verbose) {
+        logStream.println("VERBOSE: " + (accessLogs.size() - accessLogsToIngest.size()) + " access log files skipped as not modified");
+      }
+      accessLogs = accessLogsToIngest;
+    }
+    
+    final ParallelAccessLogScanner scanner = scanParallelism > 1
+            ? new ParallelAccessLogScanner(scanParallelism, scanChunkSize) : null;
+    
+    // the requests are attributed to the webapps by their context paths
+    final ContextResolver resolver = ContextResolver.of(webapps);
+    
+    // process new lines of the files
+    try {
+      if (newestFirst) {
+        // only the webapps which may be retrified by the access age matter
+        Set<String> candidates = webapps.stream()
+                .filter(webapp -> webapp.war != null && !ignoredApp(webapp.name))
+                .map(webapp -> webapp.name)
+                .collect(Collectors.toSet());
+        ingestAccessLogsNewestFirst(accessLogs, state, accessLogCheckpoints, resolver, candidates);
+      } else if (ingestParallelism > 1 && accessLogs.size() > 1) {
+        ingestAccessLogsConcurrently(accessLogs, state, accessLogCheckpoints, resolver, scanner);
+      } else {
+        for (File accessLog : accessLogs) {
+          if (Thread.currentThread().isInterrupted()) {
+            logInterruptedIngestion();
+            break;
+          }
+          ingestAccessLog(accessLog, state, accessLogCheckpoints, resolver, scanner);
+        }
+      }
+    } finally {
+      // the pool threads are not left behind by a failed run
+      if (scanner != null) {
+        scanner.close();
+      }
+    }
+    
+    // the checkpoints of the files not present anymore (deleted) are removed,
+    // the ones of the files failed to process are kept as before, not to process the same lines again
+    state.accessLogCheckpoints.keySet().retainAll(accessLogFilenames);
+    state.accessLogCheckpoints.putAll(accessLogCheckpoints);
+    state.accessLogsProcessedLegacy.clear();
+  }
+  
+  /**
+   * Retrify particular webapp
+   *
+   * @param webapp
+   * @return
+   */
+  protected boolean retrify(Webapp webapp) {
+    // retrify application
+    
+    if (webapp == null) {
+      return false;
+      
+    } else {
+      if (webapp.war == null || !webapp.war.exists()) {
+        if (verbose) {
+          logStream.println("VERBOSE: application retrification failed: " + webapp.name + " (the application war file could not be found)");
+        }
+        return false;
+        
+      } else {
+        
+        final File webappRetroFile;
+        
+        if (webapp.retroWar != null) {
+          webappRetroFile = webapp.retroWar;
+        } else {
+          webappRetroFile = new File(webapp.war.getAbsolutePath() + ".retro");
+        }
+        
+        
+        if (webappRetroFile.exists()) {
+          // delete the existing .war.retro file before retrifying the actual (alive) .war file
+          if (!webappRetroFile.delete()) {
+            // failure
+            logStream.println("WARNING: failed to delete the existing retrified application by the file " + webappRetroFile + ", will try to overwrite it");
+          }
+        }
+        
+        if (retroStore != null) {
+          return retrifyIntoStore(webapp, webappRetroFile);
+        }
+        
+        if (webapp.war.renameTo(webappRetroFile)) {
+          // success
+          if (verbose) {
+            logStream.println("VERBOSE: application retrification succeeded: " + webapp.name);
+          }
+          
+          return true;
+        } else {
+          // failure
+          logStream.println("ERROR: application retrification failed: " + webapp.name + " (failed to rename the file " + webapp.war + " to " + webappRetroFile + ")");
+        }
+        
+        return false;
+      }
+    }
+  }
+  
+  /**
+   * Stores the war into the {@link #retroStore} leaving the manifest as the .war.retro file, and deletes the war
+   *
+   * @param webapp
+   * @param webappRetroFile the manifest file
+   * @return
+   */
+  private boolean retrifyIntoStore(Webapp webapp, File webappRetroFile) {
+    final long size = webapp.war.length();
+    final long written;
+    try {
+      written = retroStore.store(webapp.war, webappRetroFile);
+    } catch (IOException e) {
+      logStream.println("ERROR: application retrification failed: " + webapp.name + " (failed to store the file " + webapp.war + " into " + retroStore.getStoreDir() + ")");
+      e.printStackTrace(logStream);
+      return false;
+    }
+    
+    if (webapp.war.delete()) {
+      // success
+      if (verbose) {
+        logStream.println("VERBOSE: application retrification succeeded: " + webapp.name + " (stored " + written + " new bytes of " + size + ")");
+      }
+      return true;
+    } else {
+      // failure
+      logStream.println("ERROR: application retrification failed: " + webapp.name + " (failed to delete the file " + webapp.war + ")");
+      if (!webappRetroFile.delete()) {
+        logStream.println("WARNING: failed to delete the manifest " + webappRetroFile + " of the application not retrified");
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * Deletes the blobs of the {@link #retroStore} not referenced by the .war.retro manifests of the webapps anymore
+   *
+   * @param webapps
+   */
+  private void collectRetroStoreGarbage(Collection<Webapp> webapps) {
+    final List<File> manifests = new ArrayList<>();
+    for (Webapp webapp : webapps) {
+      if (webapp.retroWar != null && RetroStore.isManifest(webapp.retroWar)) {
+        manifests.add(webapp.retroWar);
+      }
+    }
+    try {
+      final long freed = retroStore.collectGarbage(manifests);
+      if (verbose) {
+        logStream.println("VERBOSE: retro store garbage collection freed " + freed + " bytes");
+      }
+    } catch (IOException e) {
+      logStream.println("ERROR: retro store garbage collection failed");
+      e.printStackTrace(logStream);
+    }
+  }
+  
+  /**
+   * Revives (un-retrifies) particular webapp: renames the .war.retro file back to the .war file
+   * (or restores the war from the {@link RetroStore}, if the .war.retro file is a manifest), for the tomcat to deploy it again.
+   * The webapp is marked as accessed at the revival time, and the war file as modified, so it is not retrified again straight away.
+   * <br/>
+   * May be invoked concurrently with the runs.
+   *
+   * @param webapp NotNull
+   * @return whether succeeded
+   */
+  public boolean revive(Webapp webapp) {
+    if (webapp.retroWar == null || !webapp.retroWar.exists()) {
+      if (verbose) {
+        logStream.println("VERBOSE: application revival failed: " + webapp.name + " (the retrified application war file could not be found)");
+      }
+      return false;
+    }
+    
+    final String retroWarName = webapp.retroWar.getName();
+    final File war = webapp.war != null ? webapp.war
+            : new File(webapp.retroWar.getParentFile(), retroWarName.substring(0, retroWarName.length() - ".retro".length()));
+    if (war.exists()) {
+      // already revived
+      return false;
+    }
+    
+    final long now = System.currentTimeMillis();
+    if (RetroStore.isManifest(webapp.retroWar)) {
+      try {
+        RetroStore.restore(webapp.retroWar, war);
+      } catch (IOException e) {
+        logStream.println("ERROR: application revival failed: " + webapp.name + " (failed to restore the file " + war + " from the manifest " + webapp.retroWar + ")");
+        e.printStackTrace(logStream);
+        return false;
+      }
+      if (!webapp.retroWar.delete()) {
+        logStream.println("WARNING: failed to delete the manifest " + webapp.retroWar + " of the application revived");
+      }
+      pendingRevivals.merge(webapp.name, now, Math::max);
+      if (verbose) {
+        logStream.println("VERBOSE: application revival succeeded: " + webapp.name + " (restored from the retro store)");
+      }
+      return true;
+    }
+    
+    if (webapp.retroWar.renameTo(war)) {
+      // success
+      if (!war.setLastModified(now)) {
+        logStream.println("WARNING: failed to update the modification time of the revived application war file " + war);
+      }
+      pendingRevivals.merge(webapp.name, now, Math::max);
+      if (verbose) {
+        logStream.println("VERBOSE: application revival succeeded: " + webapp.name);
+      }
+      return true;
+    } else {
+      // failure
+      logStream.println("ERROR: application revival failed: " + webapp.name + " (failed to rename the file " + webapp.retroWar + " to " + war + ")");
+      return false;
+    }
+  }
+  
+  /**
+   * {@link #revive(Webapp) Revives} particular webapp and persists the revival into the state at once,
+   * rather than leaving it for the next run to apply. Intended for a single manual revival with no runs to follow
+   *
+   * @param webapp NotNull
+   * @return whether succeeded
+   */
+  public synchronized boolean restore(Webapp webapp) {
+    if (!revive(webapp)) {
+      return false;
+    }
+    final State state = getState();
+    applyRevivals(state);
+    serializeState(state);
+    return true;
+  }
+  
+  protected boolean ignoredApp(String webappName) {
+    RetrificationPolicy.Rule rule = ignorePolicy.resolve(webappName);
+    return rule != null && rule.ignore;
+  }
+  
+  /**
+   * Deploy timestamp is the latest timestamp over the file's creation, access and modification timestamps
+   *
+   * @param attrs NotNull the webapp war file attributes
+   * @return
+   */
+  // TODO really need to check access timestamp or maybe enough with create and modify timestamps?
+  private static long getDeployTime(BasicFileAttributes attrs) {
+    long created = attrs.creationTime().toMillis();
+    long accessed = attrs.lastAccessTime().toMillis();
+    long modified = attrs.lastModifiedTime().toMillis();
+    return Math.max(Math.max(created, accessed), modified);
+  }
+  
+  /**
+   * Processes the access log files from the newest to the oldest one, each file backwards from its end,
+   * and stops as soon as the latest access of every candidate webapp is known for sure,
+   * that is when either a candidate has been met in the run, or its latest access in the state is newer than
+   * any of the records left (which are bounded by the files' last modified timestamps).
+   * Each file is read from its end down to the position processed before, then the range left unread by the previous runs.
+   * The lines not read (in the files left, or below the last line read) are recorded unprocessed in the checkpoints,
+   * for a later run to catch up with.
+   * <br/>
+   * The latest accesses of the non-candidate webapps may remain incomplete until then.
+   *
+   * @param accessLogs
+   * @param state
+   * @param accessLogCheckpoints the map to put the file checkpoints after the processing into
+   * @param resolver
+   * @param candidates the names of the webapps whose latest access matter
+   */
+  private void ingestAccessLogsNewestFirst(Collection<File> accessLogs, State state,
+                                           Map<String, AccessLogCheckpoint> accessLogCheckpoints, ContextResolver resolver,
+                                           Set<String> candidates) {
+    
+    final List<AccessLogFile> files = new ArrayList<>();
+    for (File accessLog : accessLogs) {
+      try {
+        files.add(new AccessLogFile(accessLog));
+      } catch (IOException e) {
+        // log and continue
+        e.printStackTrace(logStream);
+      }
+    }
+    files.sort(Comparator.comparingLong((AccessLogFile file) -> file.sortKey)
+            .thenComparingLong(file -> file.attrs.lastModifiedTime().toMillis())
+            .reversed());
+    
+    // max last modified timestamp over the files from the index to the end
+    final long[] maxModified = new long[files.size()];
+    for (int i = files.size() - 1; i >= 0; i--) {
+      long modified = files.get(i).attrs.lastModifiedTime().toMillis();
+      maxModified[i] = i == files.size() - 1 ? modified : Math.max(modified, maxModified[i + 1]);
+    }
+    
+    final Set<String> unresolved = new HashSet<>(candidates);
+    
+    for (int i = 0; i < files.size(); i++) {
+      if (Thread.currentThread().isInterrupted()) {
+        logInterruptedIngestion();
+        break;
+      }
+      final AccessLogFile file = files.get(i);
+      final String accessLogFilename = file.file.getName();
+      final Path accessLogPath = file.file.toPath();
+      
+      // no record left can be newer than this
+      final long recordsBound = maxModified[i];
+      unresolved.removeIf(name -> {
+        Long latestAccess = state.latestAccessMap.get(name);
+        return latestAccess != null && latestAccess >= recordsBound;
+      });
+      
+      try {
+        final AccessLogCheckpoint checkpoint = AccessLogCheckpoint.identify(accessLogPath);
+        final long offset = getAccessLogOffset(state, accessLogFilename, accessLogPath, checkpoint);
+        checkpoint.offset = offset;
+        
+        if (unresolved.isEmpty()) {
+          runMetrics.accessLogsSkipped++;
+          if (verbose) {
+            logStream.println("VERBOSE: access log file skipped as no newer accesses may be found there: " + accessLogFilename);
+          }
+          // the new lines remain unprocessed
+          accessLogCheckpoints.put(accessLogFilename, checkpoint);
+          continue;
+        }
+        
+        final boolean unread = offset < checkpoint.size || checkpoint.hasUnread();
+        // looked up only if there are lines to read, for the runs with nothing to ingest not to read the server.xml
+        final AccessLogParser parser = unread ? tomcat.getAccessLogParser(file.file) : null;
+        
+        final long fileStart = System.nanoTime();
+        final LatestAccessScanner latestAccessScanner = new LatestAccessScanner(parser, resolver, unresolved);
+        final RunMetrics.AccessLogMetrics metrics = new RunMetrics.AccessLogMetrics();
+        
+        if (unread) {
+          // the requests read are not counted, so the request counts are only complete from now on
+          state.accessHistogram.coveredSince = System.currentTimeMillis();
+          state.accessHistogram.modified = true;
+          try (FileChannel channel = FileChannel.open(accessLogPath, StandardOpenOption.READ)) {
+            final long end = offset < checkpoint.size ? AccessLogReader.lastLineEnd(channel, offset, checkpoint.size) : offset;
+            final long newLinesRead = readLinesBackwards(channel, offset, end, latestAccessScanner, unresolved);
+            metrics.bytes = end - newLinesRead;
+            if (newLinesRead == offset) {
+              // the new lines are read entirely, continue with the older ones left unread before
+              if (checkpoint.hasUnread()) {
+                final long unreadRead = readLinesBackwards(channel, checkpoint.unreadStart, checkpoint.unreadEnd, latestAccessScanner, unresolved);
+                metrics.bytes += checkpoint.unreadEnd - unreadRead;
+                checkpoint.unreadEnd = unreadRead;
+              }
+            } else {
+              // the new lines below the last one read are left unread, joined with the range left before
+              // (the lines read in between get read again by the catch up, which is harmless as they have not been counted)
+              if (!checkpoint.hasUnread()) {
+                checkpoint.unreadStart = offset;
+              }
+              checkpoint.unreadEnd = newLinesRead;
+            }
+            if (!checkpoint.hasUnread()) {
+              checkpoint.unreadStart = checkpoint.unreadEnd = 0;
+            }
+            checkpoint.offset = end;
+          }
+        }
+        
+        latestAccessScanner.latestAccessMap.forEach((name, latestAccess) -> mergeLatestAccess(state.latestAccessMap, name, latestAccess));
+        
+        accessLogCheckpoints.put(accessLogFilename, checkpoint);
+        recordAccessLogMetrics(accessLogFilename, metrics, latestAccessScanner, checkpoint, fileStart);
+      } catch (IOException | RuntimeException e) {
+        // log and continue
+        e.printStackTrace(logStream);
+      }
+    }
+  }
+  
+  /**
+   * Reads the lines of the range backwards until the webapps are all met
+   *
+   * @return the position down to which the lines have been read: the range start if read entirely
+   */
+  private static long readLinesBackwards(FileChannel channel, long from, long to, LatestAccessScanner latestAccessScanner,
+                                         Set<String> unresolved) throws IOException {
+    final ReverseLineReader reader = new ReverseLineReader(channel, from, to);
+    ByteCharSequence line;
+    while (!unresolved.isEmpty() && (line = reader.previousLine()) != null) {
+      latestAccessScanner.line(line, reader.getLineOffset());
+    }
+    return reader.getLineOffset() == -1 ? to : reader.getLineOffset();
+  }
+  
+  private static final Pattern ACCESS_LOG_FILENAME_DATE_PATTERN = Pattern.compile("(\\d{4})-(\\d{2})-(\\d{2})");
+  
+  /**
+   * Access log file along with its attributes
+   */
+  private static class AccessLogFile {
+    final File file;
+    final BasicFileAttributes attrs;
+    /**
+     * The day of the date embedded into the filename (as by the tomcat access log rotation), or the last modified day
+     */
+    final long sortKey;
+    
+    AccessLogFile(File file) throws IOException {
+      this.file = file;
+      this.attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      
+      long day = Math.floorDiv(attrs.lastModifiedTime().toMillis(), 24 * 60 * 60 * 1000L);
+      Matcher m = ACCESS_LOG_FILENAME_DATE_PATTERN.matcher(file.getName());
+      if (m.find()) {
+        try {
+          day = LocalDate.of(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3))).toEpochDay();
+        } catch (DateTimeException e) {
+          // not a date
+        }
+      }
+      this.sortKey = day;
+    }
+  }
+  
+  /**
+   * Processes the access log files, each by a separate task, at most {@link #ingestParallelism} files at a time.
+   * Uses virtual threads if supported by the runtime
+   *
+   * @param accessLogs
+   * @param state
+   * @param accessLogCheckpoints thread-safe
+   * @param resolver
+   * @param scanner nullable
+   */
+  private void ingestAccessLogsConcurrently(Collection<File> accessLogs, State state,
+                                            Map<String, AccessLogCheckpoint> accessLogCheckpoints, ContextResolver resolver,
+                                            ParallelAccessLogScanner scanner) {
+    
+    ExecutorService executor = newVirtualThreadExecutor();
+    final Semaphore permits;
+    if (executor != null) {
+      permits = new Semaphore(ingestParallelism);
+    } else {
+      executor = Executors.newFixedThreadPool(Math.min(ingestParallelism, accessLogs.size()));
+      permits = null;
+    }
+    
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (File accessLog : accessLogs) {
+        futures.add(executor.submit(() -> {
+          try {
+            if (permits != null) {
+              permits.acquire();
+            }
+            try {
+              ingestAccessLog(accessLog, state, accessLogCheckpoints, resolver, scanner);
+            } finally {
+              if (permits != null) {
+                permits.release();
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (RuntimeException e) {
+            // log and continue with the other files
+            e.printStackTrace(logStream);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // impossible: the task catches everything
+          e.printStackTrace(logStream);
+        }
+      }
+    } catch (InterruptedException e) {
+      logInterruptedIngestion();
+      // the files in progress are interrupted and awaited, for the state not to be modified while being saved
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e2) {
+        // interrupted again: give up awaiting
+      }
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  private void logInterruptedIngestion() {
+    logStream.println("WARNING: ingestion interrupted, the rest of the access log files are left for the next run");
+  }
+  
+  /**
+   * @return new virtual-thread-per-task executor or {@code null} if the runtime does not support virtual threads
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // not supported
+      return null;
+    }
+  }
+  
+  /**
+   * Processes the new lines of the access log file, merging the latest accesses into the state.
+   * Safe to invoke concurrently for different files
+   *
+   * @param accessLog
+   * @param state
+   * @param accessLogCheckpoints the map to put the file checkpoint after the processing into
+   * @param resolver
+   * @param scanner nullable
+   */
+  private void ingestAccessLog(File accessLog, State state,
+                               Map<String, AccessLogCheckpoint> accessLogCheckpoints, ContextResolver resolver,
+                               ParallelAccessLogScanner scanner) {
+    final String accessLogFilename = accessLog.getName();
+    final Path accessLogPath = accessLog.toPath();
+    
+    try {
+      final long fileStart = System.nanoTime();
+      final AccessLogCheckpoint checkpoint = AccessLogCheckpoint.identify(accessLogPath);
+      final long offset = getAccessLogOffset(state, accessLogFilename, accessLogPath, checkpoint);
+      // looked up only if there are new lines, for the runs with nothing to ingest not to read the server.xml
+      final AccessLogParser parser = offset < checkpoint.size || checkpoint.hasUnread() ? tomcat.getAccessLogParser(accessLog) : null;
+      final RunMetrics.AccessLogMetrics metrics = new RunMetrics.AccessLogMetrics();
+      
+      // fold the records into the map on the fly, with no buffering
+      LatestAccessScanner latestAccessScanner = new LatestAccessScanner(parser, resolver);
+      
+      if (checkpoint.hasUnread()) {
+        // catch up with the lines left unread by the newest first processing
+        try (FileChannel channel = FileChannel.open(accessLogPath, StandardOpenOption.READ)) {
+          AccessLogReader.readLines(channel, checkpoint.unreadStart, checkpoint.unreadEnd, latestAccessScanner);
+        }
+        metrics.bytes = checkpoint.unreadEnd - checkpoint.unreadStart;
+        checkpoint.unreadStart = checkpoint.unreadEnd = 0;
+      }
+      
+      if (offset < checkpoint.size) {
+        try (FileChannel channel = FileChannel.open(accessLogPath, StandardOpenOption.READ)) {
+          if (scanner != null && checkpoint.size - offset > scanner.getChunkSize()) {
+            // large amount of new lines: scan in parallel
+            ParallelAccessLogScanner.Result<LatestAccessScanner> result = scanner.scan(channel, offset, checkpoint.size,
+                    () -> new LatestAccessScanner(parser, resolver), LatestAccessScanner::merge);
+            checkpoint.offset = result.position;
+            if (result.handler != null) {
+              latestAccessScanner = latestAccessScanner.merge(result.handler);
+            }
+          } else {
+            checkpoint.offset = AccessLogReader.readLines(channel, offset, checkpoint.size, latestAccessScanner);
+          }
+        }
+      } else {
+        checkpoint.offset = offset;
+      }
+      metrics.bytes += checkpoint.offset - offset;
+      
+      // merge a new map into the state's one
+      latestAccessScanner.latestAccessMap.forEach((name, latestAccess) -> mergeLatestAccess(state.latestAccessMap, name, latestAccess));
+      synchronized (state.accessHistogram) {
+        state.accessHistogram.merge(latestAccessScanner.histogram);
+      }
+      
+      accessLogCheckpoints.put(accessLogFilename, checkpoint);
+      recordAccessLogMetrics(accessLogFilename, metrics, latestAccessScanner, checkpoint, fileStart);
+    } catch (IOException | RuntimeException e) {
+      // log and continue
+      e.printStackTrace(logStream);
+    }
+  }
+  
+  /**
+   * Records the metrics of the access log file ingested and reports its malformed lines
+   */
+  private void recordAccessLogMetrics(String accessLogFilename, RunMetrics.AccessLogMetrics metrics, LatestAccessScanner latestAccessScanner,
+                                      AccessLogCheckpoint checkpoint, long fileStart) {
+    metrics.lines = latestAccessScanner.lines;
+    metrics.parseFailures = latestAccessScanner.parseFailures.getCount();
+    metrics.backlogBytes = checkpoint.size - checkpoint.offset + checkpoint.unreadEnd - checkpoint.unreadStart;
+    metrics.durationNanos = System.nanoTime() - fileStart;
+    runMetrics.accessLogs.put(accessLogFilename, metrics);
+    latestAccessScanner.parseFailures.report(logStream, accessLogFilename);
+  }
+  
+  /**
+   * Finds the position up to which the access log file had already been processed,
+   * detecting the file truncation, rotation (a new file under the same name) and rename
+   *
+   * @param state
+   * @param accessLogFilename
+   * @param accessLogPath
+   * @param current the checkpoint of the current state of the file, to carry the range left unread over into
+   * @return position to continue the file processing from
+   * @throws IOException
+   */
+  private long getAccessLogOffset(State state, String accessLogFilename, Path accessLogPath, AccessLogCheckpoint current) throws IOException {
+    
+    AccessLogCheckpoint previous = state.accessLogCheckpoints.get(accessLogFilename);
+    
+    if (previous != null && !previous.sameFile(accessLogPath, current)) {
+      if (verbose) {
+        logStream.println("VERBOSE: access log file replaced, will be processed from the start: " + accessLogFilename);
+      }
+      previous = null;
+    }
+    
+    if (previous == null) {
+      // lookup the file by identity under another name
+      for (Map.Entry<String, AccessLogCheckpoint> entry : state.accessLogCheckpoints.entrySet()) {
+        AccessLogCheckpoint checkpoint = entry.getValue();
+        if (!entry.getKey().equals(accessLogFilename) && checkpoint.identifiable() && checkpoint.sameFile(accessLogPath, current)) {
+          if (verbose) {
+            logStream.println("VERBOSE: access log file renamed: " + entry.getKey() + " -> " + accessLogFilename);
+          }
+          previous = checkpoint;
+          break;
+        }
+      }
+    }
+    
+    if (previous == null) {
+      if (state.accessLogsProcessedLegacy.contains(accessLogFilename)) {
+        // processed entirely by the previous version
+        return current.size;
+      }
+      return 0;
+    }
+    
+    if (previous.offset > current.size) {
+      if (verbose) {
+        logStream.println("VERBOSE: access log file truncated, will be processed from the start: " + accessLogFilename);
+      }
+      return 0;
+    }
+    
+    current.unreadStart = previous.unreadStart;
+    current.unreadEnd = previous.unreadEnd;
+    return previous.offset;
+  }
+  
+  /**
+   * Atomic for the concurrent maps
+   */
+  private static void mergeLatestAccess(Map<String, Long> map, String key, Long value) {
+    if (map != null && value != null) {
+      map.merge(key, value, Math::max);
+    }
+  }
+  
+  /**
+   * Scans the access log lines into the latest access map of its own, to be used by a single thread
+   */
+  private class LatestAccessScanner implements AccessLogReader.LineHandler, AccessLogParser.FieldSink {
+    /**
+     * Key: webapp name; value: latest access timestamp
+     */
+    final LatestAccessMap latestAccessMap = new LatestAccessMap();
+    
+    /**
+     * Nullable: the request counts, not collected by the scan stopping as soon as the webapps are met,
+     * as the requests not read would not be counted
+     */
+    final AccessHistogram histogram;
+    
+    /**
+     * Nullable if no lines are to be scanned
+     */
+    private final AccessLogParser parser;
+    
+    private final ContextResolver resolver;
+    
+    /**
+     * Nullable: the names of the webapps not met yet, to remove the met ones from
+     */
+    private final Set<String> unresolved;
+    
+    private long dateAndTime;
+    
+    /**
+     * Number of the lines scanned
+     */
+    long lines;
+    
+    final ParseFailureSummary parseFailures = new ParseFailureSummary();
+    
+    LatestAccessScanner(AccessLogParser parser, ContextResolver resolver) {
+      this(parser, resolver, null);
+    }
+    
+    LatestAccessScanner(AccessLogParser parser, ContextResolver resolver, Set<String> unresolved) {
+      this.parser = parser;
+      this.resolver = resolver;
+      this.unresolved = unresolved;
+      this.histogram = unresolved == null ? new AccessHistogram() : null;
+    }
+    
+    @Override
+    public void line(ByteCharSequence line, long offset) {
+      lines++;
+      if (!parser.parse(line, this)) {
+        // summarized once the file is scanned
+        parseFailures.add(line, offset);
+      }
+    }
+    
+    @Override
+    public void dateAndTime(long dateAndTime) {
+      this.dateAndTime = dateAndTime;
+    }
+    
+    @Override
+    public void url(CharSequence s, int start, int end) {
+      final String webappName = resolver.resolve(s, start, end);
+      final String name;
+      if (webappName != null) {
+        name = latestAccessMap.putMax(webappName, dateAndTime);
+      } else {
+        // no webapp serves the url, record by the first path segment as the webapp may be deployed later
+        final int nameStart = getContextNameStart(s, start, end);
+        name = latestAccessMap.putMax(s, nameStart, getContextNameEnd(s, nameStart, end), dateAndTime);
+      }
+      if (unresolved != null) {
+        unresolved.remove(name);
+      }
+      if (histogram != null) {
+        histogram.add(name, dateAndTime);
+      }
+    }
+    
+    LatestAccessScanner merge(LatestAccessScanner other) {
+      latestAccessMap.merge(other.latestAccessMap);
+      if (histogram != null) {
+        histogram.merge(other.histogram);
+      }
+      lines += other.lines;
+      parseFailures.merge(other.parseFailures);
+      return this;
+    }
+  }
+  
+  /**
+   * @param url
+   * @param start inclusive
+   * @param end exclusive
+   * @return application context path without leading '/': the first path segment of the url
+   */
+  private static String getContextName(CharSequence url, int start, int end) {
+    start = getContextNameStart(url, start, end);
+    return url.subSequence(start, getContextNameEnd(url, start, end)).toString();
+  }
+  
+  /**
+   * @return the index of the first char after the leading slashes of the url
+   */
+  private static int getContextNameStart(CharSequence url, int start, int end) {
+    while (start < end && url.charAt(start) == '/') {
+      start++;
+    }
+    return start;
+  }
+  
+  /**
+   * @param start the context name start
+   * @return the index of the first '/' or '?' after the start, or the end
+   */
+  private static int getContextNameEnd(CharSequence url, int start, int end) {
+    int nameEnd = start;
+    while (nameEnd < end && url.charAt(nameEnd) != '/' && url.charAt(nameEnd) != '?') {
+      nameEnd++;
+    }
+    return nameEnd;
+  }
+  
+  /**
+   * Folds the records into the latest access map, for the parallel streams as well
+   *
+   * @return Key: application context path without leading '/'; value: latest access timestamp
+   * @see AccessLogReader#stream(Path)
+   */
+  public static Collector<AccessLogReader.Record, ?, Map<String, Long>> toLatestAccessMap() {
+    return Collector.of(
+            HashMap::new,
+            (map, record) -> mergeLatestAccess(map, getContextName(record.request.url, 0, record.request.url.length()), record.dateAndTime),
+            (map, other) -> {
+              for (Map.Entry<String, Long> entry : other.entrySet()) {
+                mergeLatestAccess(map, entry.getKey(), entry.getValue());
+              }
+              return map;
+            },
+            Collector.Characteristics.UNORDERED);
+  }
+
+  
+  private void serializeState(State state) {
+    try {
+      stateStore.save(state);
+    } catch (IOException e) {
+      e.printStackTrace(logStream);
+      // the histogram would count the requests the checkpoints of which are not saved, and count them again on the next run
+      return;
+    }
+    // saved after the state: on a failure in between the requests are undercounted rather than counted twice
+    final AccessHistogram histogram = state.accessHistogram;
+    histogram.downsample(System.currentTimeMillis());
+    if (histogram.modified) {
+      try {
+        accessHistogramStore.save(histogram);
+      } catch (IOException e) {
+        e.printStackTrace(logStream);
+      }
+    }
+  }
+  
+  /**
+   * Completes the current run metrics and writes the metrics of the latest runs into the retrificator root
+   */
+  private void exportRunMetrics(State state) {
+    final RunMetrics metrics = runMetrics;
+    metrics.complete();
+    metrics.stateEntries = state.latestAccessMap.size();
+    metrics.stateBytes = stateStore.getSnapshotFile().length() + stateStore.getJournalFile().length();
+    latestRunMetrics.put(metrics.run, metrics);
+    try {
+      metricsExporter.export(latestRunMetrics.values());
+    } catch (IOException e) {
+      logStream.println("WARNING: failed to write the run metrics: " + e);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package org.jepria.retrificator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Runs the {@link Retrificator} periodically within a single long-lived process, keeping its state in memory:
+ * the access logs are {@link Retrificator#ingest() ingested} on a short interval and the webapps are
+ * {@link Retrificator#retrify(Retrificator.Strategy) retrified} on a longer one.
+ * <br/>
+ * The runs never overlap, except for the ingest runs taking place while a paced retrification awaits the next batch;
+ * a failed run is logged and does not affect the next ones.
+ */
+public class RetrificatorDaemon implements AutoCloseable {
+
+  /**
+   * Max time for the current run to complete on {@link #close()}, before it is interrupted
+   */
+  public static final long CLOSE_GRACE_MILLIS = 30 * 1000L;
+
+  private final Retrificator retrificator;
+  private final Retrificator.Strategy strategy;
+  private final long ingestIntervalMillis;
+  private final long retrifyIntervalMillis;
+
+  private final ScheduledExecutorService scheduler;
+  /**
+   * Whether the scheduler is created by and dedicated to this daemon
+   */
+  private final boolean ownScheduler;
+  private final long initialDelayMillis;
+
+  private final List<ScheduledFuture<?>> runs = new ArrayList<>();
+
+  /**
+   * Guards the {@link #closing} and the {@link #runners}, not the daemon monitor, as held by the {@link #close()} awaiting the runs
+   */
+  private final Object runLock = new Object();
+  private boolean closing;
+  /**
+   * The threads running the runs at the moment
+   */
+  private final Set<Thread> runners = new HashSet<>();
+
+  private final CountDownLatch terminated = new CountDownLatch(1);
+
+  /**
+   * @param retrificator NotNull
+   * @param strategy NotNull
+   * @param ingestIntervalMillis delay between the end of an ingestion and the start of the next one
+   * @param retrifyIntervalMillis delay between the end of a retrification and the start of the next one
+   */
+  public RetrificatorDaemon(Retrificator retrificator, Retrificator.Strategy strategy, long ingestIntervalMillis, long retrifyIntervalMillis) {
+    // a thread for the retrifications and one for the ingestions, to go on while a paced retrification waits
+    this(retrificator, strategy, ingestIntervalMillis, retrifyIntervalMillis, Executors.newScheduledThreadPool(2, runnable -> {
+      Thread thread = new Thread(runnable, "retrificator-daemon");
+      thread.setDaemon(true);
+      return thread;
+    }), true, 0);
+  }
+
+  /**
+   * Creates the daemon running on the scheduler shared with other daemons
+   *
+   * @param retrificator NotNull
+   * @param strategy NotNull
+   * @param ingestIntervalMillis delay between the end of an ingestion and the start of the next one
+   * @param retrifyIntervalMillis delay between the end of a retrification and the start of the next one
+   * @param scheduler NotNull the shared scheduler, not shut down by the daemon
+   * @param initialDelayMillis delay of the first run, to stagger the runs of the daemons
+   */
+  public RetrificatorDaemon(Retrificator retrificator, Retrificator.Strategy strategy, long ingestIntervalMillis, long retrifyIntervalMillis,
+                            ScheduledExecutorService scheduler, long initialDelayMillis) {
+    this(retrificator, strategy, ingestIntervalMillis, retrifyIntervalMillis, scheduler, false, initialDelayMillis);
+  }
+
+  private RetrificatorDaemon(Retrificator retrificator, Retrificator.Strategy strategy, long ingestIntervalMillis, long retrifyIntervalMillis,
+                             ScheduledExecutorService scheduler, boolean ownScheduler, long initialDelayMillis) {
+    if (ingestIntervalMillis <= 0) {
+      throw new IllegalArgumentException("Illegal ingest interval value '" + ingestIntervalMillis + "': positive integer allowed");
+    }
+    if (retrifyIntervalMillis <= 0) {
+      throw new IllegalArgumentException("Illegal retrify interval value '" + retrifyIntervalMillis + "': positive integer allowed");
+    }
+    this.retrificator = retrificator;
+    this.strategy = strategy;
+    this.ingestIntervalMillis = ingestIntervalMillis;
+    this.retrifyIntervalMillis = retrifyIntervalMillis;
+    this.scheduler = scheduler;
+    this.ownScheduler = ownScheduler;
+    this.initialDelayMillis = initialDelayMillis;
+  }
+
+  /**
+   * Starts with the retrification after the initial delay
+   */
+  public synchronized void start() {
+    if (retrificator.isVerbose()) {
+      retrificator.getLogStream().println("VERBOSE: daemon started at " + new Date() + ": ingest every " + ingestIntervalMillis
+              + " ms, retrify every " + retrifyIntervalMillis + " ms");
+    }
+    runs.add(scheduler.scheduleWithFixedDelay(() -> run(() -> retrificator.retrify(strategy)),
+            initialDelayMillis, retrifyIntervalMillis, TimeUnit.MILLISECONDS));
+    runs.add(scheduler.scheduleWithFixedDelay(() -> run(retrificator::ingest),
+            initialDelayMillis + ingestIntervalMillis, ingestIntervalMillis, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Runs with no exception thrown, for the next runs not to be cancelled. Does not run once the daemon is closing
+   * (the run may have been taken by the scheduler before cancelled)
+   */
+  private void run(Runnable runnable) {
+    synchronized (runLock) {
+      if (closing) {
+        return;
+      }
+      runners.add(Thread.currentThread());
+    }
+    try {
+      runnable.run();
+    } catch (RuntimeException e) {
+      // log and continue
+      e.printStackTrace(retrificator.getLogStream());
+    } finally {
+      synchronized (runLock) {
+        runners.remove(Thread.currentThread());
+        runLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Blocks until the daemon is {@link #close() closed}
+   *
+   * @throws InterruptedException
+   */
+  public void awaitTermination() throws InterruptedException {
+    terminated.await();
+  }
+
+  /**
+   * Stops scheduling the runs and waits for the current run (if any) to complete, so the state is persisted.
+   * A run not complete within the {@link #CLOSE_GRACE_MILLIS} (such as a paced retrification) is interrupted:
+   * it stops before the next batch, persisting the state
+   */
+  @Override
+  public void close() {
+    close(System.currentTimeMillis() + CLOSE_GRACE_MILLIS);
+  }
+
+  /**
+   * Stops scheduling the runs, with no waiting, for many daemons to be stopped at once before awaiting each
+   */
+  synchronized void stopScheduling() {
+    synchronized (runLock) {
+      closing = true;
+    }
+    for (ScheduledFuture<?> run : runs) {
+      run.cancel(false);
+    }
+    if (ownScheduler) {
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * @param graceDeadline the time to interrupt the current run at, if not complete by then
+   * @see #close()
+   */
+  synchronized void close(long graceDeadline) {
+    try {
+      stopScheduling();
+      awaitRuns(graceDeadline);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (retrificator.isVerbose()) {
+        retrificator.getLogStream().println("VERBOSE: daemon stopped at " + new Date());
+      }
+      terminated.countDown();
+    }
+  }
+
+  /**
+   * Waits for the current runs to complete, interrupting them after the deadline
+   */
+  private void awaitRuns(long deadline) throws InterruptedException {
+    synchronized (runLock) {
+      long now;
+      while (!runners.isEmpty() && (now = System.currentTimeMillis()) < deadline) {
+        runLock.wait(deadline - now);
+      }
+      if (!runners.isEmpty()) {
+        retrificator.getLogStream().println("WARNING: daemon interrupting the current run, not complete within the grace period");
+        for (Thread runner : runners) {
+          runner.interrupt();
+        }
+        while (!runners.isEmpty()) {
+          runLock.wait(60 * 1000L);
+          if (!runners.isEmpty()) {
+            retrificator.getLogStream().println("WARNING: daemon still waiting for the current run to complete");
+          }
+        }
+      }
+    }
+  }
+}
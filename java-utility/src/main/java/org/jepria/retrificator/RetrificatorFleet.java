@@ -0,0 +1,348 @@
+package org.jepria.retrificator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Manages many tomcat instances from a single process: each instance has a {@link Retrificator} of its own
+ * (with its own state, log, ignored apps and policy in its own retrificator root), all of them run on a bounded worker pool.
+ * <br/>
+ * The instances are isolated: a failure of an instance (either on the setup or on a run) is logged
+ * and does not affect the others.
+ */
+public class RetrificatorFleet implements AutoCloseable {
+
+  /**
+   * Configuration, deserialized from json
+   */
+  public static class Config {
+    /**
+     * Nullable: max number of the instances to run concurrently. Default 1
+     */
+    public Integer threads;
+    /**
+     * NotNull
+     */
+    public List<InstanceConfig> instances;
+  }
+
+  /**
+   * Configuration of a single instance, deserialized from json
+   */
+  public static class InstanceConfig {
+    /**
+     * NotNull: tomcat root (home or base) directory
+     */
+    public String tomcatRoot;
+    /**
+     * NotNull: retrificator root directory of the instance
+     */
+    public String retrificatorRoot;
+    /**
+     * Nullable: latest access age in minutes, for the apps to be retrified. Default 14400 (10 days)
+     */
+    public Integer accessAge;
+    /**
+     * Nullable: latest deploy age in minutes, for the apps to be retrified. Default 43200 (30 days)
+     */
+    public Integer deployAge;
+    /**
+     * Nullable: tomcat access log valve pattern of the access logs. Default: discovered from the conf/server.xml
+     */
+    public String accessLogPattern;
+    /**
+     * Nullable: max total weight of the live webapps, in webapps, or in megabytes for the size weights. Default: no capacity bound
+     */
+    public Long capacity;
+    /**
+     * Nullable: the weight of a webapp for the capacity: 'count', 'war-size' or 'deployed-size'. Default 'count'
+     */
+    public String capacityWeight;
+    /**
+     * Nullable: min number of requests within the window, for the apps requested fewer times to be retrified. Default: no minimum. Not applicable along with the newest first processing
+     */
+    public Long minRequests;
+    /**
+     * Nullable: the window of the min requests, in minutes. Default 10080 (7 days)
+     */
+    public Integer minRequestsWindow;
+    /**
+     * Nullable: whether to retrify the webapps into the deduplicated store in the retrificator root of the instance. Default false
+     */
+    public Boolean retroStore;
+
+    @Override
+    public String toString() {
+      return tomcatRoot;
+    }
+  }
+
+  /**
+   * Reads the configuration in json format, such as
+   * <pre>
+   * {
+   *   "threads": 4,
+   *   "instances": [
+   *     {"tomcatRoot": "/opt/tomcat/base1", "retrificatorRoot": "/opt/retrificator/base1", "accessAge": 14400, "deployAge": 43200, "capacity": 100},
+   *     {"tomcatRoot": "/opt/tomcat/base2", "retrificatorRoot": "/opt/retrificator/base2", "accessLogPattern": "combined", "retroStore": true}
+   *   ]
+   * }
+   * </pre>
+   *
+   * @param file NotNull
+   * @return
+   * @throws IllegalArgumentException if the configuration is invalid
+   */
+  public static Config readConfig(File file) {
+    final Config config;
+    try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+      config = new Gson().fromJson(reader, Config.class);
+    } catch (IOException | JsonParseException e) {
+      throw new IllegalArgumentException("Failed to read the fleet configuration " + file, e);
+    }
+    if (config == null || config.instances == null || config.instances.isEmpty()) {
+      throw new IllegalArgumentException("No instances configured in the fleet configuration " + file);
+    }
+    for (InstanceConfig instance : config.instances) {
+      if (instance.capacityWeight != null) {
+        CLI.parseCapacityWeight(instance.capacityWeight);
+      }
+    }
+    if (config.threads != null && config.threads <= 0) {
+      throw new IllegalArgumentException("Illegal threads value '" + config.threads + "' in the fleet configuration " + file + ": positive integer allowed");
+    }
+    for (InstanceConfig instance : config.instances) {
+      if (instance.tomcatRoot == null || instance.retrificatorRoot == null) {
+        throw new IllegalArgumentException("Both tomcatRoot and retrificatorRoot must be specified for each instance in the fleet configuration " + file);
+      }
+    }
+    return config;
+  }
+
+  private static class Instance {
+    final InstanceConfig config;
+    final TomcatImpl tomcat;
+    final Retrificator retrificator;
+    final Retrificator.Strategy strategy;
+
+    Instance(InstanceConfig config, TomcatImpl tomcat, Retrificator retrificator, Retrificator.Strategy strategy) {
+      this.config = config;
+      this.tomcat = tomcat;
+      this.retrificator = retrificator;
+      this.strategy = strategy;
+    }
+  }
+
+  private final List<Instance> instances = new ArrayList<>();
+  private final int threads;
+  private final PrintStream logStream;
+
+  private ScheduledExecutorService scheduler;
+  private final List<RetrificatorDaemon> daemons = new ArrayList<>();
+  /**
+   * Nullable: the scheduler of the revivers, separate for the revivals not to wait for the runs
+   */
+  private ScheduledExecutorService revivalScheduler;
+  private final List<RetrificatorReviver> revivers = new ArrayList<>();
+
+  private final CountDownLatch terminated = new CountDownLatch(1);
+
+  /**
+   * @param config NotNull
+   * @param watch whether to watch the tomcat directories for changes (for a long-lived process)
+   * @param verbose
+   * @param settings NotNull the settings common for the retrificators of all instances
+   * @param logStream NotNull the fleet-level log, the instances log into their own retrificator roots
+   */
+  public RetrificatorFleet(Config config, boolean watch, boolean verbose, Consumer<Retrificator> settings, PrintStream logStream) {
+    this.threads = config.threads == null ? 1 : config.threads;
+    this.logStream = logStream;
+
+    for (InstanceConfig instanceConfig : config.instances) {
+      try {
+        instances.add(createInstance(instanceConfig, watch, verbose, settings));
+      } catch (IOException | RuntimeException e) {
+        logStream.println("ERROR: fleet instance " + instanceConfig + " skipped as failed to set up:");
+        e.printStackTrace(logStream);
+      }
+    }
+  }
+
+  private static Instance createInstance(InstanceConfig config, boolean watch, boolean verbose, Consumer<Retrificator> settings) throws IOException {
+    final File tomcatRoot = new File(config.tomcatRoot);
+    final File retrificatorRoot = new File(config.retrificatorRoot);
+
+    final TomcatImpl tomcat = watch ? new WatchingTomcat(tomcatRoot) : new TomcatImpl(tomcatRoot);
+    tomcat.setAccessLogPattern(config.accessLogPattern);
+
+    Retrificator retrificator = new Retrificator(tomcat, new File(retrificatorRoot, "retrificator-state.json"),
+            verbose, new File(retrificatorRoot, "retrificator-log.txt"));
+    tomcat.setLogStream(retrificator.getLogStream());
+    retrificator.setIgnoreAppNameRegexps(CLI.readIgnoreApps(new File(retrificatorRoot, "ignore-apps.txt")));
+    if (Boolean.TRUE.equals(config.retroStore)) {
+      retrificator.setRetroStore(new RetroStore(new File(retrificatorRoot, "retro-store")));
+    }
+    settings.accept(retrificator);
+
+    Retrificator.StrategyBuilder strategyBuilder = Retrificator.Strategy.newBuilder()
+            .byAccessAge((config.accessAge == null ? 14400 : config.accessAge) * 60 * 1000L)
+            .byDeployAge((config.deployAge == null ? 43200 : config.deployAge) * 60 * 1000L)
+            .byPolicy(RetrificationPolicy.read(new File(retrificatorRoot, "retrification-policy.txt")));
+    if (config.capacity != null) {
+      Retrificator.CapacityWeight weight = config.capacityWeight == null ? Retrificator.CapacityWeight.COUNT : CLI.parseCapacityWeight(config.capacityWeight);
+      strategyBuilder.byCapacity(CLI.toCapacity(config.capacity, weight), weight);
+    }
+    if (config.minRequests != null) {
+      if (retrificator.isNewestFirst()) {
+        // the newest first processing leaves the requests uncounted, so the request counts are never complete
+        throw new IllegalStateException("The \"minRequests\" is not applicable along with the '--newest-first' option");
+      }
+      strategyBuilder.byMinRequests(config.minRequests, (config.minRequestsWindow == null ? 10080 : config.minRequestsWindow) * 60L * 1000);
+    }
+    Retrificator.Strategy strategy = strategyBuilder.create();
+
+    return new Instance(config, tomcat, retrificator, strategy);
+  }
+
+  /**
+   * Retrifies all instances once, concurrently on the bounded pool, and waits for the completion
+   *
+   * @return the number of the instances failed
+   * @throws InterruptedException
+   */
+  public int retrify() throws InterruptedException {
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (Instance instance : instances) {
+        futures.add(pool.submit(() -> {
+          instance.retrificator.warnUnboundWebapps();
+          instance.retrificator.retrify(instance.strategy);
+        }));
+      }
+      int failed = 0;
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          failed++;
+          logStream.println("ERROR: fleet instance " + instances.get(i).config + " failed:");
+          e.getCause().printStackTrace(logStream);
+        }
+      }
+      return failed;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Starts the {@link RetrificatorDaemon daemons} of all instances on the shared bounded pool,
+   * with the first runs staggered evenly over the ingest interval
+   *
+   * @param ingestIntervalMillis
+   * @param retrifyIntervalMillis
+   * @param reviveIntervalMillis the poll interval of the {@link RetrificatorReviver revivers} of all instances, sharing a single thread,
+   * {@code 0} for no revival
+   */
+  public synchronized void start(long ingestIntervalMillis, long retrifyIntervalMillis, long reviveIntervalMillis) {
+    if (scheduler != null) {
+      throw new IllegalStateException("The fleet has already been started");
+    }
+    scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "retrificator-fleet");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < instances.size(); i++) {
+      Instance instance = instances.get(i);
+      instance.retrificator.warnUnboundWebapps();
+      RetrificatorDaemon daemon = new RetrificatorDaemon(instance.retrificator, instance.strategy, ingestIntervalMillis, retrifyIntervalMillis,
+              scheduler, ingestIntervalMillis * i / instances.size());
+      daemons.add(daemon);
+      daemon.start();
+    }
+    if (reviveIntervalMillis > 0) {
+      revivalScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "retrificator-fleet-reviver");
+        thread.setDaemon(true);
+        return thread;
+      });
+      for (Instance instance : instances) {
+        RetrificatorReviver reviver = new RetrificatorReviver(instance.retrificator, instance.tomcat, reviveIntervalMillis, revivalScheduler);
+        revivers.add(reviver);
+        reviver.start();
+      }
+    }
+  }
+
+  /**
+   * Blocks until the fleet is {@link #close() closed}
+   *
+   * @throws InterruptedException
+   */
+  public void awaitTermination() throws InterruptedException {
+    terminated.await();
+  }
+
+  /**
+   * @return the number of the instances set up successfully
+   */
+  public int size() {
+    return instances.size();
+  }
+
+  /**
+   * Stops the daemons (if started) waiting for the current runs to complete, and releases the instances
+   * once the schedulers have terminated, so no run uses them anymore
+   */
+  @Override
+  public synchronized void close() {
+    for (RetrificatorReviver reviver : revivers) {
+      reviver.close();
+    }
+    // all stopped at once, for no run to start while awaiting the others
+    for (RetrificatorDaemon daemon : daemons) {
+      daemon.stopScheduling();
+    }
+    final long graceDeadline = System.currentTimeMillis() + RetrificatorDaemon.CLOSE_GRACE_MILLIS;
+    for (RetrificatorDaemon daemon : daemons) {
+      daemon.close(graceDeadline);
+    }
+    try {
+      awaitTermination(revivalScheduler);
+      awaitTermination(scheduler);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Instance instance : instances) {
+      if (instance.tomcat instanceof WatchingTomcat) {
+        try {
+          ((WatchingTomcat) instance.tomcat).close();
+        } catch (IOException e) {
+          e.printStackTrace(logStream);
+        }
+      }
+    }
+    terminated.countDown();
+  }
+
+  /**
+   * @param scheduler nullable
+   */
+  private void awaitTermination(ScheduledExecutorService scheduler) throws InterruptedException {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      while (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+        logStream.println("WARNING: fleet still waiting for the current runs to complete");
+      }
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package org.jepria.retrificator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Revives the retrified webapps as soon as they are requested: follows the new lines of the access logs
+ * and for each request answered with {@code 404} whose context path belongs to a retrified webapp
+ * {@link Retrificator#revive(Webapp) revives} the webapp.
+ * <br/>
+ * The access logs are followed from their current end on the start, the files appearing later are followed from the beginning.
+ * Repeated requests to the same webapp within the debounce interval cause no repeated revival.
+ * The revival latency is the poll interval plus the access log valve buffering
+ * (set {@code buffered="false"} on the valve for the requests to be logged immediately).
+ */
+public class RetrificatorReviver implements AutoCloseable {
+
+  public static final long DEFAULT_DEBOUNCE_MILLIS = 60 * 1000L;
+
+  private final Retrificator retrificator;
+  private final Tomcat tomcat;
+  private final long pollIntervalMillis;
+
+  private final ScheduledExecutorService scheduler;
+  /**
+   * Whether the scheduler is created by and dedicated to this reviver
+   */
+  private final boolean ownScheduler;
+  private ScheduledFuture<?> run;
+
+  private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+  /**
+   * Key: access log file; value: the position up to which the file has been followed.
+   * Accessed by the polling thread only
+   */
+  private final Map<File, Long> positions = new HashMap<>();
+  /**
+   * Key: webapp name; value: the latest revival attempt timestamp.
+   * Accessed by the polling thread only
+   */
+  private final Map<String, Long> revivalAttempts = new HashMap<>();
+
+  private volatile long revivalCount;
+
+  /**
+   * @param retrificator NotNull
+   * @param tomcat NotNull the tomcat of the retrificator
+   * @param pollIntervalMillis interval between the checks of the access logs for the new lines
+   */
+  public RetrificatorReviver(Retrificator retrificator, Tomcat tomcat, long pollIntervalMillis) {
+    this(retrificator, tomcat, pollIntervalMillis, Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "retrificator-reviver");
+      thread.setDaemon(true);
+      return thread;
+    }), true);
+  }
+
+  /**
+   * Creates the reviver running on the scheduler shared with other revivers
+   *
+   * @param retrificator NotNull
+   * @param tomcat NotNull the tomcat of the retrificator
+   * @param pollIntervalMillis interval between the checks of the access logs for the new lines
+   * @param scheduler NotNull the shared scheduler, not shut down by the reviver
+   */
+  public RetrificatorReviver(Retrificator retrificator, Tomcat tomcat, long pollIntervalMillis, ScheduledExecutorService scheduler) {
+    this(retrificator, tomcat, pollIntervalMillis, scheduler, false);
+  }
+
+  private RetrificatorReviver(Retrificator retrificator, Tomcat tomcat, long pollIntervalMillis,
+                              ScheduledExecutorService scheduler, boolean ownScheduler) {
+    if (pollIntervalMillis <= 0) {
+      throw new IllegalArgumentException("Illegal poll interval value '" + pollIntervalMillis + "': positive integer allowed");
+    }
+    this.retrificator = retrificator;
+    this.tomcat = tomcat;
+    this.pollIntervalMillis = pollIntervalMillis;
+    this.scheduler = scheduler;
+    this.ownScheduler = ownScheduler;
+  }
+
+  public long getDebounceMillis() {
+    return debounceMillis;
+  }
+
+  /**
+   * @param debounceMillis min interval between the revival attempts of the same webapp
+   */
+  public void setDebounceMillis(long debounceMillis) {
+    if (debounceMillis < 0) {
+      throw new IllegalArgumentException("Illegal debounce value '" + debounceMillis + "': non-negative integer allowed");
+    }
+    this.debounceMillis = debounceMillis;
+  }
+
+  /**
+   * @return the number of the webapps revived
+   */
+  public long getRevivalCount() {
+    return revivalCount;
+  }
+
+  /**
+   * Starts following the access logs from their current end
+   */
+  public synchronized void start() {
+    if (run != null) {
+      throw new IllegalStateException("The reviver has already been started");
+    }
+    for (File accessLog : tomcat.getAccessLogs()) {
+      positions.put(accessLog, accessLog.length());
+    }
+    if (retrificator.isVerbose()) {
+      retrificator.getLogStream().println("VERBOSE: reviver started at " + new Date() + ": poll every " + pollIntervalMillis + " ms");
+    }
+    run = scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        poll();
+      } catch (RuntimeException e) {
+        // log and continue
+        e.printStackTrace(retrificator.getLogStream());
+      }
+    }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reads the new lines of the access logs and revives the webapps requested
+   */
+  private void poll() {
+    // urls of the requests answered with 404
+    final List<String> notFoundUrls = new ArrayList<>();
+
+    final Collection<File> accessLogs = tomcat.getAccessLogs();
+    positions.keySet().retainAll(accessLogs);
+    for (File accessLog : accessLogs) {
+      final long size = accessLog.length();
+      long position = positions.getOrDefault(accessLog, 0L);
+      if (size < position) {
+        // truncated or replaced
+        position = 0;
+      }
+      if (size > position) {
+        positions.put(accessLog, readNotFoundUrls(accessLog, position, size, notFoundUrls));
+      }
+    }
+
+    if (!notFoundUrls.isEmpty()) {
+      reviveRequested(notFoundUrls);
+    }
+  }
+
+  /**
+   * @return the position right after the last complete line read
+   */
+  private long readNotFoundUrls(File accessLog, long position, long size, List<String> notFoundUrls) {
+    final AccessLogParser parser = tomcat.getAccessLogParser(accessLog);
+    final NotFoundSink sink = new NotFoundSink(notFoundUrls);
+    try (FileChannel channel = FileChannel.open(accessLog.toPath(), StandardOpenOption.READ)) {
+      final LineReader lineReader = new LineReader(channel, position, size);
+      ByteCharSequence line;
+      while ((line = lineReader.nextLine()) != null) {
+        parser.parse(line, sink);
+      }
+      return lineReader.getPosition();
+    } catch (IOException e) {
+      // the file may have been rotated away, retry on the next poll
+      retrificator.getLogStream().println("WARNING: reviver failed to read the access log " + accessLog + ": " + e);
+      return position;
+    }
+  }
+
+  private void reviveRequested(List<String> notFoundUrls) {
+    final WebappInventory inventory = tomcat.getInventory();
+    final ContextResolver resolver = ContextResolver.of(inventory.getWebapps());
+    final long now = System.currentTimeMillis();
+
+    for (String url : notFoundUrls) {
+      final String webappName = resolver.resolve(url, 0, url.length());
+      if (webappName == null) {
+        continue;
+      }
+      final Webapp webapp = inventory.get(webappName);
+      if (webapp == null || webapp.war != null || webapp.retroWar == null) {
+        // not retrified
+        continue;
+      }
+      final Long attempt = revivalAttempts.get(webappName);
+      if (attempt != null && now - attempt < debounceMillis) {
+        continue;
+      }
+      revivalAttempts.put(webappName, now);
+      if (retrificator.revive(webapp)) {
+        revivalCount++;
+      }
+    }
+
+    revivalAttempts.values().removeIf(attempt -> now - attempt >= debounceMillis);
+  }
+
+  /**
+   * Collects the urls of the records with 404 status
+   */
+  private static class NotFoundSink implements AccessLogParser.FieldSink {
+    private final List<String> notFoundUrls;
+
+    private CharSequence s;
+    private int urlStart;
+    private int urlEnd;
+    private boolean notFound;
+
+    NotFoundSink(List<String> notFoundUrls) {
+      this.notFoundUrls = notFoundUrls;
+    }
+
+    @Override
+    public void url(CharSequence s, int start, int end) {
+      this.s = s;
+      this.urlStart = start;
+      this.urlEnd = end;
+    }
+
+    @Override
+    public void httpStatus(CharSequence s, int start, int end) {
+      notFound = end - start == 3 && s.charAt(start) == '4' && s.charAt(start + 1) == '0' && s.charAt(start + 2) == '4';
+    }
+
+    @Override
+    public void endRecord() {
+      if (notFound && s != null) {
+        notFoundUrls.add(s.subSequence(urlStart, urlEnd).toString());
+      }
+      s = null;
+      notFound = false;
+    }
+  }
+
+  /**
+   * Stops following the access logs, waiting for the current poll to complete
+   */
+  @Override
+  public synchronized void close() {
+    if (run != null) {
+      run.cancel(false);
+    }
+    if (ownScheduler) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (retrificator.isVerbose()) {
+      retrificator.getLogStream().println("VERBOSE: reviver stopped at " + new Date() + ", " + revivalCount + " applications revived");
+    }
+  }
+}
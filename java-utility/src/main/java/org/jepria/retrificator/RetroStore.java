@@ -0,0 +1,500 @@
+package org.jepria.retrificator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Content-addressed store of the retrified wars, deduplicating the identical entries (such as the jars shared by many webapps).
+ * <br/>
+ * A war is split at the zip level into segments: the compressed data of each large entry goes into a blob of its own,
+ * everything else (the entry headers, the small entries and the central directory) goes into a single residual blob of the war.
+ * Each blob is stored once under its SHA-256 hash, so the wars sharing an entry share its blob.
+ * In place of the war, a small manifest is left (as the {@code .war.retro} file), listing the segments in order,
+ * so the war is restored byte-exactly by concatenating the segments, which is done in parallel
+ * by positional transfers from the blob files, with no decompression.
+ * <br/>
+ * A war the zip structure of which is not recognized (e.g. zip64) is stored as a single blob, deduplicated as a whole.
+ * <br/>
+ * The blobs referenced by no manifest are deleted by the {@link #collectGarbage garbage collection}.
+ * The store must not be shared by several retrificators.
+ */
+public class RetroStore {
+
+  /**
+   * Min compressed size of an entry to be stored in a blob of its own
+   */
+  public static final int MIN_BLOB_SIZE = 4096;
+
+  /**
+   * Min age of an unreferenced blob to be deleted by the garbage collection,
+   * for the blobs being referenced by a manifest just written not to be deleted
+   */
+  public static final long GARBAGE_GRACE_MILLIS = 60 * 60 * 1000L;
+
+  private static final int MANIFEST_FORMAT = 1;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The json binding initialized on the first use, not on the {@link #isManifest} checks of the quiet runs
+   */
+  private static class Json {
+    static final Gson GSON = new Gson();
+  }
+
+  private final File blobsDir;
+
+  /**
+   * class for serialization purposes only
+   */
+  private static class Manifest {
+    public int format;
+    /**
+     * absolute path of the store
+     */
+    public String store;
+    public long size;
+    /**
+     * hex SHA-256 of the war
+     */
+    public String sha256;
+    public List<Segment> segments;
+  }
+
+  /**
+   * class for serialization purposes only: a range of a blob
+   */
+  private static class Segment {
+    /**
+     * hex SHA-256 of the blob
+     */
+    public String blob;
+    public long offset;
+    public long length;
+
+    Segment(String blob, long offset, long length) {
+      this.blob = blob;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * @param storeDir NotNull the store directory, created if not exists
+   */
+  public RetroStore(File storeDir) {
+    this.blobsDir = new File(storeDir.getAbsoluteFile(), "blobs");
+  }
+
+  public File getStoreDir() {
+    return blobsDir.getParentFile();
+  }
+
+  /**
+   * @param file NotNull
+   * @return whether the file is a manifest of a war stored, rather than the war itself
+   */
+  public static boolean isManifest(File file) {
+    try (InputStream in = new FileInputStream(file)) {
+      return in.read() == '{';
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Stores the war and writes its manifest. The war itself is not deleted
+   *
+   * @param war NotNull
+   * @param manifestFile NotNull the manifest file to write, replaced atomically
+   * @return the number of bytes written into the new blobs (the rest of the war has been deduplicated)
+   * @throws IOException
+   */
+  public long store(File war, File manifestFile) throws IOException {
+    Files.createDirectories(blobsDir.toPath());
+
+    final Manifest manifest = new Manifest();
+    manifest.format = MANIFEST_FORMAT;
+    manifest.store = getStoreDir().getPath();
+    manifest.segments = new ArrayList<>();
+
+    long written = 0;
+    try (FileChannel channel = FileChannel.open(war.toPath(), StandardOpenOption.READ)) {
+      final long size = channel.size();
+      manifest.size = size;
+      manifest.sha256 = hash(channel, 0, size);
+
+      // key: the start of the entry data; value: the end
+      final TreeMap<Long, Long> entries = readLargeEntries(channel, size);
+
+      // the residual bytes between the large entries, written into a single blob
+      final File residualFile = File.createTempFile("residual", ".tmp", blobsDir);
+      try {
+        // the residual segments with the blob hash not yet known
+        final List<Segment> residualSegments = new ArrayList<>();
+        final MessageDigest residualDigest = newDigest();
+        try (FileChannel residual = FileChannel.open(residualFile.toPath(), StandardOpenOption.WRITE)) {
+          long position = 0;
+          for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+            if (entry.getKey() > position) {
+              residualSegments.add(appendResidual(channel, position, entry.getKey(), residual, residualDigest, manifest));
+            }
+            final String blob = hash(channel, entry.getKey(), entry.getValue());
+            written += putBlob(channel, entry.getKey(), entry.getValue(), blob);
+            manifest.segments.add(new Segment(blob, 0, entry.getValue() - entry.getKey()));
+            position = entry.getValue();
+          }
+          if (size > position) {
+            residualSegments.add(appendResidual(channel, position, size, residual, residualDigest, manifest));
+          }
+        }
+        if (!residualSegments.isEmpty()) {
+          final String residualBlob = toHex(residualDigest.digest());
+          for (Segment segment : residualSegments) {
+            segment.blob = residualBlob;
+          }
+          written += moveToBlob(residualFile, residualBlob);
+        }
+      } finally {
+        Files.deleteIfExists(residualFile.toPath());
+      }
+    }
+
+    // write the manifest atomically
+    final Path manifestPath = manifestFile.toPath();
+    final Path tmp = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+         Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+      Json.GSON.toJson(manifest, writer);
+      writer.flush();
+      out.getFD().sync();
+    }
+    Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    return written;
+  }
+
+  /**
+   * Appends the range of the war to the residual file
+   *
+   * @return the segment of the residual blob, with no blob hash yet
+   */
+  private static Segment appendResidual(FileChannel war, long start, long end, FileChannel residual, MessageDigest residualDigest,
+                                        Manifest manifest) throws IOException {
+    final Segment segment = new Segment(null, residual.position(), end - start);
+    final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, end - start));
+    long position = start;
+    while (position < end) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+      final int read = war.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      position += read;
+      buffer.flip();
+      residualDigest.update(buffer.duplicate());
+      while (buffer.hasRemaining()) {
+        residual.write(buffer);
+      }
+    }
+    manifest.segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Stores the range of the war as the blob, unless already stored
+   *
+   * @return the number of bytes written
+   */
+  private long putBlob(FileChannel war, long start, long end, String blob) throws IOException {
+    final File blobFile = getBlobFile(blob);
+    if (blobFile.exists()) {
+      // protect the blob reused from the garbage collection
+      blobFile.setLastModified(System.currentTimeMillis());
+      return 0;
+    }
+    final File tmp = File.createTempFile("blob", ".tmp", blobsDir);
+    try {
+      try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+        long position = start;
+        while (position < end) {
+          position += war.transferTo(position, end - position, out);
+        }
+      }
+      return moveToBlob(tmp, blob);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  /**
+   * @return the number of bytes written, {@code 0} if the blob already exists
+   */
+  private long moveToBlob(File tmp, String blob) throws IOException {
+    final File blobFile = getBlobFile(blob);
+    if (blobFile.exists()) {
+      blobFile.setLastModified(System.currentTimeMillis());
+      return 0;
+    }
+    Files.createDirectories(blobFile.getParentFile().toPath());
+    final long length = tmp.length();
+    Files.move(tmp.toPath(), blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    return length;
+  }
+
+  private File getBlobFile(String blob) {
+    return new File(new File(blobsDir, blob.substring(0, 2)), blob);
+  }
+
+  /**
+   * Reads the central directory of the zip
+   *
+   * @return the data ranges of the large entries, key: the start; value: the end.
+   * Empty if the zip structure is not recognized, so the war is stored as a whole
+   */
+  private static TreeMap<Long, Long> readLargeEntries(FileChannel channel, long size) throws IOException {
+    final TreeMap<Long, Long> entries = new TreeMap<>();
+
+    // the end of central directory record is followed by the comment of up to 64K
+    final int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+    final ByteBuffer tail = read(channel, size - tailLength, tailLength);
+    int eocd = -1;
+    for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd == -1) {
+      return entries;
+    }
+    final int entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+    final long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+    final long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+    if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL
+            || directoryOffset + directorySize > size - tailLength + eocd) {
+      // zip64 or inconsistent
+      return entries;
+    }
+
+    final ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+    int position = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (position + 46 > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        entries.clear();
+        return entries;
+      }
+      final long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+      final int nameLength = directory.getShort(position + 28) & 0xFFFF;
+      final int extraLength = directory.getShort(position + 30) & 0xFFFF;
+      final int commentLength = directory.getShort(position + 32) & 0xFFFF;
+      final long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+      position += 46 + nameLength + extraLength + commentLength;
+
+      if (compressedSize >= MIN_BLOB_SIZE) {
+        final ByteBuffer localHeader = read(channel, localHeaderOffset, 30);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+          entries.clear();
+          return entries;
+        }
+        final long dataStart = localHeaderOffset + 30 + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+        final long dataEnd = dataStart + compressedSize;
+        if (dataEnd > directoryOffset) {
+          entries.clear();
+          return entries;
+        }
+        entries.put(dataStart, dataEnd);
+      }
+    }
+
+    // the ranges must not overlap
+    long previousEnd = 0;
+    for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+      if (entry.getKey() < previousEnd) {
+        entries.clear();
+        return entries;
+      }
+      previousEnd = entry.getValue();
+    }
+    return entries;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Restores the war from the manifest (of any store, as written in the manifest), verifying its hash.
+   * The manifest itself is not deleted
+   *
+   * @param manifestFile NotNull
+   * @param war NotNull the war file to create, appears atomically once complete
+   * @throws IOException if the war could not be restored (e.g. a blob is missing or the hash does not match)
+   */
+  public static void restore(File manifestFile, File war) throws IOException {
+    final Manifest manifest;
+    try (Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+      manifest = Json.GSON.fromJson(reader, Manifest.class);
+    } catch (JsonParseException e) {
+      throw new IOException("Failed to read the manifest " + manifestFile, e);
+    }
+    if (manifest == null || manifest.format != MANIFEST_FORMAT || manifest.store == null || manifest.segments == null) {
+      throw new IOException("Unsupported manifest " + manifestFile);
+    }
+    final RetroStore store = new RetroStore(new File(manifest.store));
+
+    final long[] positions = new long[manifest.segments.size()];
+    long size = 0;
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = size;
+      size += manifest.segments.get(i).length;
+    }
+    if (size != manifest.size) {
+      throw new IOException("Inconsistent manifest " + manifestFile + ": the segments total " + size + " bytes of " + manifest.size);
+    }
+
+    // not a .war file, for the tomcat not to deploy it while incomplete
+    final Path tmp = war.toPath().resolveSibling(war.getName() + ".tmp");
+    try {
+      try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        if (size > 0) {
+          // allocate the entire file, for the segments to be transferred at any position
+          out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+        try {
+          IntStream.range(0, positions.length).parallel().forEach(i -> {
+            final Segment segment = manifest.segments.get(i);
+            try (FileChannel in = FileChannel.open(store.getBlobFile(segment.blob).toPath(), StandardOpenOption.READ)) {
+              long transferred = 0;
+              while (transferred < segment.length) {
+                final long count = out.transferFrom(in.position(segment.offset + transferred), positions[i] + transferred, segment.length - transferred);
+                if (count <= 0) {
+                  throw new EOFException("The blob " + segment.blob + " is shorter than expected");
+                }
+                transferred += count;
+              }
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        out.force(false);
+
+        final String sha256 = hash(out, 0, size);
+        if (!sha256.equals(manifest.sha256)) {
+          throw new IOException("The war restored from the manifest " + manifestFile + " does not match the original one: SHA-256 " + sha256 + " instead of " + manifest.sha256);
+        }
+      }
+      Files.move(tmp, war.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Deletes the blobs referenced by none of the manifests, except the ones modified recently
+   *
+   * @param manifestFiles NotNull all manifests of the store
+   * @return the number of bytes freed
+   * @throws IOException
+   */
+  public long collectGarbage(Collection<File> manifestFiles) throws IOException {
+    final Set<String> referenced = new HashSet<>();
+    for (File manifestFile : manifestFiles) {
+      final Manifest manifest;
+      try (Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+        manifest = Json.GSON.fromJson(reader, Manifest.class);
+      } catch (JsonParseException e) {
+        throw new IOException("Failed to read the manifest " + manifestFile, e);
+      }
+      if (manifest != null && manifest.segments != null) {
+        for (Segment segment : manifest.segments) {
+          referenced.add(segment.blob);
+        }
+      }
+    }
+
+    final long threshold = System.currentTimeMillis() - GARBAGE_GRACE_MILLIS;
+    long freed = 0;
+    final File[] prefixDirs = blobsDir.listFiles(File::isDirectory);
+    if (prefixDirs != null) {
+      for (File prefixDir : prefixDirs) {
+        final File[] blobs = prefixDir.listFiles();
+        if (blobs != null) {
+          for (File blob : blobs) {
+            if (!referenced.contains(blob.getName()) && blob.lastModified() < threshold) {
+              final long length = blob.length();
+              if (blob.delete()) {
+                freed += length;
+              }
+            }
+          }
+        }
+      }
+    }
+    return freed;
+  }
+
+  /**
+   * @return hex SHA-256 of the range of the file
+   */
+  private static String hash(FileChannel channel, long start, long end) throws IOException {
+    final MessageDigest digest = newDigest();
+    final ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, end - start)));
+    long position = start;
+    while (position < end) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+      final int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      position += read;
+      buffer.flip();
+      digest.update(buffer);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // impossible: every java platform supports SHA-256
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+}
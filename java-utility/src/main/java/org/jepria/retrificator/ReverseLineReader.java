@@ -0,0 +1,143 @@
+package org.jepria.retrificator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the complete (terminated with '\n') lines of a file range backwards, from the last line to the first one,
+ * in blocks through a reusable buffer with no per-line allocation.
+ * A line longer than the {@link LineReader#MAX_LINE_LENGTH} is skipped down to its start
+ * and returned {@link ByteCharSequence#isTruncated() truncated}, for the memory to stay bounded.
+ * <br/>
+ * Not thread-safe.
+ */
+public class ReverseLineReader {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final long from;
+
+  private ByteBuffer buffer;
+  /**
+   * File position of the buffer start
+   */
+  private long bufferPosition;
+  /**
+   * File position right after the '\n' terminating the next line to read
+   */
+  private long end;
+
+  private final ByteCharSequence line = new ByteCharSequence();
+  private long lineOffset = -1;
+
+  /**
+   * @param channel NotNull
+   * @param from position to read down to, must be a line start
+   * @param to position to start reading backwards from, must be right after a '\n' (or equal to the {@code from})
+   */
+  public ReverseLineReader(FileChannel channel, long from, long to) {
+    this.channel = channel;
+    this.from = from;
+    this.end = to;
+    this.buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, to - from)));
+    this.bufferPosition = to;
+    this.buffer.limit(0);
+  }
+
+  /**
+   * @return the previous line without line terminator, valid until the next invocation, or {@code null} if there are no more lines
+   * @throws IOException
+   */
+  public ByteCharSequence previousLine() throws IOException {
+    if (end <= from) {
+      return null;
+    }
+
+    // the terminating '\n' is at end - 1
+    final long terminator = end - 1;
+    while (true) {
+      // search for the previous '\n' within the buffer
+      for (long p = terminator - 1; p >= bufferPosition; p--) {
+        if (buffer.get((int) (p - bufferPosition)) == '\n') {
+          return setLine(p + 1, terminator);
+        }
+      }
+      if (bufferPosition <= from) {
+        // the first line of the range
+        return setLine(from, terminator);
+      }
+      if (end - bufferPosition >= LineReader.MAX_LINE_LENGTH) {
+        return skipLine();
+      }
+      fill();
+    }
+  }
+
+  /**
+   * Loads the block ending at the end of the line being read into the buffer, growing the buffer if the line is longer than it
+   */
+  private void fill() throws IOException {
+    if (end - bufferPosition >= buffer.capacity()) {
+      buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, LineReader.MAX_LINE_LENGTH));
+    }
+    load(Math.max(from, end - buffer.capacity()), end);
+  }
+
+  /**
+   * Finds the start of the over-long line being read, block by block below the buffer, and keeps the first bytes of the line
+   */
+  private ByteCharSequence skipLine() throws IOException {
+    long lineStart = from;
+    search:
+    for (long blockEnd = bufferPosition; blockEnd > from; ) {
+      final long blockStart = Math.max(from, blockEnd - buffer.capacity());
+      load(blockStart, blockEnd);
+      for (long p = blockEnd - 1; p >= blockStart; p--) {
+        if (buffer.get((int) (p - blockStart)) == '\n') {
+          lineStart = p + 1;
+          break search;
+        }
+      }
+      blockEnd = blockStart;
+    }
+    load(lineStart, Math.min(lineStart + buffer.capacity(), end - 1));
+    line.reset(buffer, 0, buffer.limit(), true);
+    lineOffset = lineStart;
+    end = lineStart;
+    return line;
+  }
+
+  /**
+   * Reads the range of the file into the buffer start
+   */
+  private void load(long position, long limit) throws IOException {
+    buffer.clear();
+    buffer.limit((int) (limit - position));
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file at " + (position + buffer.position()) + ", expected up to " + limit);
+      }
+    }
+    bufferPosition = position;
+  }
+
+  private ByteCharSequence setLine(long lineStart, long terminator) {
+    long lineEnd = terminator;
+    if (lineEnd > lineStart && buffer.get((int) (lineEnd - 1 - bufferPosition)) == '\r') {
+      lineEnd--;
+    }
+    line.reset(buffer, (int) (lineStart - bufferPosition), (int) (lineEnd - bufferPosition));
+    lineOffset = lineStart;
+    end = lineStart;
+    return line;
+  }
+
+  /**
+   * @return the position of the line last read, {@code -1} if no line has been read yet
+   */
+  public long getLineOffset() {
+    return lineOffset;
+  }
+}
@@ -0,0 +1,120 @@
+package org.jepria.retrificator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The performance metrics of a single run of the retrificator (either the ingestion or the retrification):
+ * the phase timings by the monotonic clock and the counters.
+ * <br/>
+ * The access log metrics may be recorded concurrently, the rest by the run thread only.
+ */
+public class RunMetrics {
+
+  public static final String RUN_INGEST = "ingest";
+  public static final String RUN_RETRIFY = "retrify";
+  /**
+   * The {@link Retrificator#simulate simulation}, its metrics are not exported
+   */
+  public static final String RUN_SIMULATE = "simulate";
+
+  /**
+   * The metrics of the ingestion of a single access log file
+   */
+  public static class AccessLogMetrics {
+    public long lines;
+    public long bytes;
+    public long parseFailures;
+    /**
+     * The bytes left unprocessed after the run (the incomplete last line)
+     */
+    public long backlogBytes;
+    public long durationNanos;
+  }
+
+  /**
+   * {@link #RUN_INGEST}, {@link #RUN_RETRIFY} or {@link #RUN_SIMULATE}
+   */
+  public String run;
+  /**
+   * Wall clock timestamp of the run start
+   */
+  public long startTime;
+  public long durationNanos;
+  /**
+   * Key: phase name; value: the phase duration, in the order of the phases
+   */
+  public final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+  /**
+   * Key: access log filename; value: the metrics of the file ingested in the run
+   */
+  public final Map<String, AccessLogMetrics> accessLogs = new ConcurrentSkipListMap<>();
+  /**
+   * Number of the access log files skipped as not modified or having no newer accesses
+   */
+  public long accessLogsSkipped;
+  /**
+   * Number of the webapps in the tomcat
+   */
+  public long apps;
+  public long appsRetrified;
+  public long retrificationsFailed;
+  /**
+   * Number of the latest access entries in the state
+   */
+  public long stateEntries;
+  /**
+   * Size of the persisted state: the snapshot and the journal
+   */
+  public long stateBytes;
+
+  private transient long startNanos;
+
+  /**
+   * Starts the run metrics
+   *
+   * @param run {@link #RUN_INGEST} or {@link #RUN_RETRIFY}
+   */
+  public RunMetrics(String run) {
+    this.run = run;
+    this.startTime = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Records the phase complete just now
+   *
+   * @param phase the phase name
+   * @param phaseStartNanos the {@link System#nanoTime()} of the phase start
+   * @return the {@link System#nanoTime()} of the phase end, the start of the next phase
+   */
+  public long phase(String phase, long phaseStartNanos) {
+    final long now = System.nanoTime();
+    phaseNanos.merge(phase, now - phaseStartNanos, Long::sum);
+    return now;
+  }
+
+  /**
+   * Records the run complete just now
+   */
+  public void complete() {
+    durationNanos = System.nanoTime() - startNanos;
+  }
+
+  public long getLines() {
+    return accessLogs.values().stream().mapToLong(metrics -> metrics.lines).sum();
+  }
+
+  public long getBytes() {
+    return accessLogs.values().stream().mapToLong(metrics -> metrics.bytes).sum();
+  }
+
+  public long getParseFailures() {
+    return accessLogs.values().stream().mapToLong(metrics -> metrics.parseFailures).sum();
+  }
+
+  public long getBacklogBytes() {
+    return accessLogs.values().stream().mapToLong(metrics -> metrics.backlogBytes).sum();
+  }
+}
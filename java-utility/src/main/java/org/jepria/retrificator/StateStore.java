@@ -0,0 +1,588 @@
+package org.jepria.retrificator;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Crash-safe persistent storage of the {@link Retrificator.State}.
+ * <br/>
+ * The state consists of the snapshot file and the journal file next to it.
+ * The snapshot is the full state image (in the same format as the state file of the previous versions,
+ * so the existing state file is imported as is), replaced atomically by renaming a temporary file.
+ * The journal is an append-only file of the JSON lines, each line is a single delta record over the snapshot,
+ * such as the latest access update, the checkpoint advance or the retrification outcome. The records of a single {@link #save} invocation
+ * are appended with a single write and fsync'ed at once.
+ * <br/>
+ * Every record is numbered, the snapshot contains the number of the last record it includes,
+ * so the records already compacted into the snapshot are not replayed even if the journal is not yet deleted.
+ * A torn record (the last line of the journal written partially during a crash) and anything after it is discarded.
+ * <br/>
+ * Once the journal grows over the {@link #getCompactionThreshold() threshold}, the state is compacted: the new snapshot is written
+ * and the journal is deleted.
+ * <br/>
+ * Not thread-safe.
+ */
+class StateStore {
+
+  public static final long DEFAULT_COMPACTION_THRESHOLD = 1024 * 1024;
+
+  private final File snapshotFile;
+  private final File journalFile;
+
+  private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+  /**
+   * Number of the last record written or replayed
+   */
+  private long sequence;
+  /**
+   * Size of the valid (not torn) part of the journal, as of the last load or save
+   */
+  private long journalSize;
+
+  /**
+   * The state image as persisted, to compute the deltas against
+   */
+  private final Map<String, Long> persistedLatestAccessMap = new HashMap<>();
+  private final Map<String, AccessLogCheckpoint> persistedAccessLogCheckpoints = new HashMap<>();
+  private boolean persistedAccessLogsProcessedLegacy;
+  private final Map<String, RetrificationOutcome> persistedRetrificationOutcomes = new HashMap<>();
+
+  /**
+   * @param snapshotFile NotNull the state file, the journal file is the one with the {@code .journal} suffix next to it
+   */
+  public StateStore(File snapshotFile) {
+    this.snapshotFile = snapshotFile;
+    this.journalFile = new File(snapshotFile.getPath() + ".journal");
+  }
+
+  public File getSnapshotFile() {
+    return snapshotFile;
+  }
+
+  public File getJournalFile() {
+    return journalFile;
+  }
+
+  public long getCompactionThreshold() {
+    return compactionThreshold;
+  }
+
+  /**
+   * @param compactionThreshold journal size in bytes to compact the state above
+   */
+  public void setCompactionThreshold(long compactionThreshold) {
+    if (compactionThreshold <= 0) {
+      throw new IllegalArgumentException("Illegal compaction threshold value '" + compactionThreshold + "': positive integer allowed");
+    }
+    this.compactionThreshold = compactionThreshold;
+  }
+
+  /**
+   * class for serialization purposes only: a single journal record
+   */
+  private static class Delta {
+    /**
+     * record number
+     */
+    public long seq;
+    /**
+     * latest access of the application updated
+     */
+    public String access;
+    public Long time;
+    /**
+     * latest access of the application removed
+     */
+    public String accessRemoved;
+    /**
+     * checkpoint of the access log advanced
+     */
+    public String checkpoint;
+    public AccessLogCheckpoint value;
+    /**
+     * checkpoint of the access log removed
+     */
+    public String checkpointRemoved;
+    /**
+     * legacy processed access logs converted to the checkpoints
+     */
+    public Boolean legacyCleared;
+    /**
+     * retrification outcome of the application updated
+     */
+    public String outcome;
+    public RetrificationOutcome result;
+    /**
+     * retrification outcome of the application removed
+     */
+    public String outcomeRemoved;
+  }
+
+  /**
+   * Reads the snapshot and replays the journal over it
+   *
+   * @return the state read, or new instance if there is no state persisted
+   * @throws IOException
+   */
+  public Retrificator.State load() throws IOException {
+    final Retrificator.State state = new Retrificator.State();
+    long snapshotSequence = 0;
+    if (snapshotFile.exists()) {
+      snapshotSequence = readSnapshot(state);
+    }
+    sequence = snapshotSequence;
+    journalSize = 0;
+    if (journalFile.exists()) {
+      replayJournal(state, snapshotSequence);
+    }
+
+    persistedLatestAccessMap.clear();
+    persistedLatestAccessMap.putAll(state.latestAccessMap);
+    persistedAccessLogCheckpoints.clear();
+    for (Map.Entry<String, AccessLogCheckpoint> entry : state.accessLogCheckpoints.entrySet()) {
+      persistedAccessLogCheckpoints.put(entry.getKey(), copy(entry.getValue()));
+    }
+    persistedAccessLogsProcessedLegacy = !state.accessLogsProcessedLegacy.isEmpty();
+    persistedRetrificationOutcomes.clear();
+    persistedRetrificationOutcomes.putAll(state.retrificationOutcomes);
+    return state;
+  }
+
+  /**
+   * Streams the snapshot into the state
+   *
+   * @return the number of the last journal record included into the snapshot
+   */
+  private long readSnapshot(Retrificator.State state) throws IOException {
+    long snapshotSequence = 0;
+    try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), StandardCharsets.UTF_8)))) {
+      if (reader.peek() == JsonToken.END_DOCUMENT) {
+        // empty file
+        return 0;
+      }
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+        } else if ("logFilesProcessed".equals(name)) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            state.accessLogsProcessedLegacy.add(reader.nextString());
+          }
+          reader.endArray();
+        } else if ("accessLogCheckpoints".equals(name)) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            final String file = reader.nextName();
+            state.accessLogCheckpoints.put(file, readCheckpoint(reader));
+          }
+          reader.endObject();
+        } else if ("latestAccessMap".equals(name)) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            final String app = reader.nextName();
+            state.latestAccessMap.put(app, reader.nextLong());
+          }
+          reader.endObject();
+        } else if ("retrificationOutcomes".equals(name)) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            final String app = reader.nextName();
+            state.retrificationOutcomes.put(app, readOutcome(reader));
+          }
+          reader.endObject();
+        } else if ("journalSequence".equals(name)) {
+          snapshotSequence = reader.nextLong();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException("Failed to read the state snapshot " + snapshotFile, e);
+    }
+    return snapshotSequence;
+  }
+
+  private void replayJournal(Retrificator.State state, long snapshotSequence) throws IOException {
+    try (InputStream in = new FileInputStream(journalFile)) {
+      final LineReader lineReader = new LineReader(in);
+      ByteCharSequence line;
+      while ((line = lineReader.nextLine()) != null) {
+        final Delta delta;
+        try {
+          delta = readDelta(new String(line.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+          // torn or blank record
+          break;
+        }
+        if (delta.seq <= sequence && delta.seq > snapshotSequence) {
+          // an out of order record
+          break;
+        }
+        if (delta.seq > snapshotSequence) {
+          apply(state, delta);
+          sequence = delta.seq;
+        }
+        journalSize = lineReader.getPosition();
+      }
+    }
+  }
+
+  private static void apply(Retrificator.State state, Delta delta) {
+    if (delta.access != null && delta.time != null) {
+      state.latestAccessMap.put(delta.access, delta.time);
+    }
+    if (delta.accessRemoved != null) {
+      state.latestAccessMap.remove(delta.accessRemoved);
+    }
+    if (delta.checkpoint != null && delta.value != null) {
+      state.accessLogCheckpoints.put(delta.checkpoint, delta.value);
+    }
+    if (delta.checkpointRemoved != null) {
+      state.accessLogCheckpoints.remove(delta.checkpointRemoved);
+    }
+    if (Boolean.TRUE.equals(delta.legacyCleared)) {
+      state.accessLogsProcessedLegacy.clear();
+    }
+    if (delta.outcome != null && delta.result != null) {
+      state.retrificationOutcomes.put(delta.outcome, delta.result);
+    }
+    if (delta.outcomeRemoved != null) {
+      state.retrificationOutcomes.remove(delta.outcomeRemoved);
+    }
+  }
+
+  /**
+   * Persists the changes of the state since the last load or save, compacting the state if needed
+   *
+   * @param state NotNull the state previously {@link #load() loaded}, modified
+   * @throws IOException
+   */
+  public void save(Retrificator.State state) throws IOException {
+    final StringBuilder records = new StringBuilder();
+
+    for (Map.Entry<String, Long> entry : state.latestAccessMap.entrySet()) {
+      if (!entry.getValue().equals(persistedLatestAccessMap.get(entry.getKey()))) {
+        Delta delta = new Delta();
+        delta.access = entry.getKey();
+        delta.time = entry.getValue();
+        append(records, delta);
+      }
+    }
+    for (String app : persistedLatestAccessMap.keySet()) {
+      if (!state.latestAccessMap.containsKey(app)) {
+        Delta delta = new Delta();
+        delta.accessRemoved = app;
+        append(records, delta);
+      }
+    }
+    for (Map.Entry<String, AccessLogCheckpoint> entry : state.accessLogCheckpoints.entrySet()) {
+      if (!entry.getValue().equals(persistedAccessLogCheckpoints.get(entry.getKey()))) {
+        Delta delta = new Delta();
+        delta.checkpoint = entry.getKey();
+        delta.value = entry.getValue();
+        append(records, delta);
+      }
+    }
+    for (String file : persistedAccessLogCheckpoints.keySet()) {
+      if (!state.accessLogCheckpoints.containsKey(file)) {
+        Delta delta = new Delta();
+        delta.checkpointRemoved = file;
+        append(records, delta);
+      }
+    }
+    if (persistedAccessLogsProcessedLegacy && state.accessLogsProcessedLegacy.isEmpty()) {
+      Delta delta = new Delta();
+      delta.legacyCleared = true;
+      append(records, delta);
+    }
+    for (Map.Entry<String, RetrificationOutcome> entry : state.retrificationOutcomes.entrySet()) {
+      if (!entry.getValue().equals(persistedRetrificationOutcomes.get(entry.getKey()))) {
+        Delta delta = new Delta();
+        delta.outcome = entry.getKey();
+        delta.result = entry.getValue();
+        append(records, delta);
+      }
+    }
+    for (String app : persistedRetrificationOutcomes.keySet()) {
+      if (!state.retrificationOutcomes.containsKey(app)) {
+        Delta delta = new Delta();
+        delta.outcomeRemoved = app;
+        append(records, delta);
+      }
+    }
+
+    if (records.length() > 0) {
+      final byte[] bytes = records.toString().getBytes(StandardCharsets.UTF_8);
+      try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        // discard the torn record, if any
+        channel.truncate(journalSize);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = journalSize;
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        journalSize = position;
+      }
+    }
+
+    // the deltas are persisted
+    persistedLatestAccessMap.clear();
+    persistedLatestAccessMap.putAll(state.latestAccessMap);
+    persistedAccessLogCheckpoints.clear();
+    for (Map.Entry<String, AccessLogCheckpoint> entry : state.accessLogCheckpoints.entrySet()) {
+      persistedAccessLogCheckpoints.put(entry.getKey(), copy(entry.getValue()));
+    }
+    persistedAccessLogsProcessedLegacy = !state.accessLogsProcessedLegacy.isEmpty();
+    persistedRetrificationOutcomes.clear();
+    persistedRetrificationOutcomes.putAll(state.retrificationOutcomes);
+
+    if (journalSize > compactionThreshold) {
+      compact(state);
+    }
+  }
+
+  private void append(StringBuilder records, Delta delta) throws IOException {
+    delta.seq = ++sequence;
+    records.append(toJson(delta)).append('\n');
+  }
+
+  /**
+   * Writes the full state into the new snapshot and deletes the journal
+   *
+   * @param state NotNull the state persisted
+   * @throws IOException
+   */
+  public void compact(Retrificator.State state) throws IOException {
+    final Path snapshot = snapshotFile.toPath();
+    final Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+
+    try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+         JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))) {
+      writer.beginObject();
+      if (!state.accessLogsProcessedLegacy.isEmpty()) {
+        writer.name("logFilesProcessed").beginArray();
+        for (String file : state.accessLogsProcessedLegacy) {
+          writer.value(file);
+        }
+        writer.endArray();
+      }
+      writer.name("accessLogCheckpoints").beginObject();
+      for (Map.Entry<String, AccessLogCheckpoint> entry : state.accessLogCheckpoints.entrySet()) {
+        writer.name(entry.getKey());
+        writeCheckpoint(writer, entry.getValue());
+      }
+      writer.endObject();
+      writer.name("latestAccessMap").beginObject();
+      for (Map.Entry<String, Long> entry : state.latestAccessMap.entrySet()) {
+        writer.name(entry.getKey()).value(entry.getValue());
+      }
+      writer.endObject();
+      writer.name("retrificationOutcomes").beginObject();
+      for (Map.Entry<String, RetrificationOutcome> entry : state.retrificationOutcomes.entrySet()) {
+        writer.name(entry.getKey());
+        writeOutcome(writer, entry.getValue());
+      }
+      writer.endObject();
+      writer.name("journalSequence").value(sequence);
+      writer.endObject();
+      writer.flush();
+      out.getFD().sync();
+    }
+
+    Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // the records up to the sequence are in the snapshot now, so a crash right here is harmless
+    Files.deleteIfExists(journalFile.toPath());
+    journalSize = 0;
+  }
+
+  // The records are read and written field by field rather than by the reflective data binding,
+  // for the load and the save not to initialize the binding machinery (noticeable in the short runs);
+  // the fields are named and ordered as the data binding does, the null fields are omitted
+
+  private static String toJson(Delta delta) throws IOException {
+    final StringWriter out = new StringWriter();
+    final JsonWriter writer = new JsonWriter(out);
+    writer.beginObject();
+    writer.name("seq").value(delta.seq);
+    if (delta.access != null) {
+      writer.name("access").value(delta.access);
+    }
+    if (delta.time != null) {
+      writer.name("time").value(delta.time.longValue());
+    }
+    if (delta.accessRemoved != null) {
+      writer.name("accessRemoved").value(delta.accessRemoved);
+    }
+    if (delta.checkpoint != null) {
+      writer.name("checkpoint").value(delta.checkpoint);
+    }
+    if (delta.value != null) {
+      writer.name("value");
+      writeCheckpoint(writer, delta.value);
+    }
+    if (delta.checkpointRemoved != null) {
+      writer.name("checkpointRemoved").value(delta.checkpointRemoved);
+    }
+    if (delta.legacyCleared != null) {
+      writer.name("legacyCleared").value(delta.legacyCleared.booleanValue());
+    }
+    if (delta.outcome != null) {
+      writer.name("outcome").value(delta.outcome);
+    }
+    if (delta.result != null) {
+      writer.name("result");
+      writeOutcome(writer, delta.result);
+    }
+    if (delta.outcomeRemoved != null) {
+      writer.name("outcomeRemoved").value(delta.outcomeRemoved);
+    }
+    writer.endObject();
+    writer.flush();
+    return out.toString();
+  }
+
+  private static Delta readDelta(String json) throws IOException {
+    final Delta delta = new Delta();
+    final JsonReader reader = new JsonReader(new StringReader(json));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if ("seq".equals(name)) {
+        delta.seq = reader.nextLong();
+      } else if ("access".equals(name)) {
+        delta.access = reader.nextString();
+      } else if ("time".equals(name)) {
+        delta.time = reader.nextLong();
+      } else if ("accessRemoved".equals(name)) {
+        delta.accessRemoved = reader.nextString();
+      } else if ("checkpoint".equals(name)) {
+        delta.checkpoint = reader.nextString();
+      } else if ("value".equals(name)) {
+        delta.value = readCheckpoint(reader);
+      } else if ("checkpointRemoved".equals(name)) {
+        delta.checkpointRemoved = reader.nextString();
+      } else if ("legacyCleared".equals(name)) {
+        delta.legacyCleared = reader.nextBoolean();
+      } else if ("outcome".equals(name)) {
+        delta.outcome = reader.nextString();
+      } else if ("result".equals(name)) {
+        delta.result = readOutcome(reader);
+      } else if ("outcomeRemoved".equals(name)) {
+        delta.outcomeRemoved = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return delta;
+  }
+
+  private static void writeCheckpoint(JsonWriter writer, AccessLogCheckpoint checkpoint) throws IOException {
+    writer.beginObject();
+    if (checkpoint.fileKey != null) {
+      writer.name("fileKey").value(checkpoint.fileKey);
+    }
+    writer.name("fingerprint").value(checkpoint.fingerprint);
+    writer.name("fingerprintLength").value(checkpoint.fingerprintLength);
+    writer.name("offset").value(checkpoint.offset);
+    writer.name("size").value(checkpoint.size);
+    if (checkpoint.hasUnread()) {
+      writer.name("unreadStart").value(checkpoint.unreadStart);
+      writer.name("unreadEnd").value(checkpoint.unreadEnd);
+    }
+    writer.endObject();
+  }
+
+  private static AccessLogCheckpoint readCheckpoint(JsonReader reader) throws IOException {
+    final AccessLogCheckpoint checkpoint = new AccessLogCheckpoint();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if ("fileKey".equals(name)) {
+        checkpoint.fileKey = reader.nextString();
+      } else if ("fingerprint".equals(name)) {
+        checkpoint.fingerprint = reader.nextLong();
+      } else if ("fingerprintLength".equals(name)) {
+        checkpoint.fingerprintLength = reader.nextInt();
+      } else if ("offset".equals(name)) {
+        checkpoint.offset = reader.nextLong();
+      } else if ("size".equals(name)) {
+        checkpoint.size = reader.nextLong();
+      } else if ("unreadStart".equals(name)) {
+        checkpoint.unreadStart = reader.nextLong();
+      } else if ("unreadEnd".equals(name)) {
+        checkpoint.unreadEnd = reader.nextLong();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return checkpoint;
+  }
+
+  private static void writeOutcome(JsonWriter writer, RetrificationOutcome outcome) throws IOException {
+    writer.beginObject();
+    if (outcome.status != null) {
+      writer.name("status").value(outcome.status.name());
+    }
+    writer.name("time").value(outcome.time);
+    writer.endObject();
+  }
+
+  private static RetrificationOutcome readOutcome(JsonReader reader) throws IOException {
+    final RetrificationOutcome outcome = new RetrificationOutcome();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if ("status".equals(name)) {
+        final String status = reader.nextString();
+        for (RetrificationOutcome.Status value : RetrificationOutcome.Status.values()) {
+          if (value.name().equals(status)) {
+            outcome.status = value;
+          }
+        }
+      } else if ("time".equals(name)) {
+        outcome.time = reader.nextLong();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return outcome;
+  }
+
+  private static AccessLogCheckpoint copy(AccessLogCheckpoint checkpoint) {
+    AccessLogCheckpoint copy = new AccessLogCheckpoint();
+    copy.fileKey = checkpoint.fileKey;
+    copy.fingerprint = checkpoint.fingerprint;
+    copy.fingerprintLength = checkpoint.fingerprintLength;
+    copy.offset = checkpoint.offset;
+    copy.size = checkpoint.size;
+    copy.unreadStart = checkpoint.unreadStart;
+    copy.unreadEnd = checkpoint.unreadEnd;
+    return copy;
+  }
+}
@@ -1,9 +1,36 @@
-package org.jepria.retrificator;
-
-import java.io.File;
-import java.util.Collection;
-
-public interface Tomcat {
-  Collection<Webapp> getWebapps();
-  Collection<File> getAccessLogs();
-}
+package org.jepria.retrificator;
+
+import java.io.File;
+import java.util.Collection;
+
+public interface Tomcat {
+  Collection<Webapp> getWebapps();
+  
+  /**
+   * @return the snapshot of the {@link #getWebapps()} to be shared by all phases of a single run
+   */
+  default WebappInventory getInventory() {
+    return WebappInventory.of(getWebapps());
+  }
+  
+  Collection<File> getAccessLogs();
+  
+  /**
+   * Returns the access logs modified since the previous invocation and forgets them,
+   * so the rest of the {@link #getAccessLogs()} may be skipped as having no new lines
+   *
+   * @return Nullable: the subset of the {@link #getAccessLogs()},
+   * or {@code null} (by default) if the modifications are not tracked so all access logs are to be processed
+   */
+  default Collection<File> pollModifiedAccessLogs() {
+    return null;
+  }
+  
+  /**
+   * @param accessLog one of the {@link #getAccessLogs()}
+   * @return the parser for the format the access log file is written in
+   */
+  default AccessLogParser getAccessLogParser(File accessLog) {
+    return AccessLogParser.getDefault();
+  }
+}
@@ -1,145 +1,164 @@
-package org.jepria.retrificator;
-
-import java.io.File;
-import java.util.*;
-
-public class TomcatImpl implements Tomcat {
-  
-  protected final File webappsDir;
-  protected final File logsDir;
-  
-  public TomcatImpl(File tomcatRootDir) {
-    this(new File(tomcatRootDir, "webapps"), new File(tomcatRootDir, "logs"));
-  }
-  
-  /**
-   * @param webappsDir
-   * @param logsDir
-   */
-  public TomcatImpl(File webappsDir, File logsDir) {
-    this.webappsDir = webappsDir;
-    this.logsDir = logsDir;
-  }
-  
-  @Override
-  public Collection<Webapp> getWebapps() {
-    
-    final Collection<Webapp> webapps = new ArrayList<>();
-    
-    final Set<String> dirs = new HashSet<>();
-    // map WebappName.war to webappName
-    final Map<String, String> wars = new HashMap<>();
-    // map WebappName.war.retro to webappName // XXX do not map to WebappName.war!
-    final Map<String, String> retrowars = new HashMap<>();
-    
-    final String warExtension = ".war";
-    final String retrowarExtension = ".war.retro";
-    
-    File[] files = webappsDir.listFiles();
-    for (File file : files) {
-      if (file.isDirectory()) {
-        dirs.add(file.getName());
-      } else if (file.isFile()) {
-        String filename = file.getName();
-        if (filename.length() >= warExtension.length() && filename.substring(filename.length() - warExtension.length()).equalsIgnoreCase(warExtension)) {
-          String name = filename.substring(0, filename.length() - warExtension.length());
-          wars.put(filename, name);
-        } else if (filename.length() >= retrowarExtension.length() && filename.substring(filename.length() - retrowarExtension.length()).equalsIgnoreCase(retrowarExtension)) {
-          String name = filename.substring(0, filename.length() - retrowarExtension.length());
-          retrowars.put(filename, name);
-        }
-      }
-    }
-  
-    {
-      Iterator<String> dirIt = dirs.iterator();
-      while (dirIt.hasNext()) {
-        String dir = dirIt.next();
-  
-        final File webappDeployed = new File(webappsDir, dir);
-        final String webappName = dir;
-  
-        // lookup war for the dir
-        File webappWar = null;
-        Iterator<String> warIt = wars.keySet().iterator();
-        while (warIt.hasNext() && webappWar == null) {
-          String war = warIt.next();
-          String name = wars.get(war);
-          if (webappName.equals(name)) { // case sensitive
-            webappWar = new File(webappsDir, war);
-            warIt.remove(); // consume war
-          }
-        }
-  
-        // lookup retrowar for the dir
-        File webappRetroWar = null;
-        Iterator<String> retrowarIt = retrowars.keySet().iterator();
-        while (retrowarIt.hasNext() && webappRetroWar == null) {
-          String retrowar = retrowarIt.next();
-          String name = retrowars.get(retrowar);
-          if (webappName.equals(name)) { // case sensitive
-            webappRetroWar = new File(webappsDir, retrowar);
-            retrowarIt.remove(); // consume retrowar
-          }
-        }
-  
-        Webapp webapp = new Webapp(webappName, webappWar, webappRetroWar, webappDeployed);
-        webapps.add(webapp);
-  
-        dirIt.remove(); // consume dir
-      }
-    }
-  
-    {
-      // now all dirs consumed, but some wars or retrowars may have retained
-      Iterator<String> warIt = wars.keySet().iterator();
-      while (warIt.hasNext()) {
-        String war = warIt.next();
-  
-        final File webappWar = new File(webappsDir, war);
-        final String webappName = wars.get(war); // assert not null
-      
-        // lookup retrowar for the war
-        File webappRetroWar = null;
-        Iterator<String> retrowarIt = retrowars.keySet().iterator();
-        while (retrowarIt.hasNext() && webappRetroWar == null) {
-          String retrowar = retrowarIt.next();
-          String retrowarName = retrowars.get(retrowar);
-          if (webappName.equals(retrowarName)) { // case sensitive
-            webappRetroWar = new File(webappsDir, retrowar);
-            retrowarIt.remove(); // consume retrowar
-          }
-        }
-      
-        Webapp webapp = new Webapp(webappName, webappWar, webappRetroWar, null);
-        webapps.add(webapp);
-  
-        warIt.remove(); // consume war
-      }
-    }
-  
-    {
-      // now all dirs and wars consumed, but some retrowars may have retained
-      Iterator<String> retrowarIt = retrowars.keySet().iterator();
-      while (retrowarIt.hasNext()) {
-        String retrowar = retrowarIt.next();
-  
-        final File webappRetroWar = new File(webappsDir, retrowar);
-        final String webappName = retrowars.get(retrowar); // assert not null
-      
-        Webapp webapp = new Webapp(webappName, null, webappRetroWar, null);
-        webapps.add(webapp);
-  
-        retrowarIt.remove(); // consume retrowar
-      }
-    }
-    
-    return webapps;
-  }
-  
-  @Override
-  public Collection<File> getAccessLogs() {
-    File[] files = logsDir.listFiles(file -> file.isFile() && file.getName().contains("_access_log."));
-    return files == null ? Arrays.asList() : Arrays.asList(files);
-  }
-}
+package org.jepria.retrificator;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+public class TomcatImpl implements Tomcat {
+  
+  protected final File webappsDir;
+  protected final File logsDir;
+  /**
+   * Nullable: the tomcat configuration file to discover the access log patterns from
+   */
+  protected final File serverXml;
+  
+  /**
+   * Nullable: the parser for all access logs, overrides the discovered ones
+   */
+  protected AccessLogParser accessLogParser;
+  
+  /**
+   * Lazily discovered from the {@link #serverXml} once, even if failed. Key: access log file prefix; value: the parser
+   */
+  private Map<String, AccessLogParser> accessLogParsersByPrefix;
+  
+  /**
+   * The stream to log the access log valves discovery problems to
+   */
+  protected PrintStream logStream = System.out;
+  
+  public TomcatImpl(File tomcatRootDir) {
+    this(new File(tomcatRootDir, "webapps"), new File(tomcatRootDir, "logs"), new File(tomcatRootDir, "conf/server.xml"));
+  }
+  
+  /**
+   * @param webappsDir
+   * @param logsDir
+   */
+  public TomcatImpl(File webappsDir, File logsDir) {
+    this(webappsDir, logsDir, null);
+  }
+  
+  /**
+   * @param webappsDir
+   * @param logsDir
+   * @param serverXml nullable
+   */
+  public TomcatImpl(File webappsDir, File logsDir, File serverXml) {
+    this.webappsDir = webappsDir;
+    this.logsDir = logsDir;
+    this.serverXml = serverXml;
+  }
+  
+  /**
+   * @param accessLogPattern the access log valve pattern all access logs are written in,
+   *                         or {@code null} to discover the patterns from the server.xml
+   * @throws IllegalArgumentException if the pattern is not supported
+   */
+  public void setAccessLogPattern(String accessLogPattern) {
+    this.accessLogParser = accessLogPattern == null ? null : AccessLogFormat.compile(accessLogPattern);
+  }
+  
+  /**
+   * @param logStream NotNull
+   */
+  public void setLogStream(PrintStream logStream) {
+    this.logStream = logStream;
+  }
+  
+  @Override
+  public Collection<Webapp> getWebapps() {
+    return new ArrayList<>(getInventory().getWebapps());
+  }
+  
+  @Override
+  public WebappInventory getInventory() {
+    return WebappInventory.scan(webappsDir);
+  }
+  
+  @Override
+  public AccessLogParser getAccessLogParser(File accessLog) {
+    if (accessLogParser != null) {
+      return accessLogParser;
+    }
+    
+    Map<String, AccessLogParser> parsers;
+    synchronized (this) {
+      if (accessLogParsersByPrefix == null) {
+        accessLogParsersByPrefix = discoverAccessLogParsers();
+      }
+      parsers = accessLogParsersByPrefix;
+    }
+    
+    // the longest prefix wins
+    String filename = accessLog.getName();
+    String matchingPrefix = null;
+    for (String prefix : parsers.keySet()) {
+      if (filename.startsWith(prefix) && (matchingPrefix == null || prefix.length() > matchingPrefix.length())) {
+        matchingPrefix = prefix;
+      }
+    }
+    return matchingPrefix == null ? AccessLogParser.getDefault() : parsers.get(matchingPrefix);
+  }
+  
+  /**
+   * Reads the access log valves' prefixes and patterns from the server.xml.
+   * The access logs of a valve with an unsupported pattern, or of all valves if the server.xml could not be read,
+   * are parsed in the default format
+   *
+   * @return Key: access log file prefix; value: the parser
+   */
+  protected Map<String, AccessLogParser> discoverAccessLogParsers() {
+    final Map<String, AccessLogParser> parsers = new HashMap<>();
+    
+    if (serverXml != null && serverXml.isFile()) {
+      final NodeList valves;
+      try {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        valves = factory.newDocumentBuilder().parse(serverXml).getElementsByTagName("Valve");
+      } catch (ParserConfigurationException | SAXException | IOException e) {
+        logStream.println("WARNING: failed to read the access log valves from " + serverXml
+                + ", all access logs are parsed in the default format: " + e);
+        return parsers;
+      }
+      
+      for (int i = 0; i < valves.getLength(); i++) {
+        Element valve = (Element) valves.item(i);
+        // the ExtendedAccessLogValve writes in W3C format, not supported
+        if (valve.getAttribute("className").endsWith(".AccessLogValve")) {
+          String prefix = valve.hasAttribute("prefix") ? valve.getAttribute("prefix") : "access_log";
+          String pattern = valve.hasAttribute("pattern") ? valve.getAttribute("pattern") : "common";
+          try {
+            parsers.put(prefix, AccessLogFormat.compile(pattern));
+          } catch (IllegalArgumentException e) {
+            // the valve may be of another host, not to stop the ingestion of all access logs
+            logStream.println("WARNING: unsupported access log pattern '" + pattern + "' in " + serverXml
+                    + ", the access logs '" + prefix + "*' are parsed in the default format: " + e.getMessage());
+            parsers.put(prefix, AccessLogParser.getDefault());
+          }
+        }
+      }
+    }
+    
+    return parsers;
+  }
+  
+  @Override
+  public Collection<File> getAccessLogs() {
+    File[] files = logsDir.listFiles(file -> file.isFile() && isAccessLog(file.getName()));
+    return files == null ? Arrays.asList() : Arrays.asList(files);
+  }
+  
+  protected static boolean isAccessLog(String filename) {
+    return filename.contains("_access_log.");
+  }
+}
@@ -0,0 +1,223 @@
+package org.jepria.retrificator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tomcat which keeps the webapps and the access logs in memory, updated incrementally by the {@link WatchService} events
+ * instead of listing the directories on each request. Intended for a long-lived process.
+ * <br/>
+ * The pending events are processed on each request (or on {@link #awaitChanges}); on the events overflow the affected
+ * directory is rescanned entirely. The access logs created or modified are tracked until {@link #pollModifiedAccessLogs() polled}.
+ * <br/>
+ * Thread-safe.
+ */
+public class WatchingTomcat extends TomcatImpl implements AutoCloseable {
+
+  private final WatchService watchService;
+
+  private final Path webappsPath;
+  private final Path logsPath;
+
+  /**
+   * Key: an entry of the webapps directory; value: its attributes
+   */
+  private final Map<Path, BasicFileAttributes> webappsEntries = new HashMap<>();
+  private final Set<File> accessLogs = new LinkedHashSet<>();
+  private final Set<File> modifiedAccessLogs = new LinkedHashSet<>();
+
+  private long eventCount;
+  private long rescanCount;
+
+  /**
+   * @param tomcatRootDir
+   * @throws IOException if the directories could not be watched
+   */
+  public WatchingTomcat(File tomcatRootDir) throws IOException {
+    this(new File(tomcatRootDir, "webapps"), new File(tomcatRootDir, "logs"), new File(tomcatRootDir, "conf/server.xml"));
+  }
+
+  /**
+   * @param webappsDir
+   * @param logsDir
+   * @param serverXml nullable
+   * @throws IOException if the directories could not be watched
+   */
+  public WatchingTomcat(File webappsDir, File logsDir, File serverXml) throws IOException {
+    super(webappsDir, logsDir, serverXml);
+    this.webappsPath = webappsDir.toPath();
+    this.logsPath = logsDir.toPath();
+
+    this.watchService = webappsPath.getFileSystem().newWatchService();
+    try {
+      // register before the initial scan, for no change to be missed in between
+      webappsPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      logsPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      synchronized (this) {
+        rescanWebapps();
+        rescanLogs();
+      }
+    } catch (IOException | RuntimeException e) {
+      watchService.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized WebappInventory getInventory() {
+    processEvents();
+    WebappInventory.Builder builder = new WebappInventory.Builder();
+    for (Map.Entry<Path, BasicFileAttributes> entry : webappsEntries.entrySet()) {
+      builder.add(entry.getKey(), entry.getValue());
+    }
+    return builder.build();
+  }
+
+  @Override
+  public synchronized Collection<File> getAccessLogs() {
+    processEvents();
+    return new ArrayList<>(accessLogs);
+  }
+
+  @Override
+  public synchronized Collection<File> pollModifiedAccessLogs() {
+    processEvents();
+    final List<File> modified = new ArrayList<>(modifiedAccessLogs);
+    modifiedAccessLogs.clear();
+    return modified;
+  }
+
+  /**
+   * Waits for a change in the watched directories
+   *
+   * @param timeout
+   * @param unit
+   * @return {@code true} if a change has been detected, {@code false} on timeout
+   * @throws InterruptedException
+   */
+  public boolean awaitChanges(long timeout, TimeUnit unit) throws InterruptedException {
+    final WatchKey key = watchService.poll(timeout, unit);
+    if (key == null) {
+      return false;
+    }
+    synchronized (this) {
+      processKey(key);
+      processEvents();
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of the events processed
+   */
+  public synchronized long getEventCount() {
+    return eventCount;
+  }
+
+  /**
+   * @return the number of the directory rescans, including the initial ones
+   */
+  public synchronized long getRescanCount() {
+    return rescanCount;
+  }
+
+  /**
+   * Processes the pending events with no waiting
+   */
+  private void processEvents() {
+    WatchKey key;
+    while ((key = watchService.poll()) != null) {
+      processKey(key);
+    }
+  }
+
+  private void processKey(WatchKey key) {
+    final Path dir = (Path) key.watchable();
+    final boolean webapps = dir.equals(webappsPath);
+    final boolean logs = dir.equals(logsPath);
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      eventCount++;
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // some events are lost
+        if (webapps) {
+          rescanWebapps();
+        }
+        if (logs) {
+          rescanLogs();
+        }
+      } else {
+        final Path path = dir.resolve((Path) event.context());
+        if (webapps) {
+          updateWebappsEntry(path);
+        }
+        if (logs) {
+          updateLogsEntry(path, event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+        }
+      }
+    }
+
+    // if the directory itself is deleted, the key is invalid and the directory remains in its latest known state
+    key.reset();
+  }
+
+  private void updateWebappsEntry(Path path) {
+    try {
+      // the symbolic links are followed, as by the listing
+      webappsEntries.put(path, Files.readAttributes(path, BasicFileAttributes.class));
+    } catch (IOException e) {
+      // deleted, or a broken link
+      webappsEntries.remove(path);
+    }
+  }
+
+  private void updateLogsEntry(Path path, boolean deleted) {
+    if (!isAccessLog(path.getFileName().toString())) {
+      return;
+    }
+    final File file = path.toFile();
+    if (!deleted && Files.isRegularFile(path)) {
+      accessLogs.add(file);
+      modifiedAccessLogs.add(file);
+    } else {
+      accessLogs.remove(file);
+      modifiedAccessLogs.remove(file);
+    }
+  }
+
+  private void rescanWebapps() {
+    rescanCount++;
+    webappsEntries.clear();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(webappsPath)) {
+      for (Path path : entries) {
+        updateWebappsEntry(path);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to list the webapps directory " + webappsPath, e);
+    }
+  }
+
+  /**
+   * All access logs are considered modified after the rescan
+   */
+  private void rescanLogs() {
+    rescanCount++;
+    accessLogs.clear();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(logsPath)) {
+      for (Path path : entries) {
+        updateLogsEntry(path, false);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to list the logs directory " + logsPath, e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -0,0 +1,219 @@
+package org.jepria.retrificator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable snapshot of the tomcat webapps, indexed by the webapp name, along with the file attributes
+ * of the war files as of the snapshot moment. Intended to be taken once and shared by all phases of a single run.
+ * <br/>
+ * Counts the lookups by the webapp name and the war attribute lookups served from the snapshot (hits)
+ * and the ones it could not serve (misses), that is the lookups of unknown names and the war attributes read again.
+ * The listings of all webapps are not counted.
+ * <br/>
+ * Thread-safe.
+ */
+public class WebappInventory {
+
+  private static final String WAR_EXTENSION = ".war";
+  private static final String RETRO_WAR_EXTENSION = ".war.retro";
+
+  /**
+   * Key: webapp name; value: webapp
+   */
+  private final Map<String, Webapp> webapps;
+  /**
+   * Key: war file; value: its attributes
+   */
+  private final Map<File, BasicFileAttributes> warAttributes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  protected WebappInventory(Map<String, Webapp> webapps, Map<File, BasicFileAttributes> warAttributes) {
+    this.webapps = Collections.unmodifiableMap(webapps);
+    this.warAttributes = Collections.unmodifiableMap(warAttributes);
+  }
+
+  /**
+   * Creates the inventory of the webapps listed elsewhere, with no file attributes
+   *
+   * @param webapps NotNull
+   * @return
+   */
+  public static WebappInventory of(Collection<Webapp> webapps) {
+    final Map<String, Webapp> map = new LinkedHashMap<>();
+    for (Webapp webapp : webapps) {
+      map.putIfAbsent(webapp.name, webapp);
+    }
+    return new WebappInventory(map, Collections.emptyMap());
+  }
+
+  /**
+   * Lists the webapps directory in a single pass, reading the attributes of each entry along with its name
+   *
+   * @param webappsDir NotNull
+   * @return
+   * @throws UncheckedIOException if the directory could not be listed
+   */
+  public static WebappInventory scan(File webappsDir) {
+    final Builder builder = new Builder();
+    final Path root = webappsDir.toPath();
+    try {
+      // the symbolic links are followed (as by the File#isFile and File#isDirectory), for the linked wars and directories
+      // to be the webapps as well; a broken link is visited with the attributes of the link itself, so is neither
+      Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+          // with the max depth 1, the entries of any type are visited here
+          builder.add(path, attrs);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+          if (path.equals(root)) {
+            throw e;
+          }
+          // the entry disappeared during the listing
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to list the webapps directory " + webappsDir, e);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Pairs the entries of the webapps directory into the webapps, in linear time.
+   * <br/>
+   * The webapp is the deployed directory, the {@code .war} file and the {@code .war.retro} file with the same name
+   * (case sensitive, the extensions are case insensitive), any of them may be missing.
+   */
+  public static class Builder {
+    private final Map<String, File> dirs = new LinkedHashMap<>();
+    private final Map<String, File> wars = new LinkedHashMap<>();
+    private final Map<String, File> retroWars = new LinkedHashMap<>();
+    private final Map<File, BasicFileAttributes> warAttributes = new HashMap<>();
+
+    /**
+     * @param path NotNull an entry of the webapps directory
+     * @param attrs NotNull the entry attributes
+     * @return this builder
+     */
+    public Builder add(Path path, BasicFileAttributes attrs) {
+      final String filename = path.getFileName().toString();
+      if (attrs.isDirectory()) {
+        dirs.putIfAbsent(filename, path.toFile());
+      } else if (attrs.isRegularFile()) {
+        if (endsWithIgnoreCase(filename, WAR_EXTENSION)) {
+          final File war = path.toFile();
+          if (wars.putIfAbsent(filename.substring(0, filename.length() - WAR_EXTENSION.length()), war) == null) {
+            warAttributes.put(war, attrs);
+          }
+        } else if (endsWithIgnoreCase(filename, RETRO_WAR_EXTENSION)) {
+          retroWars.putIfAbsent(filename.substring(0, filename.length() - RETRO_WAR_EXTENSION.length()), path.toFile());
+        }
+      }
+      return this;
+    }
+
+    public WebappInventory build() {
+      final Map<String, File> wars = new LinkedHashMap<>(this.wars);
+      final Map<String, File> retroWars = new LinkedHashMap<>(this.retroWars);
+
+      final Map<String, Webapp> webapps = new LinkedHashMap<>();
+      for (Map.Entry<String, File> dir : dirs.entrySet()) {
+        final String name = dir.getKey();
+        webapps.put(name, new Webapp(name, wars.remove(name), retroWars.remove(name), dir.getValue()));
+      }
+      // the wars and retro wars with no deployed directory
+      for (Map.Entry<String, File> war : wars.entrySet()) {
+        final String name = war.getKey();
+        webapps.put(name, new Webapp(name, war.getValue(), retroWars.remove(name), null));
+      }
+      for (Map.Entry<String, File> retroWar : retroWars.entrySet()) {
+        final String name = retroWar.getKey();
+        webapps.put(name, new Webapp(name, null, retroWar.getValue(), null));
+      }
+
+      return new WebappInventory(webapps, new HashMap<>(warAttributes));
+    }
+  }
+
+  private static boolean endsWithIgnoreCase(String s, String suffix) {
+    return s.regionMatches(true, s.length() - suffix.length(), suffix, 0, suffix.length());
+  }
+
+  /**
+   * @return unmodifiable
+   */
+  public Collection<Webapp> getWebapps() {
+    return webapps.values();
+  }
+
+  /**
+   * @return unmodifiable
+   */
+  public Set<String> getNames() {
+    return webapps.keySet();
+  }
+
+  /**
+   * @param name
+   * @return the webapp or {@code null} if there is no webapp with the name
+   */
+  public Webapp get(String name) {
+    final Webapp webapp = webapps.get(name);
+    (webapp != null ? hits : misses).incrementAndGet();
+    return webapp;
+  }
+
+  /**
+   * @param war NotNull
+   * @return the war file attributes as of the snapshot moment, or read now if the snapshot does not have them
+   * @throws UncheckedIOException
+   */
+  public BasicFileAttributes getWarAttributes(File war) {
+    BasicFileAttributes attrs = warAttributes.get(war);
+    if (attrs != null) {
+      hits.incrementAndGet();
+      return attrs;
+    }
+    misses.incrementAndGet();
+    try {
+      return Files.readAttributes(war.toPath(), BasicFileAttributes.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public int size() {
+    return webapps.size();
+  }
+
+  /**
+   * @return the number of the lookups served from the snapshot
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of the lookups the snapshot could not serve
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "WebappInventory{size=" + webapps.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "}";
+  }
+}